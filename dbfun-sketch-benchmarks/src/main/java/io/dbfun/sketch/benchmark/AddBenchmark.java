@@ -0,0 +1,70 @@
+package io.dbfun.sketch.benchmark;
+
+import io.dbfun.sketch.CardinalityEstimator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingests `cardinality` distinct values into a fresh estimator per operation,
+ * so the score (and gc.alloc.rate.norm) covers growth of the estimator as well as the adds.
+ * The batch variants add the same values as columns of BATCH_SIZE rows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AddBenchmark
+{
+  // rows per columnar batch
+  private static final int BATCH_SIZE = 4096;
+
+  @Benchmark
+  public CardinalityEstimator addLong(EstimatorState state)
+  {
+    CardinalityEstimator estimator = state.newEstimator();
+    for (long value : state.longValues) {
+      estimator.add(value);
+    }
+    return estimator;
+  }
+
+  @Benchmark
+  public CardinalityEstimator addBytes(EstimatorState state)
+  {
+    CardinalityEstimator estimator = state.newEstimator();
+    for (byte[] value : state.byteValues) {
+      estimator.add(value);
+    }
+    return estimator;
+  }
+
+  @Benchmark
+  public CardinalityEstimator addLongBatch(EstimatorState state)
+  {
+    CardinalityEstimator estimator = state.newEstimator();
+    final long[] values = state.longValues;
+    for (int from = 0; from < values.length; from += BATCH_SIZE) {
+      estimator.add(values, from, Math.min(BATCH_SIZE, values.length - from));
+    }
+    return estimator;
+  }
+
+  @Benchmark
+  public CardinalityEstimator addBytesBatch(EstimatorState state)
+  {
+    CardinalityEstimator estimator = state.newEstimator();
+    final int count = state.byteValues.length;
+    for (int from = 0; from < count; from += BATCH_SIZE) {
+      estimator.add(state.byteData, state.byteOffsets, from, Math.min(BATCH_SIZE, count - from));
+    }
+    return estimator;
+  }
+}
@@ -0,0 +1,37 @@
+package io.dbfun.sketch.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar, accepts the usual JMH command line options.
+ *
+ * <p>Unless overridden on the command line, runs with the GC profiler (allocation rate and
+ * bytes per operation) and writes JSON results to jmh-result.json, e.g.
+ * <pre>
+ * java -jar dbfun-sketch-benchmarks/target/benchmarks.jar AddBenchmark -p estimator=hllraw,uniq -p cardinality=10000
+ * </pre>
+ */
+public class BenchmarkRunner
+{
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException
+  {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+
+    if (commandLine.getProfilers().isEmpty()) {
+      options.addProfiler(GCProfiler.class);
+    }
+    if (!commandLine.getResultFormat().hasValue()) {
+      options.resultFormat(ResultFormatType.JSON);
+    }
+
+    new Runner(options.build()).run();
+  }
+}
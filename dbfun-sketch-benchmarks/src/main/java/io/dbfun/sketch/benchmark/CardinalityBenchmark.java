@@ -0,0 +1,45 @@
+package io.dbfun.sketch.benchmark;
+
+import io.dbfun.sketch.CardinalityEstimator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries the cardinality of an estimator holding `cardinality` distinct values.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CardinalityBenchmark
+{
+  @State(Scope.Thread)
+  public static class Sketch
+  {
+    CardinalityEstimator estimator;
+
+    @Setup(Level.Trial)
+    public void build(EstimatorState state)
+    {
+      estimator = state.newEstimator(state.longValues, 0, state.cardinality);
+    }
+  }
+
+  @Benchmark
+  public long cardinality(Sketch sketch)
+  {
+    return sketch.estimator.cardinality();
+  }
+}
@@ -0,0 +1,219 @@
+package io.dbfun.sketch.benchmark;
+
+import io.dbfun.sketch.CardinalityEstimator;
+import io.dbfun.sketch.CardinalityEstimators;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads adding to one shared sketch: the lock-free "hllconcurrent" estimator and the "striped:" wrapper
+ * of "hllnobias+packed" against a "hllnobias+packed" estimator behind a lock, the simplest way to share
+ * a single-threaded one.
+ *
+ * <p>The number of threads is JMH's -t option, {@link #main(String[])} runs both with 1, 2, 4 ... threads
+ * up to the number of processors:
+ * <pre>
+ * java -cp dbfun-sketch-benchmarks/target/benchmarks.jar io.dbfun.sketch.benchmark.ConcurrentAddBenchmark
+ * </pre>
+ * The readWhileWriting group has a thread estimating the cardinality while three others add.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentAddBenchmark
+{
+  private static final int VALUES_PER_THREAD = 1 << 16;
+
+  @State(Scope.Benchmark)
+  public static class SharedEstimator
+  {
+    @Param({"concurrent", "striped", "synchronized"})
+    public String implementation;
+
+    @Param({"14"})
+    public int precision;
+
+    CardinalityEstimator estimator;
+
+    @Setup(Level.Iteration)
+    public void create()
+    {
+      if (implementation.equals("concurrent")) {
+        estimator = CardinalityEstimators.get("hllconcurrent" + precision);
+      } else if (implementation.equals("striped")) {
+        estimator = CardinalityEstimators.get("striped:hllnobias" + precision + "+packed");
+      } else {
+        estimator = new SynchronizedEstimator(CardinalityEstimators.get("hllnobias" + precision + "+packed"));
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadValues
+  {
+    long[] values;
+    int next;
+
+    @Setup(Level.Trial)
+    public void generate()
+    {
+      final Random random = new Random(Thread.currentThread().getId());
+      values = new long[VALUES_PER_THREAD];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = random.nextLong();
+      }
+    }
+
+    long nextValue()
+    {
+      final long value = values[next];
+      next = (next + 1) & (VALUES_PER_THREAD - 1);
+      return value;
+    }
+  }
+
+  @Benchmark
+  public void add(SharedEstimator shared, ThreadValues values)
+  {
+    shared.estimator.add(values.nextValue());
+  }
+
+  @Benchmark
+  @Group("readWhileWriting")
+  @GroupThreads(3)
+  public void write(SharedEstimator shared, ThreadValues values)
+  {
+    shared.estimator.add(values.nextValue());
+  }
+
+  @Benchmark
+  @Group("readWhileWriting")
+  @GroupThreads(1)
+  public long read(SharedEstimator shared)
+  {
+    return shared.estimator.cardinality();
+  }
+
+  public static void main(String[] args) throws RunnerException
+  {
+    final int processors = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads <= processors; threads *= 2) {
+      new Runner(
+          new OptionsBuilder()
+              .include(ConcurrentAddBenchmark.class.getName() + ".add$")
+              .threads(threads)
+              .resultFormat(ResultFormatType.JSON)
+              .result("jmh-result-concurrent-" + threads + ".json")
+              .build()
+      ).run();
+    }
+  }
+
+  /**
+   * Makes every method of a single-threaded estimator mutually exclusive.
+   */
+  @SuppressWarnings("unchecked")
+  private static final class SynchronizedEstimator implements CardinalityEstimator<SynchronizedEstimator>
+  {
+    private final CardinalityEstimator delegate;
+
+    SynchronizedEstimator(CardinalityEstimator delegate)
+    {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public synchronized void add(byte[] value)
+    {
+      delegate.add(value);
+    }
+
+    @Override
+    public synchronized void add(byte[] value, int offset, int length)
+    {
+      delegate.add(value, offset, length);
+    }
+
+    @Override
+    public synchronized void add(ByteBuffer value)
+    {
+      delegate.add(value);
+    }
+
+    @Override
+    public synchronized void add(CharSequence value)
+    {
+      delegate.add(value);
+    }
+
+    @Override
+    public synchronized void add(long value)
+    {
+      delegate.add(value);
+    }
+
+    @Override
+    public synchronized void addHash(long hash)
+    {
+      delegate.addHash(hash);
+    }
+
+    @Override
+    public synchronized void merge(SynchronizedEstimator that)
+    {
+      delegate.merge(that.delegate);
+    }
+
+    @Override
+    public synchronized long cardinality()
+    {
+      return delegate.cardinality();
+    }
+
+    @Override
+    public synchronized long memoryFootprint()
+    {
+      return delegate.memoryFootprint();
+    }
+
+    @Override
+    public String name()
+    {
+      return delegate.name();
+    }
+
+    @Override
+    public synchronized int serializedSize()
+    {
+      return delegate.serializedSize();
+    }
+
+    @Override
+    public synchronized void serialize(ByteBuffer out)
+    {
+      delegate.serialize(out);
+    }
+  }
+}
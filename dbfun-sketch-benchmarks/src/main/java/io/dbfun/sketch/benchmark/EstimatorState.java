@@ -0,0 +1,99 @@
+package io.dbfun.sketch.benchmark;
+
+import io.dbfun.sketch.CardinalityEstimator;
+import io.dbfun.sketch.CardinalityEstimators;
+import io.dbfun.sketch.FastRandomIdGenerator;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Parameters and pre-generated input shared by all estimator benchmarks.
+ *
+ * <p>`precision` is only inserted into names of estimators that take one, in front of any
+ * option suffix (e.g. "hllraw+packed" becomes "hllraw14+packed"), see {@link #estimatorName()}.
+ * The others run once per precision value with identical settings.
+ */
+@State(Scope.Benchmark)
+public class EstimatorState
+{
+  private static final long SEED = 0x5eed_cafe_f00dL;
+
+  @Param({"hllraw", "hllraw+packed", "hllnobias", "hllnobias+packed", "hllnobias+sparse", "uniq", "combined"})
+  public String estimator;
+
+  @Param({"12", "14", "16"})
+  public int precision;
+
+  @Param({"100", "10000", "1000000"})
+  public int cardinality;
+
+  long[] longValues;
+  byte[][] byteValues;
+  // byteValues as one variable-length column, value i is byteData[byteOffsets[i], byteOffsets[i + 1])
+  byte[] byteData;
+  int[] byteOffsets;
+
+  @Setup(Level.Trial)
+  public void generateValues()
+  {
+    Random random = new Random(SEED);
+    longValues = new long[cardinality];
+    for (int i = 0; i < cardinality; i++) {
+      longValues[i] = random.nextLong();
+    }
+
+    FastRandomIdGenerator idGenerator = new FastRandomIdGenerator();
+    byteValues = new byte[cardinality][];
+    for (int i = 0; i < cardinality; i++) {
+      byteValues[i] = idGenerator.generate();
+    }
+
+    byteOffsets = new int[cardinality + 1];
+    for (int i = 0; i < cardinality; i++) {
+      byteOffsets[i + 1] = byteOffsets[i] + byteValues[i].length;
+    }
+    byteData = new byte[byteOffsets[cardinality]];
+    for (int i = 0; i < cardinality; i++) {
+      System.arraycopy(byteValues[i], 0, byteData, byteOffsets[i], byteValues[i].length);
+    }
+  }
+
+  String estimatorName()
+  {
+    return estimatorName(estimator, precision);
+  }
+
+  static String estimatorName(String estimator, int precision)
+  {
+    final int optionsStart = estimator.indexOf('+');
+    final String baseName = optionsStart < 0 ? estimator : estimator.substring(0, optionsStart);
+    final String options = optionsStart < 0 ? "" : estimator.substring(optionsStart);
+    switch (baseName) {
+      case "hllraw":
+      case "hllnobias":
+      case "combined":
+        return baseName + precision + options;
+      default:
+        return estimator;
+    }
+  }
+
+  CardinalityEstimator newEstimator()
+  {
+    return CardinalityEstimators.get(estimatorName());
+  }
+
+  CardinalityEstimator newEstimator(long[] values, int from, int to)
+  {
+    CardinalityEstimator estimator = newEstimator();
+    for (int i = from; i < to; i++) {
+      estimator.add(values[i]);
+    }
+    return estimator;
+  }
+}
@@ -0,0 +1,106 @@
+package io.dbfun.sketch.benchmark;
+
+import io.dbfun.sketch.CardinalityEstimator;
+import io.dbfun.sketch.CardinalityEstimators;
+import io.dbfun.sketch.FanOut;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding every value to `sketches` estimators, with add() on each (hashing the value every time)
+ * or through a {@link FanOut} (hashing it once). Time per value.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark
+{
+  private static final long SEED = 0x5eed_cafe_f00dL;
+  private static final int VALUES = 1 << 16;
+
+  @Param({"hllraw14", "hllnobias14+packed", "combined"})
+  public String estimator;
+
+  @Param({"1", "4", "16"})
+  public int sketches;
+
+  private long[] longValues;
+  private byte[][] byteValues;
+  private CardinalityEstimator[] estimators;
+  private FanOut fanOut;
+
+  @Setup(Level.Trial)
+  public void setup()
+  {
+    final Random random = new Random(SEED);
+    longValues = new long[VALUES];
+    byteValues = new byte[VALUES][];
+    for (int i = 0; i < VALUES; i++) {
+      longValues[i] = random.nextLong();
+      byteValues[i] = new byte[16 + random.nextInt(32)];
+      random.nextBytes(byteValues[i]);
+    }
+    estimators = new CardinalityEstimator[sketches];
+    for (int i = 0; i < sketches; i++) {
+      estimators[i] = CardinalityEstimators.get(estimator);
+    }
+    fanOut = new FanOut(estimators);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public void addLongEach()
+  {
+    for (long value : longValues) {
+      for (CardinalityEstimator estimator : estimators) {
+        estimator.add(value);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public void addLongFanOut()
+  {
+    for (long value : longValues) {
+      fanOut.add(value);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public void addBytesEach()
+  {
+    for (byte[] value : byteValues) {
+      for (CardinalityEstimator estimator : estimators) {
+        estimator.add(value);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public void addBytesFanOut()
+  {
+    for (byte[] value : byteValues) {
+      fanOut.add(value);
+    }
+  }
+}
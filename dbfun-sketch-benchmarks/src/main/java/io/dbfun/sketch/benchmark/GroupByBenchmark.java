@@ -0,0 +1,85 @@
+package io.dbfun.sketch.benchmark;
+
+import io.dbfun.sketch.CardinalityEstimator;
+import io.dbfun.sketch.CardinalityEstimators;
+import io.dbfun.sketch.KeyedDistinctCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SELECT key, COUNT(DISTINCT value) GROUP BY key over `rows` rows with `keys` distinct keys, skewed so that a few
+ * keys get most rows: a {@link KeyedDistinctCounter} against a HashMap of one "combined" estimator per key.
+ * Run with -prof gc to compare allocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GroupByBenchmark
+{
+  private static final long SEED = 0x5eed_cafe_f00dL;
+
+  @Param({"10000", "1000000"})
+  public int keys;
+
+  @Param({"4000000"})
+  public int rows;
+
+  private long[] keyColumn;
+  private long[] valueColumn;
+
+  @Setup(Level.Trial)
+  public void generate()
+  {
+    final Random random = new Random(SEED);
+    keyColumn = new long[rows];
+    valueColumn = new long[rows];
+    for (int i = 0; i < rows; i++) {
+      keyColumn[i] = (long) (Math.pow(random.nextDouble(), 3) * keys);
+      valueColumn[i] = random.nextInt(1 << 24);
+    }
+  }
+
+  @Benchmark
+  public long estimatorPerKey()
+  {
+    final Map<Long, CardinalityEstimator> groups = new HashMap<>();
+    for (int i = 0; i < rows; i++) {
+      groups.computeIfAbsent(keyColumn[i], key -> CardinalityEstimators.get("combined")).add(valueColumn[i]);
+    }
+    long total = 0;
+    for (CardinalityEstimator group : groups.values()) {
+      total += group.cardinality();
+    }
+    return total;
+  }
+
+  @Benchmark
+  public long keyedCounter()
+  {
+    final KeyedDistinctCounter groups = new KeyedDistinctCounter();
+    groups.add(keyColumn, valueColumn, 0, rows);
+    long total = 0;
+    for (KeyedDistinctCounter.Cursor cursor = groups.cursor(); cursor.next(); ) {
+      total += cursor.cardinality();
+    }
+    return total;
+  }
+}
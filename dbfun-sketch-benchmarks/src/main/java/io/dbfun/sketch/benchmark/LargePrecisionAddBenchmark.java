@@ -0,0 +1,89 @@
+package io.dbfun.sketch.benchmark;
+
+import io.dbfun.sketch.CardinalityEstimator;
+import io.dbfun.sketch.CardinalityEstimators;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Add throughput (values per microsecond) into dense sketches whose registers outgrow the caches,
+ * with add(long) per value (scalar) or add(long[]) of 65536 values (batch). Batches are hashed and applied
+ * 1024 values at a time, or radix-partitioned by register region from p = 18 with the "+partitioned" option.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LargePrecisionAddBenchmark
+{
+  private static final long SEED = 0x5eed_cafe_f00dL;
+  private static final int VALUES = 1 << 20;
+  private static final int BATCH_SIZE = 1 << 16;
+
+  @Param({
+      "hllraw",
+      "hllraw+partitioned",
+      "hllraw+packed",
+      "hllraw+packed+partitioned",
+      "hllnobias",
+      "hllnobias+partitioned",
+      "hllnobias+packed",
+      "hllnobias+packed+partitioned"
+  })
+  public String estimator;
+
+  @Param({"16", "18", "20", "22"})
+  public int precision;
+
+  @Param({"scalar", "batch"})
+  public String ingest;
+
+  private long[] values;
+  private CardinalityEstimator sketch;
+
+  @Setup(Level.Trial)
+  public void setup()
+  {
+    final Random random = new Random(SEED);
+    values = new long[VALUES];
+    for (int i = 0; i < VALUES; i++) {
+      values[i] = random.nextLong();
+    }
+    // dense from the start, the same registers are updated by every invocation
+    sketch = CardinalityEstimators.get(EstimatorState.estimatorName(estimator, precision));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public CardinalityEstimator add()
+  {
+    final CardinalityEstimator sketch = this.sketch;
+    final long[] values = this.values;
+    if (ingest.equals("scalar")) {
+      for (long value : values) {
+        sketch.add(value);
+      }
+    } else {
+      for (int from = 0; from < values.length; from += BATCH_SIZE) {
+        sketch.add(values, from, BATCH_SIZE);
+      }
+    }
+    return sketch;
+  }
+}
@@ -0,0 +1,53 @@
+package io.dbfun.sketch.benchmark;
+
+import io.dbfun.sketch.CardinalityEstimator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges a sketch of the second half of the values into a sketch of the first half.
+ *
+ * <p>merge() is idempotent, so the target is built once per trial rather than per invocation:
+ * an invocation-level setup would be counted by the GC profiler and dwarfs the merge itself.
+ * Every invocation still walks all registers / hash values of the source.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeBenchmark
+{
+  @State(Scope.Thread)
+  public static class Sketches
+  {
+    CardinalityEstimator source;
+    CardinalityEstimator target;
+
+    @Setup(Level.Trial)
+    public void build(EstimatorState state)
+    {
+      source = state.newEstimator(state.longValues, state.cardinality / 2, state.cardinality);
+      target = state.newEstimator(state.longValues, 0, state.cardinality / 2);
+    }
+  }
+
+  @Benchmark
+  @SuppressWarnings("unchecked")
+  public CardinalityEstimator merge(Sketches sketches)
+  {
+    sketches.target.merge(sketches.source);
+    return sketches.target;
+  }
+}
@@ -0,0 +1,161 @@
+package io.dbfun.sketch.benchmark;
+
+import com.google.common.hash.Hashing;
+import io.dbfun.sketch.Hll64WithBiasCorrection;
+import io.dbfun.sketch.SlidingHll64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distinct users in the last 5, 15 and 60 minutes over a stream of `events` events spread evenly over two hours:
+ * a {@link SlidingHll64} against a ring of one {@link Hll64WithBiasCorrection} per minute, whose windows are
+ * the union of their latest sketches.
+ *
+ * <p>`ingest` adds the whole stream, `query` estimates the three windows at the end of it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SlidingWindowBenchmark
+{
+  private static final long SEED = 0x5eed_cafe_f00dL;
+  private static final long MINUTE = 60_000L;
+  private static final int MAX_WINDOW_MINUTES = 60;
+  private static final int[] WINDOW_MINUTES = {5, 15, 60};
+  private static final int STREAM_MINUTES = 2 * MAX_WINDOW_MINUTES;
+
+  @State(Scope.Benchmark)
+  public static class Stream
+  {
+    @Param({"12", "14"})
+    public int precision;
+
+    @Param({"1000000", "10000000"})
+    public int events;
+
+    @Param({"100000"})
+    public int users;
+
+    long[] timestamps;
+    long[] values;
+
+    SlidingHll64 sliding;
+    Ring ring;
+
+    @Setup(Level.Trial)
+    public void generate()
+    {
+      final Random random = new Random(SEED);
+      timestamps = new long[events];
+      values = new long[events];
+      for (int i = 0; i < events; i++) {
+        timestamps[i] = STREAM_MINUTES * MINUTE * i / events;
+        values[i] = random.nextInt(users);
+      }
+      sliding = slidingOf(this);
+      ring = ringOf(this);
+    }
+  }
+
+  /**
+   * One sketch per minute of the largest window, the oldest is reset when a new minute starts.
+   */
+  public static final class Ring
+  {
+    private final int precision;
+    private final Hll64WithBiasCorrection[] minutes = new Hll64WithBiasCorrection[MAX_WINDOW_MINUTES];
+    private long currentMinute = -1;
+
+    Ring(int precision)
+    {
+      this.precision = precision;
+    }
+
+    void add(long timestamp, long value)
+    {
+      final long minute = timestamp / MINUTE;
+      if (minute != currentMinute) {
+        minutes[(int) (minute % MAX_WINDOW_MINUTES)] = new Hll64WithBiasCorrection(precision, Hashing.murmur3_128());
+        currentMinute = minute;
+      }
+      minutes[(int) (minute % MAX_WINDOW_MINUTES)].add(value);
+    }
+
+    long cardinality(int windowMinutes)
+    {
+      final List<Hll64WithBiasCorrection> window = new ArrayList<>(windowMinutes);
+      for (long minute = currentMinute; minute > currentMinute - windowMinutes && minute >= 0; minute--) {
+        window.add(minutes[(int) (minute % MAX_WINDOW_MINUTES)]);
+      }
+      return Hll64WithBiasCorrection.unionCardinality(window);
+    }
+  }
+
+  static SlidingHll64 slidingOf(Stream stream)
+  {
+    final SlidingHll64 sliding = new SlidingHll64(stream.precision, MAX_WINDOW_MINUTES * MINUTE);
+    for (int i = 0; i < stream.events; i++) {
+      sliding.add(stream.timestamps[i], stream.values[i]);
+    }
+    return sliding;
+  }
+
+  static Ring ringOf(Stream stream)
+  {
+    final Ring ring = new Ring(stream.precision);
+    for (int i = 0; i < stream.events; i++) {
+      ring.add(stream.timestamps[i], stream.values[i]);
+    }
+    return ring;
+  }
+
+  @Benchmark
+  public SlidingHll64 ingestSliding(Stream stream)
+  {
+    return slidingOf(stream);
+  }
+
+  @Benchmark
+  public Ring ingestRing(Stream stream)
+  {
+    return ringOf(stream);
+  }
+
+  @Benchmark
+  public long querySliding(Stream stream)
+  {
+    final long now = stream.sliding.latestTimestamp();
+    long total = 0;
+    for (int minutes : WINDOW_MINUTES) {
+      total += stream.sliding.cardinality(now, minutes * MINUTE);
+    }
+    return total;
+  }
+
+  @Benchmark
+  public long queryRing(Stream stream)
+  {
+    long total = 0;
+    for (int minutes : WINDOW_MINUTES) {
+      total += stream.ring.cardinality(minutes);
+    }
+    return total;
+  }
+}
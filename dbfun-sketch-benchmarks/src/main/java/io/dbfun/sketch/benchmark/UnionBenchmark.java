@@ -0,0 +1,106 @@
+package io.dbfun.sketch.benchmark;
+
+import io.dbfun.sketch.CardinalityEstimator;
+import io.dbfun.sketch.CardinalityEstimators;
+import io.dbfun.sketch.ParallelUnion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unions many dense sketches, as a rollup query does: merging them one after the other into a new sketch,
+ * against {@link CardinalityEstimators#unionAll(List)} and {@link CardinalityEstimators#unionCardinality(List)},
+ * and their {@link ParallelUnion} counterparts on the common pool.
+ *
+ * <p>Has its own parameters as only the estimators with registers are of interest here,
+ * each sketch holds enough values to be dense.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnionBenchmark
+{
+  private static final long SEED = 0x5eed_cafe_f00dL;
+  private static final int VALUES_PER_SKETCH = 20_000;
+
+  @State(Scope.Benchmark)
+  public static class Sketches
+  {
+    @Param({"hllraw", "hllraw+packed", "hllraw+incremental", "hllnobias", "hllnobias+packed", "combined"})
+    public String estimator;
+
+    @Param({"14", "16"})
+    public int precision;
+
+    @Param({"100", "1000"})
+    public int sketches;
+
+    List<CardinalityEstimator> estimators;
+
+    @Setup(Level.Trial)
+    public void build()
+    {
+      final String name = EstimatorState.estimatorName(estimator, precision);
+      final Random random = new Random(SEED);
+      estimators = new ArrayList<>(sketches);
+      for (int i = 0; i < sketches; i++) {
+        CardinalityEstimator estimator = CardinalityEstimators.get(name);
+        for (int j = 0; j < VALUES_PER_SKETCH; j++) {
+          estimator.add(random.nextLong());
+        }
+        estimators.add(estimator);
+      }
+    }
+  }
+
+  @Benchmark
+  @SuppressWarnings("unchecked")
+  public long mergeLoop(Sketches sketches)
+  {
+    final CardinalityEstimator union = CardinalityEstimators.get(sketches.estimators.get(0).name());
+    for (CardinalityEstimator estimator : sketches.estimators) {
+      union.merge(estimator);
+    }
+    return union.cardinality();
+  }
+
+  @Benchmark
+  public long unionAll(Sketches sketches)
+  {
+    return CardinalityEstimators.unionAll(sketches.estimators).cardinality();
+  }
+
+  @Benchmark
+  public long unionCardinality(Sketches sketches)
+  {
+    return CardinalityEstimators.unionCardinality(sketches.estimators);
+  }
+
+  @Benchmark
+  public long parallelUnionAll(Sketches sketches)
+  {
+    return ParallelUnion.unionAll(sketches.estimators).cardinality();
+  }
+
+  @Benchmark
+  public long parallelUnionCardinality(Sketches sketches)
+  {
+    return ParallelUnion.unionCardinality(sketches.estimators);
+  }
+}
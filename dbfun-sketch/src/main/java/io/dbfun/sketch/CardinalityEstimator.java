@@ -1,13 +1,105 @@
 package io.dbfun.sketch;
 
+import java.nio.ByteBuffer;
+
 public interface CardinalityEstimator<T>
 {
   void add(byte[] value);
+
+  /**
+   * Same as add(Arrays.copyOfRange(value, offset, offset + length)) without copying.
+   */
+  void add(byte[] value, int offset, int length);
+
+  /**
+   * Add the remaining bytes of `value` without changing its position.
+   */
+  void add(ByteBuffer value);
+
+  /**
+   * Same as add(value.toString().getBytes(UTF_8)) without encoding into a new array.
+   */
+  void add(CharSequence value);
+
   void add(long value);
 
+  /**
+   * Add a value by its 64-bit hash, the one add() computes from the value with the estimator's hash function:
+   * {@link Murmur3#hash64(long)} and its overloads for the default murmur3_128 (except for {@link UniqCounter},
+   * which hashes longs with {@link Murmur3#fmix64(long)}), {@code padToLong()} of the HashCode for other functions.
+   * add(value) is then the same as addHash(hash), see {@link FanOut} to hash a value once for several estimators.
+   *
+   * <p>Which bits of `hash` are used depends on the estimator, see implementations.
+   */
+  void addHash(long hash);
+
+  /**
+   * Same as add(values[i]) for i in [offset, offset + length).
+   */
+  default void add(long[] values, int offset, int length)
+  {
+    add(values, offset, length, null);
+  }
+
+  /**
+   * Same as add(values[i]) for i in [offset, offset + length) whose bit is set in `selection`,
+   * such as a column's validity bitmap.
+   *
+   * @param selection bit i of value i at {@code selection[i >>> 6] & (1L << i)}, counting from the start of
+   * `values`, or null to add all values
+   */
+  default void add(long[] values, int offset, int length, long[] selection)
+  {
+    for (int i = offset; i < offset + length; i++) {
+      if (selection == null || (selection[i >>> 6] & (1L << i)) != 0) {
+        add(values[i]);
+      }
+    }
+  }
+
+  /**
+   * Same as add(data, offsets[i], offsets[i + 1] - offsets[i]) for i in [offset, offset + length),
+   * the layout of variable-length columns: value i ends where value i + 1 starts.
+   */
+  default void add(byte[] data, int[] offsets, int offset, int length)
+  {
+    add(data, offsets, offset, length, null);
+  }
+
+  /**
+   * Same as {@link #add(byte[], int[], int, int)} for the values whose bit is set in `selection`.
+   *
+   * @param selection bit i of value i as in {@link #add(long[], int, int, long[])}, or null to add all values
+   */
+  default void add(byte[] data, int[] offsets, int offset, int length, long[] selection)
+  {
+    for (int i = offset; i < offset + length; i++) {
+      if (selection == null || (selection[i >>> 6] & (1L << i)) != 0) {
+        add(data, offsets[i], offsets[i + 1] - offsets[i]);
+      }
+    }
+  }
+
   void merge(T that);
   long cardinality();
+
+  /**
+   * @return bytes retained by this estimator: its objects and arrays with their headers, unused hash table slots
+   * and the buffer regions read-only views wrap. Objects shared between estimators, such as the hash function,
+   * aren't counted. See {@link MemoryBudget} to bound the footprint of many estimators.
+   */
   long memoryFootprint();
 
   String name();
+
+  /**
+   * @return number of bytes {@link #serialize(ByteBuffer)} writes
+   */
+  int serializedSize();
+
+  /**
+   * Write this estimator to `out` in the format described in {@link SketchFormat}, advancing its position.
+   * Use {@link CardinalityEstimators#wrap(ByteBuffer)} to read it back.
+   */
+  void serialize(ByteBuffer out);
 }
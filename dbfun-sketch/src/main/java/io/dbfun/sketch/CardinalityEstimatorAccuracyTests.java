@@ -22,17 +22,17 @@ public class CardinalityEstimatorAccuracyTests
 
   /**
    * Run estimation on random generated data set of cardinality {1*fromCard, 2*fromCard, 3*fromCard, .., toCard}.
-   * `numRuns` experiments will be run for each cardinality.
+   * `numRuns` experiments will be run for each cardinality, all estimators get the same values in each run.
    *
-   * @param estimatorSupplier
+   * @param estimatorSuppliers
    * @param fromCard
    * @param toCard
    * @param numRuns
    *
-   * @return errors for each experiment, errors[i][j] = errors of cardinality i of the j-th run.
+   * @return errors for each experiment, errors[e][i][j] = errors of estimator e at cardinality i of the j-th run.
    */
-  private static double[][] testDifferentCardinalities(
-      Supplier<CardinalityEstimator> estimatorSupplier,
+  private static double[][][] testDifferentCardinalities(
+      List<Supplier<CardinalityEstimator>> estimatorSuppliers,
       final int fromCard,
       final int toCard,
       final int numRuns
@@ -41,18 +41,15 @@ public class CardinalityEstimatorAccuracyTests
     assert toCard > fromCard && toCard % fromCard == 0;
     final int numCard = toCard / fromCard;
 
-    double[][] errors = new double[numCard][];
-    for (int i = 0; i < numCard; i++) {
-      errors[i] = new double[numRuns];
-    }
+    double[][][] errors = new double[estimatorSuppliers.size()][numCard][numRuns];
 
     if (toCard <= 100_000) {
       // for low cardinality tests, generate random integer set
 
       ThreadLocalRandom random = ThreadLocalRandom.current();
       for (int run = 0; run < numRuns; run++) {
-        // reset estimator and set at the begining of each run
-        CardinalityEstimator estimator = estimatorSupplier.get();
+        // reset estimators and set at the begining of each run
+        CardinalityEstimator[] estimators = newEstimators(estimatorSuppliers);
         Set<Long> set = new HashSet<>();
         final long start = System.currentTimeMillis();
 
@@ -66,12 +63,12 @@ public class CardinalityEstimatorAccuracyTests
             shouldRetry = !set.add(value);
           } while (shouldRetry);
 
-          estimator.add(value);
+          for (CardinalityEstimator estimator : estimators) {
+            estimator.add(value);
+          }
 
           if (card % fromCard == 0) {
-            double est = estimator.cardinality();
-            double error = 100.0 * (est - card) / card;
-            errors[card / fromCard - 1][run] = Math.abs(error);
+            recordErrors(estimators, card, errors, card / fromCard - 1, run);
           }
         }
         System.out.printf("Finish run #%d in %,d ms%n", run, System.currentTimeMillis() - start);
@@ -83,17 +80,18 @@ public class CardinalityEstimatorAccuracyTests
 
       for (int run = 0; run < numRuns; run++) {
         FastRandomIdGenerator randomIdGenerator = new FastRandomIdGenerator();
-        CardinalityEstimator estimator = estimatorSupplier.get();
+        CardinalityEstimator[] estimators = newEstimators(estimatorSuppliers);
         final long start = System.currentTimeMillis();
 
         // estimate cardinality of 1*startCard, 2*startCard, 3*startCard, .., maxCard
         for (int card = 1; card <= toCard; card++) {
-          estimator.add(randomIdGenerator.generate());
+          final byte[] id = randomIdGenerator.generate();
+          for (CardinalityEstimator estimator : estimators) {
+            estimator.add(id);
+          }
 
           if (card % fromCard == 0) {
-            double est = estimator.cardinality();
-            double error = 100.0 * (est - card) / card;
-            errors[card / fromCard - 1][run] = Math.abs(error);
+            recordErrors(estimators, card, errors, card / fromCard - 1, run);
           }
         }
         System.out.printf("Finish run #%d in %,d ms%n", run, System.currentTimeMillis() - start);
@@ -103,14 +101,40 @@ public class CardinalityEstimatorAccuracyTests
     return errors;
   }
 
+  private static CardinalityEstimator[] newEstimators(List<Supplier<CardinalityEstimator>> estimatorSuppliers)
+  {
+    CardinalityEstimator[] estimators = new CardinalityEstimator[estimatorSuppliers.size()];
+    for (int e = 0; e < estimators.length; e++) {
+      estimators[e] = estimatorSuppliers.get(e).get();
+    }
+    return estimators;
+  }
+
+  private static void recordErrors(CardinalityEstimator[] estimators, int card, double[][][] errors, int i, int run)
+  {
+    for (int e = 0; e < estimators.length; e++) {
+      double est = estimators[e].cardinality();
+      double error = 100.0 * (est - card) / card;
+      errors[e][i][run] = Math.abs(error);
+    }
+  }
+
+  /**
+   * `estimators` is a name or a comma-separated list of names, such as "hllraw14,hllraw14+ertl,hllraw14+loglog_beta"
+   * to compare estimates on the same values: the results of each estimator are then written side by side.
+   */
   public static void main(String[] args) throws IOException
   {
     if (args.length < 4 || args.length > 5) {
-      System.err.println("Arguments: <estimator> <from> <to> <runs> [<outFile>]");
+      System.err.println("Arguments: <estimators> <from> <to> <runs> [<outFile>]");
       System.exit(1);
     }
 
-    Supplier<CardinalityEstimator> estimatorSupplier = CardinalityEstimators.lazyGet(args[0]);
+    final List<String> names = Arrays.asList(args[0].split(","));
+    List<Supplier<CardinalityEstimator>> estimatorSuppliers = new ArrayList<>(names.size());
+    for (String name : names) {
+      estimatorSuppliers.add(CardinalityEstimators.lazyGet(name));
+    }
     final int fromCard = Integer.parseInt(args[1]);
     final int toCard = Integer.parseInt(args[2]);
     final int numRuns = Integer.parseInt(args[3]);
@@ -122,28 +146,37 @@ public class CardinalityEstimatorAccuracyTests
     if (args.length == 5) {
       outFile = Paths.get(args[4]);
     } else {
-      outFile = Paths.get(String.format("%s_%d_%d_%d.tsv", args[0], fromCard, toCard, numRuns));
+      outFile = Paths.get(String.format("%s_%d_%d_%d.tsv", args[0].replace(',', '_'), fromCard, toCard, numRuns));
     }
 
-    final double[][] errors = testDifferentCardinalities(estimatorSupplier, fromCard, toCard, numRuns);
-    // compute min, 50%, max error for each cardinality
-    List<OneResult> results = new ArrayList<>(errors.length);
-    for (int i = 0; i < errors.length; i++) {
-      long cardinality = (i + 1) * fromCard;
-      results.add(OneResult.from(cardinality, errors[i]));
+    final double[][][] errors = testDifferentCardinalities(estimatorSuppliers, fromCard, toCard, numRuns);
+    // compute min, 50%, max error for each estimator and cardinality
+    List<List<OneResult>> results = new ArrayList<>(errors.length);
+    for (double[][] estimatorErrors : errors) {
+      List<OneResult> estimatorResults = new ArrayList<>(estimatorErrors.length);
+      for (int i = 0; i < estimatorErrors.length; i++) {
+        long cardinality = (i + 1) * fromCard;
+        estimatorResults.add(OneResult.from(cardinality, estimatorErrors[i]));
+      }
+      results.add(estimatorResults);
     }
 
     System.out.println("Writing results to " + outFile);
     try (BufferedWriter writer = Files.newBufferedWriter(outFile, StandardCharsets.UTF_8)) {
-      writer.write("Card\tMin\tMedian\tMax\n");
-      for (OneResult result : results) {
-        writer.write(String.format(
-            "%d\t%.3f\t%.3f\t%.3f\n",
-            result.cardinality,
-            result.minError,
-            result.medianError,
-            result.maxError
-        ));
+      writer.write("Card");
+      for (String name : names) {
+        // a single estimator keeps the plain column names
+        final String prefix = names.size() == 1 ? "" : name + " ";
+        writer.write(String.format("\t%sMin\t%sMedian\t%sMax", prefix, prefix, prefix));
+      }
+      writer.write("\n");
+      for (int i = 0; i < toCard / fromCard; i++) {
+        writer.write(Long.toString(results.get(0).get(i).cardinality));
+        for (List<OneResult> estimatorResults : results) {
+          final OneResult result = estimatorResults.get(i);
+          writer.write(String.format("\t%.3f\t%.3f\t%.3f", result.minError, result.medianError, result.maxError));
+        }
+        writer.write("\n");
       }
     }
   }
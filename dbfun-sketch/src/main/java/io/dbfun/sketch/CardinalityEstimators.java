@@ -3,31 +3,195 @@ package io.dbfun.sketch;
 import com.google.common.base.Supplier;
 import com.google.common.hash.Hashing;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
 public final class CardinalityEstimators
 {
   private static final int DEFAULT_PRECISION = 14;
 
+  /**
+   * @param name estimator name, HyperLogLog estimators accept {@link HllOption} suffixes such as "hllraw14+packed"
+   * or the table-free estimates "hllnobias20+ertl" and "hllraw14+loglog_beta", see {@link Hll16Combined} for the
+   * names of combined estimators such as "combined12",
+   * any name but "uniqoffheap" can be prefixed with "striped:" for a {@link StripedCardinalityEstimator}.
+   * "uniqoffheap" estimators hold native memory until closed, see {@link OffHeapUniqCounter}
+   */
   public static CardinalityEstimator get(String name)
   {
-    if (name.startsWith("hllraw")) {
-      String pStr = name.substring("hllraw".length());
+    if (name.startsWith(StripedCardinalityEstimator.NAME_PREFIX)) {
+      return new StripedCardinalityEstimator(name.substring(StripedCardinalityEstimator.NAME_PREFIX.length()));
+    }
+    final int optionsStart = name.indexOf('+');
+    final String baseName = optionsStart < 0 ? name : name.substring(0, optionsStart);
+    final Set<HllOption> options = HllOption.parse(optionsStart < 0 ? "" : name.substring(optionsStart + 1));
+
+    if (baseName.startsWith("hllraw")) {
+      String pStr = baseName.substring("hllraw".length());
       int precision = pStr.isEmpty() ? DEFAULT_PRECISION : Integer.parseInt(pStr);
-      return new HllRaw(precision, Hashing.murmur3_128());
+      return new HllRaw(precision, Hashing.murmur3_128(), options);
     }
-    if (name.startsWith("hllnobias")) {
-      String pStr = name.substring("hllnobias".length());
+    if (baseName.startsWith("hllnobias")) {
+      String pStr = baseName.substring("hllnobias".length());
       int precision = pStr.isEmpty() ? DEFAULT_PRECISION : Integer.parseInt(pStr);
-      return new Hll64WithBiasCorrection(precision, Hashing.murmur3_128());
+      return new Hll64WithBiasCorrection(precision, Hashing.murmur3_128(), options);
+    }
+    if (baseName.startsWith("combined")) {
+      // "combined" + precision + optional ":" + tableThreshold
+      final String spec = baseName.substring("combined".length());
+      final int thresholdStart = spec.indexOf(':');
+      final String pStr = thresholdStart < 0 ? spec : spec.substring(0, thresholdStart);
+      final int precision = pStr.isEmpty() ? Hll16Combined.DEFAULT_PRECISION : Integer.parseInt(pStr);
+      if (thresholdStart < 0) {
+        return new Hll16Combined(precision, Hashing.murmur3_128(), options);
+      }
+      final int tableThreshold = Integer.parseInt(spec.substring(thresholdStart + 1));
+      return new Hll16Combined(precision, tableThreshold, Hashing.murmur3_128(), options);
+    }
+    if (!options.isEmpty()) {
+      throw new IllegalArgumentException("Estimator " + baseName + " doesn't accept options : " + options);
     }
     if (name.equals("uniq")) {
       return new UniqCounter();
     }
-    if (name.equals("combined")) {
-      return new Hll16Combined(Hashing.murmur3_128());
+    if (name.equals("uniqoffheap")) {
+      return new OffHeapUniqCounter();
+    }
+    if (name.startsWith("hllconcurrent")) {
+      String pStr = name.substring("hllconcurrent".length());
+      int precision = pStr.isEmpty() ? DEFAULT_PRECISION : Integer.parseInt(pStr);
+      return new ConcurrentHll64(precision, Hashing.murmur3_128());
     }
     throw new IllegalArgumentException("Unknown estimator : " + name);
   }
 
+  /**
+   * @return a read-only view over an estimator serialized by {@link CardinalityEstimator#serialize(ByteBuffer)},
+   * starting at the position of `in`
+   */
+  public static CardinalityEstimator wrap(ByteBuffer in)
+  {
+    final byte type = SketchFormat.type(in);
+    switch (type) {
+      case SketchFormat.TYPE_HLLRAW:
+        return HllRaw.wrap(in);
+      case SketchFormat.TYPE_HLLNOBIAS:
+        return Hll64WithBiasCorrection.wrap(in);
+      case SketchFormat.TYPE_UNIQ:
+        return UniqCounter.wrap(in);
+      case SketchFormat.TYPE_COMBINED:
+        return Hll16Combined.wrap(in);
+      default:
+        throw new IllegalArgumentException("Unknown estimator type : " + type);
+    }
+  }
+
+  /**
+   * @return a heap buffer holding the serialized estimator, ready to be read
+   */
+  public static ByteBuffer serialize(CardinalityEstimator estimator)
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(estimator.serializedSize());
+    estimator.serialize(buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Union of estimators of the same type in one pass where the type supports it, such as
+   * {@link HllRaw#unionAll(List)}, otherwise by merging them into a new estimator of the same name.
+   * See {@link ParallelUnion} to use several threads.
+   *
+   * <p>The union of {@link OffHeapUniqCounter}s is a new OffHeapUniqCounter holding native memory: the caller
+   * owns it and must close it.
+   */
+  public static CardinalityEstimator unionAll(List<? extends CardinalityEstimator> estimators)
+  {
+    return unionAll(estimators, null);
+  }
+
+  /**
+   * Same as unionAll(estimators).cardinality(), without building the union where the type supports it.
+   */
+  public static long unionCardinality(List<? extends CardinalityEstimator> estimators)
+  {
+    return unionCardinality(estimators, null);
+  }
+
+  /**
+   * @param pool where to run the union, see {@link ParallelUnion}, or null to run it in the calling thread
+   */
+  @SuppressWarnings("unchecked")
+  static CardinalityEstimator unionAll(List<? extends CardinalityEstimator> estimators, ForkJoinPool pool)
+  {
+    final CardinalityEstimator first = checkSameType(estimators);
+    if (first instanceof HllRaw) {
+      return HllRaw.unionAll((List<HllRaw>) estimators, pool);
+    }
+    if (first instanceof Hll64WithBiasCorrection) {
+      return Hll64WithBiasCorrection.unionAll((List<Hll64WithBiasCorrection>) estimators, pool);
+    }
+    if (first instanceof Hll16Combined) {
+      return Hll16Combined.unionAll((List<Hll16Combined>) estimators, pool);
+    }
+    if (pool != null) {
+      return ParallelUnion.reduce(pool, estimators);
+    }
+    final CardinalityEstimator union = get(first.name());
+    for (CardinalityEstimator estimator : estimators) {
+      union.merge(estimator);
+    }
+    return union;
+  }
+
+  @SuppressWarnings("unchecked")
+  static long unionCardinality(List<? extends CardinalityEstimator> estimators, ForkJoinPool pool)
+  {
+    final CardinalityEstimator first = checkSameType(estimators);
+    if (first instanceof HllRaw) {
+      return HllRaw.unionCardinality((List<HllRaw>) estimators, pool);
+    }
+    if (first instanceof Hll64WithBiasCorrection) {
+      return Hll64WithBiasCorrection.unionCardinality((List<Hll64WithBiasCorrection>) estimators, pool);
+    }
+    if (first instanceof Hll16Combined) {
+      return Hll16Combined.unionCardinality((List<Hll16Combined>) estimators, pool);
+    }
+    final CardinalityEstimator union = unionAll(estimators, pool);
+    try {
+      return union.cardinality();
+    }
+    finally {
+      close(union);
+    }
+  }
+
+  /**
+   * Release the native memory of an estimator built internally, such as an intermediate union.
+   */
+  static void close(CardinalityEstimator estimator)
+  {
+    if (estimator instanceof OffHeapUniqCounter) {
+      ((OffHeapUniqCounter) estimator).close();
+    }
+  }
+
+  private static CardinalityEstimator checkSameType(List<? extends CardinalityEstimator> estimators)
+  {
+    if (estimators.isEmpty()) {
+      throw new IllegalArgumentException("nothing to union");
+    }
+    final CardinalityEstimator first = estimators.get(0);
+    for (CardinalityEstimator estimator : estimators) {
+      if (estimator.getClass() != first.getClass()) {
+        throw new IllegalArgumentException("can't union " + estimator.name() + " with " + first.name());
+      }
+    }
+    return first;
+  }
+
   public static Supplier<CardinalityEstimator> lazyGet(String name)
   {
     return () -> get(name);
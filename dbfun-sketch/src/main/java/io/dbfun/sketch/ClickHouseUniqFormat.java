@@ -0,0 +1,187 @@
+package io.dbfun.sketch;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes {@link UniqCounter} and {@link OffHeapUniqCounter} in the binary format of ClickHouse's
+ * UniquesHashSet, the state of AggregateFunction(uniq, T) columns and of uniqState():
+ * skip degree (1 byte), count (unsigned LEB128 varint, including zero), then 0 if the set has zero, then the
+ * non-zero hash values (4 bytes little-endian each).
+ *
+ * <p>Counters are ports of UniquesHashSet: after reading or merging the same states, their cardinality is the
+ * one ClickHouse returns. ClickHouse hashes integers with intHash64, which is {@link Murmur3#fmix64(long)} like
+ * UniqCounter, and other types with other functions: states built on both sides mix as long as the values were
+ * hashed the same way, see {@link CardinalityEstimator#addHash(long)}.
+ *
+ * <p>States are merged from streams hash by hash, like UniquesHashSet::readAndMerge(), without building a
+ * counter per state.
+ */
+public final class ClickHouseUniqFormat
+{
+  // values read from a stream at a time
+  private static final int BATCH_SIZE = 1024;
+
+  private ClickHouseUniqFormat()
+  {
+  }
+
+  public static void write(UniqCounter counter, OutputStream out) throws IOException
+  {
+    write(CardinalityEstimators.serialize(counter), out);
+  }
+
+  public static void write(OffHeapUniqCounter counter, OutputStream out) throws IOException
+  {
+    write(CardinalityEstimators.serialize(counter), out);
+  }
+
+  /**
+   * Transcode a counter serialized by {@link UniqCounter#serialize(ByteBuffer)}, the values are written as they are.
+   */
+  private static void write(ByteBuffer serialized, OutputStream out) throws IOException
+  {
+    final ByteBuffer body = SketchFormat.body(serialized);
+    final int skipDegree = body.get(0);
+    final boolean hasZero = body.get(1) != 0;
+    final int count = body.getInt(4);
+    out.write(skipDegree);
+    writeVarUInt(count, out);
+    if (hasZero) {
+      out.write(new byte[Integer.BYTES]);
+    }
+    // both formats write the values little-endian
+    out.write(body.array(), body.arrayOffset() + 8, (count - (hasZero ? 1 : 0)) * Integer.BYTES);
+  }
+
+  private static void writeVarUInt(int value, OutputStream out) throws IOException
+  {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /**
+   * @return a new counter with the next state of `in`
+   * @throws EOFException if `in` ends before the end of the state
+   */
+  public static UniqCounter read(InputStream in) throws IOException
+  {
+    final UniqCounter counter = new UniqCounter();
+    if (!readAndMerge(in, counter, new byte[BATCH_SIZE * Integer.BYTES])) {
+      throw new EOFException("no uniq state to read");
+    }
+    return counter;
+  }
+
+  /**
+   * Merge the next state of `in` into `target`.
+   *
+   * @return false if `in` was at its end, true if a state was merged
+   * @throws EOFException if `in` ends within the state
+   */
+  public static boolean readAndMerge(InputStream in, UniqCounter target) throws IOException
+  {
+    return readAndMerge(in, target, new byte[BATCH_SIZE * Integer.BYTES]);
+  }
+
+  public static boolean readAndMerge(InputStream in, OffHeapUniqCounter target) throws IOException
+  {
+    return readAndMerge(in, target, new byte[BATCH_SIZE * Integer.BYTES]);
+  }
+
+  /**
+   * Merge all states of `in` into `target`, until the end of `in`.
+   *
+   * @return number of states merged
+   */
+  public static int mergeAll(InputStream in, UniqCounter target) throws IOException
+  {
+    final byte[] scratch = new byte[BATCH_SIZE * Integer.BYTES];
+    int states = 0;
+    while (readAndMerge(in, target, scratch)) {
+      states++;
+    }
+    return states;
+  }
+
+  public static int mergeAll(InputStream in, OffHeapUniqCounter target) throws IOException
+  {
+    final byte[] scratch = new byte[BATCH_SIZE * Integer.BYTES];
+    int states = 0;
+    while (readAndMerge(in, target, scratch)) {
+      states++;
+    }
+    return states;
+  }
+
+  /**
+   * @param target a UniqCounter or an OffHeapUniqCounter
+   */
+  private static boolean readAndMerge(InputStream in, CardinalityEstimator target, byte[] scratch)
+      throws IOException
+  {
+    final int skipDegree = in.read();
+    if (skipDegree < 0) {
+      return false;
+    }
+    if (skipDegree > Integer.SIZE - UniqCounter.BITS_FOR_SKIP) {
+      throw new IllegalArgumentException("invalid uniq state : skip degree " + skipDegree);
+    }
+    final long count = readVarUInt(in);
+    if (count > UniqCounter.MAX_SIZE) {
+      throw new IllegalArgumentException("invalid uniq state : " + count + " values");
+    }
+    if (target instanceof UniqCounter) {
+      ((UniqCounter) target).raiseSkipDegree(skipDegree);
+    } else {
+      ((OffHeapUniqCounter) target).raiseSkipDegree(skipDegree);
+    }
+    for (int remaining = (int) count; remaining > 0; ) {
+      final int batch = Math.min(remaining, BATCH_SIZE);
+      readFully(in, scratch, batch * Integer.BYTES);
+      for (int i = 0; i < batch; i++) {
+        final int offset = i * Integer.BYTES;
+        final int hash = (scratch[offset] & 0xff)
+                         | (scratch[offset + 1] & 0xff) << 8
+                         | (scratch[offset + 2] & 0xff) << 16
+                         | (scratch[offset + 3] & 0xff) << 24;
+        target.addHash(hash);
+      }
+      remaining -= batch;
+    }
+    return true;
+  }
+
+  private static long readVarUInt(InputStream in) throws IOException
+  {
+    long value = 0;
+    for (int shift = 0; shift < Long.SIZE; shift += 7) {
+      final int b = in.read();
+      if (b < 0) {
+        throw new EOFException("uniq state ends within its count");
+      }
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("invalid uniq state : count is too long");
+  }
+
+  private static void readFully(InputStream in, byte[] buf, int length) throws IOException
+  {
+    for (int read = 0; read < length; ) {
+      final int n = in.read(buf, read, length - read);
+      if (n < 0) {
+        throw new EOFException("uniq state ends within its values");
+      }
+      read += n;
+    }
+  }
+}
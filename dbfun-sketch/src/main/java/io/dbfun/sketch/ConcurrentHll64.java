@@ -0,0 +1,181 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+/**
+ * Thread-safe, lock-free variant of dense {@link Hll64WithBiasCorrection} with {@link HllOption#PACKED} registers,
+ * so that many ingest threads can share one sketch instead of each keeping a copy.
+ *
+ * <p>Registers are updated with a compare-and-set max on their packed word, see
+ * {@link Registers.AtomicPackedRegisters}. All methods can be called concurrently: {@link #cardinality()}
+ * and {@link #serialize(ByteBuffer)} see every add() that completed before they started, and any subset of
+ * the adds running concurrently.
+ *
+ * <p>Serializes as a packed "hllnobias" sketch, which {@link CardinalityEstimators#wrap(ByteBuffer)} reads back
+ * as a (single-threaded) {@link Hll64WithBiasCorrection}.
+ */
+public class ConcurrentHll64 implements CardinalityEstimator<ConcurrentHll64>
+{
+  private static final int BITS_PER_REGISTER = 6;
+
+  private final int p;
+  private final ValueHasher hasher;
+  private final Registers registers;
+
+  public ConcurrentHll64(int precision, HashFunction hashFunction)
+  {
+    Preconditions.checkArgument(
+        precision >= 7 && precision < 31,
+        "invalid precision [%d] : should be in [7, 32)"
+    );
+    this.p = precision;
+    this.hasher = ValueHasher.of(hashFunction);
+    this.registers = Registers.createConcurrent(p, BITS_PER_REGISTER);
+  }
+
+  @Override
+  public void add(byte[] value)
+  {
+    add(value, 0, value.length);
+  }
+
+  @Override
+  public void add(byte[] value, int offset, int length)
+  {
+    add64BitsHash(hasher.hash(value, offset, length));
+  }
+
+  @Override
+  public void add(ByteBuffer value)
+  {
+    add64BitsHash(hasher.hash(value));
+  }
+
+  @Override
+  public void add(CharSequence value)
+  {
+    add64BitsHash(hasher.hash(value));
+  }
+
+  @Override
+  public void add(long value)
+  {
+    add64BitsHash(hasher.hash(value));
+  }
+
+  @Override
+  public void add(long[] values, int offset, int length, long[] selection)
+  {
+    final long[] hashes = ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, hasher.hash(values, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  @Override
+  public void add(byte[] data, int[] offsets, int offset, int length, long[] selection)
+  {
+    final long[] hashes = ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, hasher.hash(data, offsets, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  /**
+   * Uses the bits of `hash` like {@link Hll64WithBiasCorrection#addHash(long)}.
+   */
+  @Override
+  public void addHash(long hash)
+  {
+    add64BitsHash(hash);
+  }
+
+  ValueHasher hasher()
+  {
+    return hasher;
+  }
+
+  private void addHashes(long[] hashes, int count)
+  {
+    for (int i = 0; i < count; i++) {
+      add64BitsHash(hashes[i]);
+    }
+  }
+
+  private void add64BitsHash(long hash)
+  {
+    final int bucket = (int) (hash >>> (Long.SIZE - p));
+    final int positionOfOne = Long.numberOfLeadingZeros((hash << p) | (1 << (p - 1))) + 1;
+    registers.updateMax(bucket, positionOfOne);
+  }
+
+  /**
+   * Safe to call while other threads add to this or `that`. Registers of a higher precision are folded to this
+   * precision, this sketch can't fold to a lower one under concurrent writers.
+   *
+   * @throws IllegalArgumentException if `that` has a lower precision
+   */
+  @Override
+  public void merge(ConcurrentHll64 that)
+  {
+    Preconditions.checkArgument(that.p >= p, "can't merge precision %s into %s", that.p, p);
+    if (that.p == p) {
+      registers.merge(that.registers, null);
+    } else {
+      Hll64WithBiasCorrection.fold(that.registers, registers, null);
+    }
+  }
+
+  /**
+   * Merge a single-threaded sketch of the same or a higher precision, such as one read by
+   * {@link CardinalityEstimators#wrap}, folding its registers to this precision. `that` must not be updated
+   * concurrently.
+   */
+  public void merge(Hll64WithBiasCorrection that)
+  {
+    Preconditions.checkArgument(that.precision() >= p, "can't merge precision %s into %s", that.precision(), p);
+    that.mergeInto(registers, null);
+  }
+
+  @Override
+  public long cardinality()
+  {
+    final int[] histogram = new int[Long.SIZE];
+    registers.histogram(histogram);
+    return Hll64WithBiasCorrection.denseCardinality(p, histogram);
+  }
+
+  @Override
+  public long memoryFootprint()
+  {
+    // the hasher is shared
+    return ObjectSizes.object(2, Integer.BYTES) + registers.retainedSize();
+  }
+
+  @Override
+  public String name()
+  {
+    return "hllconcurrent" + p;
+  }
+
+  @Override
+  public int serializedSize()
+  {
+    return SketchFormat.HEADER_SIZE + (int) registers.serializedSize();
+  }
+
+  @Override
+  public void serialize(ByteBuffer out)
+  {
+    SketchFormat.writeHeader(out, SketchFormat.TYPE_HLLNOBIAS, p, SketchFormat.PACKED, EnumSet.of(HllOption.PACKED));
+    ByteBuffer body = SketchFormat.startBody(out);
+    registers.writeTo(body);
+    SketchFormat.finishBody(out, body);
+  }
+}
@@ -0,0 +1,161 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Adds every value to a fixed list of estimators, such as the per-day, per-country and global counts of
+ * the same column, hashing it once per hash function instead of once per estimator.
+ *
+ * <p>Estimators are grouped by the hashes they compute: every value is hashed once per group and the hash is
+ * passed to {@link CardinalityEstimator#addHash(long)} of each estimator of the group. All estimators of this
+ * package with the default murmur3_128 hash function are in one group, except {@link UniqCounter} and
+ * {@link OffHeapUniqCounter} which hash longs differently. Estimators of unknown hashes get add() as usual.
+ *
+ * <p>Not thread-safe unless all estimators are.
+ */
+public final class FanOut
+{
+  private final List<CardinalityEstimator> estimators;
+  // estimators[i] get hashes of hashers[i]
+  private final ValueHasher[] hashers;
+  private final CardinalityEstimator[][] groups;
+  private final CardinalityEstimator[] others;
+
+  public FanOut(CardinalityEstimator... estimators)
+  {
+    this(Arrays.asList(estimators));
+  }
+
+  public FanOut(List<? extends CardinalityEstimator> estimators)
+  {
+    this.estimators = ImmutableList.copyOf(estimators);
+
+    final List<ValueHasher> hashers = new ArrayList<>();
+    final List<List<CardinalityEstimator>> groups = new ArrayList<>();
+    final List<CardinalityEstimator> others = new ArrayList<>();
+    for (CardinalityEstimator estimator : this.estimators) {
+      final ValueHasher hasher = hasher(estimator);
+      if (hasher == null) {
+        others.add(estimator);
+        continue;
+      }
+      int group = 0;
+      while (group < hashers.size() && !hashers.get(group).sameHashes(hasher)) {
+        group++;
+      }
+      if (group == hashers.size()) {
+        hashers.add(hasher);
+        groups.add(new ArrayList<>());
+      }
+      groups.get(group).add(estimator);
+    }
+
+    this.hashers = hashers.toArray(new ValueHasher[0]);
+    this.groups = new CardinalityEstimator[groups.size()][];
+    for (int i = 0; i < groups.size(); i++) {
+      this.groups[i] = groups.get(i).toArray(new CardinalityEstimator[0]);
+    }
+    this.others = others.toArray(new CardinalityEstimator[0]);
+  }
+
+  public List<CardinalityEstimator> estimators()
+  {
+    return estimators;
+  }
+
+  /**
+   * @return number of times every value is hashed, once per group of estimators sharing hashes
+   */
+  public int hashCount()
+  {
+    return hashers.length;
+  }
+
+  public void add(byte[] value)
+  {
+    add(value, 0, value.length);
+  }
+
+  public void add(byte[] value, int offset, int length)
+  {
+    Preconditions.checkPositionIndexes(offset, offset + length, value.length);
+    for (int i = 0; i < hashers.length; i++) {
+      addHash(groups[i], hashers[i].hash(value, offset, length));
+    }
+    for (CardinalityEstimator other : others) {
+      other.add(value, offset, length);
+    }
+  }
+
+  public void add(ByteBuffer value)
+  {
+    for (int i = 0; i < hashers.length; i++) {
+      addHash(groups[i], hashers[i].hash(value));
+    }
+    for (CardinalityEstimator other : others) {
+      other.add(value);
+    }
+  }
+
+  public void add(CharSequence value)
+  {
+    for (int i = 0; i < hashers.length; i++) {
+      addHash(groups[i], hashers[i].hash(value));
+    }
+    for (CardinalityEstimator other : others) {
+      other.add(value);
+    }
+  }
+
+  public void add(long value)
+  {
+    for (int i = 0; i < hashers.length; i++) {
+      addHash(groups[i], hashers[i].hash(value));
+    }
+    for (CardinalityEstimator other : others) {
+      other.add(value);
+    }
+  }
+
+  private static void addHash(CardinalityEstimator[] group, long hash)
+  {
+    for (CardinalityEstimator estimator : group) {
+      estimator.addHash(hash);
+    }
+  }
+
+  /**
+   * @return the hashes `estimator` computes in add(), null if unknown
+   */
+  static ValueHasher hasher(CardinalityEstimator estimator)
+  {
+    if (estimator instanceof HllRaw) {
+      return ((HllRaw) estimator).hasher();
+    }
+    if (estimator instanceof Hll64WithBiasCorrection) {
+      return ((Hll64WithBiasCorrection) estimator).hasher();
+    }
+    if (estimator instanceof Hll16Combined) {
+      return ((Hll16Combined) estimator).hasher();
+    }
+    if (estimator instanceof UniqCounter) {
+      return ((UniqCounter) estimator).hasher();
+    }
+    if (estimator instanceof OffHeapUniqCounter) {
+      return ((OffHeapUniqCounter) estimator).hasher();
+    }
+    if (estimator instanceof ConcurrentHll64) {
+      return ((ConcurrentHll64) estimator).hasher();
+    }
+    if (estimator instanceof StripedCardinalityEstimator) {
+      return ((StripedCardinalityEstimator) estimator).hasher();
+    }
+    return null;
+  }
+}
@@ -1,57 +1,464 @@
 package io.dbfun.sketch;
 
+import com.google.common.base.Preconditions;
 import com.google.common.hash.HashFunction;
-
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Exact set of 32-bit hashes that turns into an HLL of precision p (16 by default, hence the name) as it grows,
+ * through three states whose memory grows smoothly with the cardinality:
+ * <ol>
+ *   <li>a hash table, up to `tableThreshold` hashes (2^p / 64 by default),</li>
+ *   <li>a {@link SortedHashList}, about 3.5 bytes per hash, until it takes half the memory of the registers,</li>
+ *   <li>the registers.</li>
+ * </ol>
+ *
+ * <p>The conversion to registers doesn't copy the sorted list at once: its hashes are added to the registers
+ * {@value #DRAIN_STEP} at a time on every following add, and all at once before anything reads the registers.
+ * The list releases the hashes already added as it drains, so the sketch holds about 1.5 times the memory of its
+ * registers at most, and goes down to them as the list drains.
+ *
+ * <p>Named "combined" + p, with ":" + tableThreshold if not the default, such as "combined12" or
+ * "combined16:4096".
+ */
 public class Hll16Combined implements CardinalityEstimator<Hll16Combined>
 {
-  private static final int TO_HLL_THRESHOLD = 1 << 13;
+  static final int DEFAULT_PRECISION = 16;
+  // hashes of the sorted list added to the registers on each add after the conversion
+  private static final int DRAIN_STEP = 8;
 
+  private final int p;
+  private final int tableThreshold;
+  // HashTable, SortedHashList, HashTableView or Dense
   private Object state;
-  private final HashFunction hashFunction;
+  private final ValueHasher hasher;
+  private final boolean readOnly;
+  // maintain the register histogram of the HLL state, see HllOption.INCREMENTAL
+  private final boolean incremental;
+  // INCREMENTAL and the estimate of the HLL state, see HllEstimates
+  private final Set<HllOption> options;
+
+  // non-null while tracked by a budget, see MemoryBudget
+  private MemoryBudget budget;
 
   public Hll16Combined(HashFunction hashFunction)
   {
+    this(hashFunction, EnumSet.noneOf(HllOption.class));
+  }
+
+  /**
+   * @param options {@link HllOption#INCREMENTAL}, {@link HllOption#ERTL} and {@link HllOption#LOGLOG_BETA}
+   * are supported
+   */
+  public Hll16Combined(HashFunction hashFunction, Set<HllOption> options)
+  {
+    this(DEFAULT_PRECISION, hashFunction, options);
+  }
+
+  public Hll16Combined(int precision, HashFunction hashFunction, Set<HllOption> options)
+  {
+    this(precision, defaultTableThreshold(precision), hashFunction, options);
+  }
+
+  /**
+   * @param precision precision of the registers, in [7, 16]
+   * @param tableThreshold number of hashes kept in the hash table before the sorted list
+   * @param options {@link HllOption#INCREMENTAL}, {@link HllOption#ERTL} and {@link HllOption#LOGLOG_BETA}
+   * are supported
+   */
+  public Hll16Combined(int precision, int tableThreshold, HashFunction hashFunction, Set<HllOption> options)
+  {
+    Preconditions.checkArgument(
+        precision >= 7 && precision <= 16,
+        "invalid precision [%s] : should be in [7, 16]", precision
+    );
+    Preconditions.checkArgument(tableThreshold > 0, "invalid tableThreshold [%s]", tableThreshold);
+    Preconditions.checkArgument(
+        EnumSet.of(HllOption.INCREMENTAL, HllOption.ERTL, HllOption.LOGLOG_BETA).containsAll(options),
+        "combined doesn't support options %s", options
+    );
+    HllEstimates.checkOptions(options);
+    this.p = precision;
+    this.tableThreshold = tableThreshold;
     this.state = new HashTable();
-    this.hashFunction = hashFunction;
+    this.hasher = ValueHasher.of(hashFunction);
+    this.readOnly = false;
+    this.incremental = options.contains(HllOption.INCREMENTAL);
+    this.options = options.isEmpty() ? EnumSet.noneOf(HllOption.class) : EnumSet.copyOf(options);
+  }
+
+  private Hll16Combined(int precision, HashFunction hashFunction, Object readOnlyState, Set<HllOption> options)
+  {
+    this.p = precision;
+    this.tableThreshold = defaultTableThreshold(precision);
+    this.state = readOnlyState;
+    this.hasher = ValueHasher.of(hashFunction);
+    this.readOnly = true;
+    this.incremental = options.contains(HllOption.INCREMENTAL);
+    this.options = options.isEmpty() ? EnumSet.noneOf(HllOption.class) : EnumSet.copyOf(options);
+  }
+
+  private static int defaultTableThreshold(int precision)
+  {
+    return Math.max(1, (1 << precision) >>> 6);
+  }
+
+  public int precision()
+  {
+    return p;
+  }
+
+  /**
+   * Create a read-only view over an estimator serialized by {@link #serialize(ByteBuffer)}, hash values or
+   * registers are read from `in` instead of being copied. Assumes the default murmur3_128 hash function,
+   * the view has the default tableThreshold of its precision.
+   */
+  public static Hll16Combined wrap(ByteBuffer in)
+  {
+    SketchFormat.checkType(in, SketchFormat.TYPE_COMBINED);
+    // sketches serialized before precision was configurable wrote 0
+    final int precision = SketchFormat.precision(in) == 0 ? DEFAULT_PRECISION : SketchFormat.precision(in, 7, 16);
+    final ByteBuffer body = SketchFormat.body(in);
+    final Set<HllOption> options = SketchFormat.options(in);
+    if (SketchFormat.representation(in) == SketchFormat.HASH_SET) {
+      return new Hll16Combined(precision, Hashing.murmur3_128(), HashTableView.wrap(body), options);
+    }
+    final Registers registers = Registers.wrap(body, precision, Byte.SIZE, false);
+    return new Hll16Combined(precision, Hashing.murmur3_128(), new Dense(precision, registers, null), options);
+  }
+
+  /**
+   * Union of all `sketches` in a single pass over the registers of those in the HLL state, see
+   * {@link Registers#mergeAll}. Hash tables are added to the result afterwards.
+   * The result has the hash function, options and tableThreshold of the first sketch.
+   *
+   * @throws IllegalArgumentException if sketches have different precisions
+   */
+  public static Hll16Combined unionAll(List<Hll16Combined> sketches)
+  {
+    return unionAll(sketches, null);
+  }
+
+  /**
+   * @param pool where to merge registers and other sketches, see {@link ParallelUnion}, null for the calling thread
+   */
+  static Hll16Combined unionAll(List<Hll16Combined> sketches, ForkJoinPool pool)
+  {
+    Preconditions.checkArgument(!sketches.isEmpty(), "nothing to union");
+    final Hll16Combined first = sketches.get(0);
+    final Hll16Combined union = new Hll16Combined(
+        first.p,
+        first.tableThreshold,
+        first.hasher.hashFunction(),
+        first.options
+    );
+    final List<Registers> registers = registersOf(sketches);
+    if (!registers.isEmpty()) {
+      final Dense dense = new Dense(first.p, union.incremental);
+      ParallelUnion.mergeAll(pool, dense.registers, registers, dense.histogram);
+      union.state = dense;
+    }
+    final List<Hll16Combined> hashTables = new ArrayList<>();
+    for (Hll16Combined sketch : sketches) {
+      if (!(sketch.state instanceof Dense)) {
+        hashTables.add(sketch);
+      }
+    }
+    ParallelUnion.mergeAll(pool, union, hashTables);
+    return union;
+  }
+
+  /**
+   * Same as unionAll(sketches).cardinality(), merging into bare scratch registers instead of a new sketch
+   * as long as all sketches are in the HLL state.
+   */
+  public static long unionCardinality(List<Hll16Combined> sketches)
+  {
+    return unionCardinality(sketches, null);
+  }
+
+  static long unionCardinality(List<Hll16Combined> sketches, ForkJoinPool pool)
+  {
+    Preconditions.checkArgument(!sketches.isEmpty(), "nothing to union");
+    final List<Registers> registers = registersOf(sketches);
+    if (registers.size() < sketches.size()) {
+      return unionAll(sketches, pool).cardinality();
+    }
+    final int[] histogram = new int[Long.SIZE];
+    ParallelUnion.mergeAll(pool, registers.get(0).newInstance(), registers, histogram);
+    return Dense.cardinality(sketches.get(0).p, histogram, sketches.get(0).options);
+  }
+
+  /**
+   * @return the registers of the sketches in the dense state, with their pending hashes added
+   */
+  private static List<Registers> registersOf(List<Hll16Combined> sketches)
+  {
+    final int p = sketches.get(0).p;
+    final List<Registers> registers = new ArrayList<>(sketches.size());
+    for (Hll16Combined sketch : sketches) {
+      Preconditions.checkArgument(sketch.p == p, "can't union precision %s with %s", sketch.p, p);
+      if (sketch.state instanceof Dense) {
+        sketch.drainAll();
+        registers.add(((Dense) sketch.state).registers);
+      }
+    }
+    return registers;
   }
 
   @Override
   public void add(byte[] value)
   {
-    addHash(hashFunction.hashBytes(value).asInt());
+    add(value, 0, value.length);
+  }
+
+  @Override
+  public void add(byte[] value, int offset, int length)
+  {
+    addHash((int) hasher.hash(value, offset, length));
+  }
+
+  @Override
+  public void add(ByteBuffer value)
+  {
+    addHash((int) hasher.hash(value));
+  }
+
+  @Override
+  public void add(CharSequence value)
+  {
+    addHash((int) hasher.hash(value));
   }
 
   @Override
   public void add(long value)
   {
-    addHash(hashFunction.hashLong(value).asInt());
+    addHash((int) hasher.hash(value));
+  }
+
+  @Override
+  public void add(long[] values, int offset, int length, long[] selection)
+  {
+    final long[] hashes = ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, hasher.hash(values, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  @Override
+  public void add(byte[] data, int[] offsets, int offset, int length, long[] selection)
+  {
+    final long[] hashes = ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, hasher.hash(data, offsets, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  ValueHasher hasher()
+  {
+    return hasher;
+  }
+
+  MemoryBudget budget()
+  {
+    return budget;
   }
 
+  void budget(MemoryBudget budget)
+  {
+    this.budget = budget;
+  }
+
+  private void addHashes(long[] hashes, int count)
+  {
+    int i = 0;
+    while (!(state instanceof Dense) && i < count) {
+      addHash((int) hashes[i++]);
+    }
+    if (i < count) {
+      if (readOnly) {
+        throw SketchFormat.readOnly(this);
+      }
+      final Dense dense = (Dense) state;
+      while (dense.pending != null && i < count) {
+        dense.addHash((int) hashes[i++]);
+        drainStep(dense);
+      }
+      for (; i < count; i++) {
+        dense.addHash((int) hashes[i]);
+      }
+    }
+  }
+
+  /**
+   * Uses the low 32 bits of `hash`, see {@link #addHash(int)}.
+   */
+  @Override
+  public void addHash(long hash)
+  {
+    addHash((int) hash);
+  }
+
+  /**
+   * Values are kept as an exact set of their 32-bit hashes until the set takes more memory than the registers,
+   * then as an HLL with precision p: the high p bits are the register index, the rank is the number of leading
+   * zeros of the low 32 - p bits plus one (33 - p if they are all zero).
+   */
   public void addHash(int hash)
   {
+    if (readOnly) {
+      throw SketchFormat.readOnly(this);
+    }
     if (state instanceof HashTable) {
       HashTable table = (HashTable) state;
-      if (table.cardinality() < TO_HLL_THRESHOLD) {
+      if (table.cardinality() < tableThreshold) {
+        if (budget != null && table.count >= table.buf.length >>> 1) {
+          // a new value resizes the table
+          budget.reserve(this, ObjectSizes.array(table.buf.length << 1, Integer.BYTES));
+          table.addHash(hash);
+          budget.settle(this);
+          return;
+        }
         table.addHash(hash);
         return;
       }
-      state = table.toHll16();
+      toSortedList();
+    }
+    if (state instanceof SortedHashList) {
+      final SortedHashList list = (SortedHashList) state;
+      final long listFootprint = budget == null ? 0 : list.memoryFootprint();
+      list.add(hash);
+      if (outgrows(list)) {
+        toDense();
+      } else if (budget != null && list.memoryFootprint() != listFootprint) {
+        budget.settle(this);
+      }
+      return;
+    }
+    final Dense dense = (Dense) state;
+    dense.addHash(hash);
+    if (dense.pending != null) {
+      drainStep(dense);
     }
-    ((Hll16) state).addHash(hash);
   }
 
+  private void toSortedList()
+  {
+    final SortedHashList list = new SortedHashList();
+    ((HashTable) state).drainTo(list);
+    state = list;
+    if (budget != null) {
+      budget.settle(this);
+    }
+    if (outgrows(list)) {
+      toDense();
+    }
+  }
+
+  /**
+   * @return true once `list` takes half the memory of the registers: registers and the list drained into them
+   * take at most 1.5 times the memory of the registers at the switch
+   */
+  private boolean outgrows(SortedHashList list)
+  {
+    return 2 * list.memoryFootprint() > Dense.retainedSize(p, incremental);
+  }
+
+  /**
+   * Switch to registers, leaving the hashes of the sorted list pending, see {@link #drainStep(Dense)}.
+   */
+  private void toDense()
+  {
+    if (state instanceof HashTable) {
+      toSortedList();
+      if (state instanceof Dense) {
+        return;
+      }
+    }
+    if (budget != null) {
+      budget.reserve(this, Dense.retainedSize(p, incremental));
+    }
+    final SortedHashList list = (SortedHashList) state;
+    final Dense dense = new Dense(p, incremental);
+    // the list keeps zero out of its values
+    if (list.hasZero) {
+      dense.addHash(0);
+    }
+    dense.pending = list.reader();
+    state = dense;
+    if (budget != null) {
+      budget.settle(this);
+    }
+  }
+
+  /**
+   * Add the next {@value #DRAIN_STEP} pending hashes to the registers, releasing the hashes of the sorted list
+   * as they are added.
+   */
+  private void drainStep(Dense dense)
+  {
+    final long footprint = budget == null ? 0 : dense.memoryFootprint();
+    dense.drain(DRAIN_STEP);
+    if (budget != null && dense.memoryFootprint() != footprint) {
+      budget.settle(this);
+    }
+  }
+
+  /**
+   * Add all pending hashes to the registers, before reading them.
+   */
+  private void drainAll()
+  {
+    final Dense dense = (Dense) state;
+    if (dense.pending != null) {
+      dense.drain(Integer.MAX_VALUE);
+      if (budget != null) {
+        budget.settle(this);
+      }
+    }
+  }
+
+  /**
+   * Merge `that`, whose hashes are added one by one unless it is in the dense state.
+   *
+   * @throws IllegalArgumentException if both are in the dense state with different precisions
+   */
   @Override
   public void merge(Hll16Combined that)
   {
-    if (state instanceof HashTable && that.state instanceof Hll16) {
-      state = ((HashTable) state).toHll16();
+    if (readOnly) {
+      throw SketchFormat.readOnly(this);
     }
-    if (state instanceof Hll16 && that.state instanceof Hll16) {
-      // hashtable/hll merge hll
-      ((Hll16) state).merge((Hll16) that.state);
-    } else {
-      // hashtable/hll merge hashtable
+    if (that.state instanceof Dense) {
+      Preconditions.checkArgument(that.p == p, "can't merge precision %s into %s", that.p, p);
+      that.drainAll();
+      if (!(state instanceof Dense)) {
+        toDense();
+      }
+      // pending hashes of this sketch stay pending, adding them after the merge gives the same registers
+      ((Dense) state).merge((Dense) that.state);
+    } else if (that.state instanceof HashTable) {
       ((HashTable) that.state).drainTo(this);
+    } else if (that.state instanceof SortedHashList) {
+      final SortedHashList list = (SortedHashList) that.state;
+      final SortedHashList.Reader reader = list.reader();
+      while (reader.next()) {
+        addHash(reader.value);
+      }
+      if (list.hasZero) {
+        addHash(0);
+      }
+    } else {
+      ((HashTableView) that.state).drainTo(this);
     }
   }
 
@@ -61,22 +468,110 @@ public class Hll16Combined implements CardinalityEstimator<Hll16Combined>
     if (state instanceof HashTable) {
       return ((HashTable) state).cardinality();
     }
-    return ((Hll16) state).cardinality();
+    if (state instanceof SortedHashList) {
+      return ((SortedHashList) state).size();
+    }
+    if (state instanceof HashTableView) {
+      return ((HashTableView) state).count;
+    }
+    drainAll();
+    return ((Dense) state).cardinality(options);
   }
 
   @Override
   public long memoryFootprint()
   {
+    // the hasher is shared
+    final long shallowSize = ObjectSizes.object(4, 2 + 2 * Integer.BYTES) + ObjectSizes.ENUM_SET;
     if (state instanceof HashTable) {
-      return ((HashTable) state).memoryFootprint();
+      return shallowSize + ((HashTable) state).memoryFootprint();
     }
-    return ((Hll16) state).memoryFootprint();
+    if (state instanceof SortedHashList) {
+      return shallowSize + ((SortedHashList) state).memoryFootprint();
+    }
+    if (state instanceof HashTableView) {
+      return shallowSize + ((HashTableView) state).memoryFootprint();
+    }
+    return shallowSize + ((Dense) state).memoryFootprint();
   }
 
   @Override
   public String name()
   {
-    return "combined";
+    final String threshold = tableThreshold == defaultTableThreshold(p) ? "" : ":" + tableThreshold;
+    return "combined" + p + threshold + HllOption.suffix(options);
+  }
+
+  @Override
+  public int serializedSize()
+  {
+    if (state instanceof Dense) {
+      return SketchFormat.HEADER_SIZE + (int) ((Dense) state).registers.serializedSize();
+    }
+    final int numValues;
+    if (state instanceof HashTable) {
+      numValues = ((HashTable) state).count - (((HashTable) state).hasZero ? 1 : 0);
+    } else if (state instanceof SortedHashList) {
+      final SortedHashList list = (SortedHashList) state;
+      numValues = list.size() - (list.hasZero ? 1 : 0);
+    } else {
+      numValues = ((HashTableView) state).values.remaining() / Integer.BYTES;
+    }
+    return SketchFormat.HEADER_SIZE + HashTableView.HEADER_SIZE + Integer.BYTES * numValues;
+  }
+
+  /**
+   * Body is either the 2^p registers (1 byte each), or a hash set of
+   * has zero (1 byte), 3 reserved bytes, count (4 bytes) followed by the non-zero hash values (4 bytes each).
+   * The sorted list is written as a hash set, with its values in ascending order.
+   */
+  @Override
+  public void serialize(ByteBuffer out)
+  {
+    final boolean isHll = state instanceof Dense;
+    if (isHll) {
+      drainAll();
+    }
+    SketchFormat.writeHeader(
+        out,
+        SketchFormat.TYPE_COMBINED,
+        p,
+        isHll ? SketchFormat.DENSE : SketchFormat.HASH_SET,
+        options
+    );
+    ByteBuffer body = SketchFormat.startBody(out);
+    if (isHll) {
+      ((Dense) state).registers.writeTo(body);
+    } else if (state instanceof SortedHashList) {
+      final SortedHashList list = (SortedHashList) state;
+      body.put((byte) (list.hasZero ? 1 : 0));
+      body.put((byte) 0);
+      body.putShort((short) 0);
+      body.putInt(list.size());
+      final SortedHashList.Reader reader = list.reader();
+      while (reader.next()) {
+        body.putInt(reader.value);
+      }
+    } else if (state instanceof HashTable) {
+      HashTable table = (HashTable) state;
+      body.put((byte) (table.hasZero ? 1 : 0));
+      body.put((byte) 0);
+      body.putShort((short) 0);
+      body.putInt(table.count);
+      for (int hash : table.buf) {
+        if (hash != 0) {
+          body.putInt(hash);
+        }
+      }
+    } else {
+      HashTableView view = (HashTableView) state;
+      body.put((byte) (view.hasZero ? 1 : 0));
+      body.put((byte) 0);
+      body.putShort((short) 0);
+      body.putInt(view.count);
+      body.put(view.values.duplicate());
+    }
+    SketchFormat.finishBody(out, body);
   }
 
   private static final class HashTable
@@ -136,9 +631,12 @@ public class Hll16Combined implements CardinalityEstimator<Hll16Combined>
       return count;
     }
 
+    /**
+     * @return bytes retained by the table, including the empty slots
+     */
     public long memoryFootprint()
     {
-      return Integer.BYTES * buf.length;
+      return ObjectSizes.object(1, Integer.BYTES + 1) + ObjectSizes.sizeOf(buf);
     }
 
     public void drainTo(Hll16Combined that)
@@ -153,62 +651,148 @@ public class Hll16Combined implements CardinalityEstimator<Hll16Combined>
       }
     }
 
-    public Hll16 toHll16()
+    public void drainTo(SortedHashList list)
     {
-      Hll16 hll = new Hll16();
       for (int hash : buf) {
-        hll.addHash(hash);
+        if (hash != 0) {
+          list.add(hash);
+        }
+      }
+      if (hasZero) {
+        list.add(0);
+      }
+    }
+  }
+
+  /**
+   * Read-only hash table state over serialized hash values.
+   */
+  private static final class HashTableView
+  {
+    static final int HEADER_SIZE = 8;
+
+    final ByteBuffer values;
+    final int count;
+    final boolean hasZero;
+
+    private HashTableView(ByteBuffer values, int count, boolean hasZero)
+    {
+      this.values = values;
+      this.count = count;
+      this.hasZero = hasZero;
+    }
+
+    static HashTableView wrap(ByteBuffer body)
+    {
+      SketchFormat.checkBodySize(body, HEADER_SIZE);
+      final boolean hasZero = body.get(0) != 0;
+      final int count = body.getInt(4);
+      final int numValues = hasZero ? count - 1 : count;
+      if (numValues < 0) {
+        throw new IllegalArgumentException("invalid count : " + count);
+      }
+      SketchFormat.checkBodySize(body, HEADER_SIZE + (long) Integer.BYTES * numValues);
+      body.position(HEADER_SIZE);
+      body.limit(HEADER_SIZE + Integer.BYTES * numValues);
+      return new HashTableView(body.slice().order(body.order()), count, hasZero);
+    }
+
+    public long memoryFootprint()
+    {
+      return ObjectSizes.object(1, Integer.BYTES + 1) + ObjectSizes.BYTE_BUFFER + values.remaining();
+    }
+
+    public void drainTo(Hll16Combined that)
+    {
+      final int numValues = values.remaining() / Integer.BYTES;
+      for (int i = 0; i < numValues; i++) {
+        that.addHash(values.getInt(i * Integer.BYTES));
       }
       if (hasZero) {
-        hll.addHash(0);
+        that.addHash(0);
       }
-      return hll;
     }
   }
 
-  private static final class Hll16
+  private static final class Dense
   {
-    private static final int p = 16;
-    private static final int m = 1 << p;
-    private static final double alpha = 0.7213 / (1 + 1.079 / m);
     private static final double TWO_TO_THE_THIRTY_TWO = Math.pow(2, 32);
     private static final double HIGH_CORRECTION_THRESHOLD = TWO_TO_THE_THIRTY_TWO / 30.0d;
-    private static final double SMALL_CORRECTION_THRESHOLD = 2.5d * m;
 
-    private byte[] registers;
+    private final int p;
+    private final Registers registers;
+    // null unless incremental
+    private final int[] histogram;
+    // hashes of the sorted list not added to the registers yet, null once all are
+    SortedHashList.Reader pending;
+
+    Dense(int p, boolean incremental)
+    {
+      this(p, Registers.create(p, Byte.SIZE, false), incremental ? new int[Long.SIZE] : null);
+      if (incremental) {
+        histogram[0] = 1 << p;
+      }
+    }
 
-    Hll16()
+    Dense(int p, Registers registers, int[] histogram)
     {
-      this.registers = new byte[m];
+      this.p = p;
+      this.registers = registers;
+      this.histogram = histogram;
     }
 
     public void addHash(int hash)
     {
-      int bucket = hash >>> 16;
-      byte positionOfOne = (byte) (Integer.numberOfLeadingZeros((hash << 16) | 0x8000) + 1);
-      if (registers[bucket] < positionOfOne) {
-        registers[bucket] = positionOfOne;
-      }
+      int bucket = hash >>> (Integer.SIZE - p);
+      byte positionOfOne = (byte) (Integer.numberOfLeadingZeros((hash << p) | (1 << (p - 1))) + 1);
+      registers.updateMax(bucket, positionOfOne, histogram);
     }
 
-    public long cardinality()
+    /**
+     * Add up to `count` pending hashes.
+     */
+    void drain(int count)
     {
-      double registerSum = 0.0;
-      int zeros = 0;
-      for (int i = 0; i < m; i++) {
-        registerSum += 1.0 / (1 << registers[i]);
-        if (registers[i] == 0) {
-          zeros++;
+      for (int i = 0; i < count; i++) {
+        if (!pending.next()) {
+          pending = null;
+          return;
         }
+        addHash(pending.value);
+      }
+      pending.releaseRead();
+    }
+
+    /**
+     * @param options selects the estimate, see {@link HllEstimates}
+     */
+    long cardinality(Set<HllOption> options)
+    {
+      int[] histogram = this.histogram;
+      if (histogram == null) {
+        histogram = new int[Long.SIZE];
+        registers.histogram(histogram);
+      }
+      return cardinality(p, histogram, options);
+    }
+
+    static long cardinality(int p, int[] histogram, Set<HllOption> options)
+    {
+      if (HllEstimates.selected(options)) {
+        return HllEstimates.estimate(options, p, Integer.SIZE, histogram);
       }
+      final int m = 1 << p;
+      final double alpha = 0.7213 / (1 + 1.079 / m);
+      final double registerSum = Registers.harmonicSum(histogram);
+      final int zeros = histogram[0];
 
       final double e = alpha * m * m * (1 / registerSum);
-      return Math.round(makeCorrection(e, zeros));
+      return Math.round(makeCorrection(m, e, zeros));
     }
 
-    private double makeCorrection(double e, int zeros)
+    private static double makeCorrection(int m, double e, int zeros)
     {
-      if (e <= SMALL_CORRECTION_THRESHOLD) {
+      if (e <= 2.5d * m) {
         return zeros == 0 ? e : m * Math.log(m / (double) zeros);
       }
 
@@ -221,16 +805,25 @@ public class Hll16Combined implements CardinalityEstimator<Hll16Combined>
 
     public long memoryFootprint()
     {
-      return m;
+      return ObjectSizes.object(3, Integer.BYTES)
+             + registers.retainedSize()
+             + ObjectSizes.sizeOf(histogram)
+             + (pending == null ? 0 : pending.memoryFootprint());
     }
 
-    public void merge(Hll16 that)
+    /**
+     * @return {@link #memoryFootprint()} of a new instance
+     */
+    static long retainedSize(int p, boolean incremental)
     {
-      for (int i = 0; i < registers.length; i++) {
-        if (registers[i] < that.registers[i]) {
-          registers[i] = that.registers[i];
-        }
-      }
+      return ObjectSizes.object(3, Integer.BYTES)
+             + Registers.retainedSize(p, Byte.SIZE, false)
+             + (incremental ? ObjectSizes.array(Long.SIZE, Integer.BYTES) : 0);
+    }
+
+    public void merge(Dense that)
+    {
+      registers.merge(that.registers, histogram);
     }
   }
 }
@@ -0,0 +1,63 @@
+package io.dbfun.sketch;
+
+import com.google.common.hash.Hashing;
+
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks the {@link Hll16Combined#memoryFootprint()} of a sketch added one value at a time through its switch
+ * from the sorted list to the registers: the sketch never takes more than {@value #MAX_PEAK} times the memory of
+ * its registers, instead of twice while the whole list was pending, and adds alone drain and release the list,
+ * without anything reading the registers.
+ */
+public class Hll16CombinedTests
+{
+  // half the registers for the list, plus one merge of its temp buffer beyond that
+  private static final double MAX_PEAK = 1.6;
+
+  private static int failures;
+
+  public static void main(String[] args)
+  {
+    for (int p = 7; p <= 16; p++) {
+      checkFootprint(p, EnumSet.noneOf(HllOption.class));
+      checkFootprint(p, EnumSet.of(HllOption.INCREMENTAL));
+    }
+
+    System.out.printf("%,d failures%n", failures);
+    if (failures > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static void checkFootprint(int p, Set<HllOption> options)
+  {
+    final Random random = new Random(p);
+    final Hll16Combined sketch = new Hll16Combined(p, Hashing.murmur3_128(), options);
+    long peak = 0;
+    // the list holds about 2^p / 6 hashes when it switches, it drains in 1/8 as many adds
+    for (int i = 0; i < 1 << p; i++) {
+      sketch.add(random.nextLong());
+      peak = Math.max(peak, sketch.memoryFootprint());
+    }
+    final long drained = sketch.memoryFootprint();
+    sketch.cardinality();
+    final long dense = sketch.memoryFootprint();
+
+    check(
+        peak <= MAX_PEAK * dense,
+        "p=%s %s: peak footprint %s, registers %s", p, options, peak, dense
+    );
+    check(drained == dense, "p=%s %s: footprint %s after adds, %s after a read", p, options, drained, dense);
+  }
+
+  private static void check(boolean condition, String format, Object... args)
+  {
+    if (!condition) {
+      failures++;
+      System.out.printf("FAILED " + format + "%n", args);
+    }
+  }
+}
@@ -2,69 +2,508 @@ package io.dbfun.sketch;
 
 import com.google.common.base.Preconditions;
 import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Implements HyperLogLog++ described in https://research.google.com/pubs/pub40671.html,
+ * using a 64-bits hash function and the empirical bias correction of {@link HllPlusBiasTable}.
+ *
+ * <p>Registers are dense unless {@link HllOption#SPARSE} is given, in which case the estimator starts
+ * with a {@link SparseRegisterList} and converts to dense registers once the list outgrows them.
+ *
+ * <p>{@link HllOption#ERTL} or {@link HllOption#LOGLOG_BETA} replace the estimate of dense registers by a
+ * table-free one, see {@link HllEstimates}: the bias table only covers p &lt;= 18.
+ *
+ * <p>Sketches of different precisions merge at the lower one, see {@link #foldTo(int)}.
+ */
 public class Hll64WithBiasCorrection implements CardinalityEstimator<Hll64WithBiasCorrection>
 {
-  private final int p;
-  private final HashFunction hashFunction;
+  // a register holds at most 64 - p + 1 <= 58
+  private static final int BITS_PER_REGISTER = 6;
+
+  // p, denseFootprint and registers change when folded to a lower precision
+  private int p;
+  private final ValueHasher hasher;
+  private final Set<HllOption> options;
+
+  // histogram of register values, maintained on each update with HllOption.INCREMENTAL, null otherwise
+  private int[] histogram;
 
-  // each register actually only needs 5-bits,
-  // we use `byte` here to simplify implementation
-  private final byte[] registers;
+  private long denseFootprint;
+
+  // exactly one of `sparse` and `registers` is non-null
+  private SparseRegisterList sparse;
+  private Registers registers;
+
+  // non-null while tracked by a budget, see MemoryBudget
+  private MemoryBudget budget;
 
   public Hll64WithBiasCorrection(int precision, HashFunction hashFunction)
+  {
+    this(precision, hashFunction, EnumSet.noneOf(HllOption.class));
+  }
+
+  public Hll64WithBiasCorrection(int precision, HashFunction hashFunction, Set<HllOption> options)
   {
     Preconditions.checkArgument(
         precision >= 7 && precision < 31,
         "invalid precision [%d] : should be in [7, 32)"
     );
+    Preconditions.checkArgument(
+        !options.contains(HllOption.SPARSE) || precision < SparseRegisterList.SPARSE_PRECISION,
+        "sparse representation requires precision < %s", SparseRegisterList.SPARSE_PRECISION
+    );
+    HllEstimates.checkOptions(options);
     this.p = precision;
-    this.hashFunction = hashFunction;
-    this.registers = new byte[1 << p];
+    this.hasher = ValueHasher.of(hashFunction);
+    this.options = options.isEmpty() ? EnumSet.noneOf(HllOption.class) : EnumSet.copyOf(options);
+    this.denseFootprint = Registers.memoryFootprint(p, BITS_PER_REGISTER, isPacked());
+    if (options.contains(HllOption.SPARSE)) {
+      this.sparse = new SparseRegisterList();
+    } else {
+      this.registers = newRegisters();
+      initHistogram();
+    }
+  }
+
+  private Hll64WithBiasCorrection(
+      int precision,
+      HashFunction hashFunction,
+      Set<HllOption> options,
+      SparseRegisterList sparse,
+      Registers registers
+  )
+  {
+    this.p = precision;
+    this.hasher = ValueHasher.of(hashFunction);
+    this.options = options;
+    this.denseFootprint = Registers.memoryFootprint(p, BITS_PER_REGISTER, isPacked());
+    this.sparse = sparse;
+    this.registers = registers;
+  }
+
+  /**
+   * Create a read-only view over an estimator serialized by {@link #serialize(ByteBuffer)}, registers or
+   * the sparse list are read from `in` instead of being copied. Assumes the default murmur3_128 hash function.
+   */
+  public static Hll64WithBiasCorrection wrap(ByteBuffer in)
+  {
+    SketchFormat.checkType(in, SketchFormat.TYPE_HLLNOBIAS);
+    final int precision = SketchFormat.precision(in, 7, 30);
+    final byte representation = SketchFormat.representation(in);
+    final ByteBuffer body = SketchFormat.body(in);
+    SparseRegisterList sparse = null;
+    Registers registers = null;
+    if (representation == SketchFormat.SPARSE) {
+      sparse = SparseRegisterList.wrap(body);
+    } else {
+      registers = Registers.wrap(body, precision, BITS_PER_REGISTER, representation == SketchFormat.PACKED);
+    }
+    return new Hll64WithBiasCorrection(precision, Hashing.murmur3_128(), SketchFormat.options(in), sparse, registers);
+  }
+
+  int precision()
+  {
+    return p;
+  }
+
+  boolean isDense()
+  {
+    return registers != null;
+  }
+
+  MemoryBudget budget()
+  {
+    return budget;
+  }
+
+  void budget(MemoryBudget budget)
+  {
+    this.budget = budget;
+  }
+
+  /**
+   * Lower the precision to `newP`, leaving the same registers as if all values had been added at precision newP.
+   * The sparse list records hashes at a higher precision, so folding it only changes when it converts to dense.
+   *
+   * @throws IllegalArgumentException if newP is above the current precision or below 7
+   */
+  public void foldTo(int newP)
+  {
+    Preconditions.checkArgument(newP >= 7 && newP <= p, "can't fold precision %s to %s", p, newP);
+    if (newP == p) {
+      return;
+    }
+    p = newP;
+    denseFootprint = Registers.memoryFootprint(p, BITS_PER_REGISTER, isPacked());
+    if (sparse != null) {
+      return;
+    }
+    final Registers source = registers;
+    registers = newRegisters();
+    initHistogram();
+    fold(source, registers, histogram);
+    if (budget != null) {
+      budget.settle(this);
+    }
+  }
+
+  /**
+   * @return a new sketch of precision `newP` with the same hash function and options, holding this sketch folded
+   * to newP, see {@link #foldTo(int)}. This sketch is left as is.
+   */
+  public Hll64WithBiasCorrection downsample(int newP)
+  {
+    Preconditions.checkArgument(newP >= 7 && newP <= p, "can't downsample precision %s to %s", p, newP);
+    final Hll64WithBiasCorrection result = new Hll64WithBiasCorrection(newP, hasher.hashFunction(), options);
+    result.merge(this);
+    return result;
+  }
+
+  /**
+   * Set the registers of `target` to the max of their value and the registers of `source` folded to the lower
+   * precision of target: the low k bits of a source index, k being the difference of precisions, are the leading
+   * bits of the hash the rank is counted from.
+   *
+   * @param histogram register histogram of target kept in sync with the updates, may be null
+   */
+  static void fold(Registers source, Registers target, int[] histogram)
+  {
+    final int k = Integer.numberOfTrailingZeros(source.size()) - Integer.numberOfTrailingZeros(target.size());
+    assert k > 0;
+    final int lowMask = (1 << k) - 1;
+    for (int index = 0; index < source.size(); index++) {
+      final int rank = source.get(index);
+      if (rank != 0) {
+        target.updateMax(index >>> k, foldedRank(index & lowMask, rank, k), histogram);
+      }
+    }
+  }
+
+  /**
+   * @param low the low k bits of the index of a register folded k precisions down
+   * @return its rank at the lower precision
+   */
+  private static int foldedRank(int low, int rank, int k)
+  {
+    return low == 0 ? k + rank : Integer.numberOfLeadingZeros(low) - (Integer.SIZE - k) + 1;
+  }
+
+  /**
+   * @return the registers, or new registers holding the sparse list converted at this precision
+   */
+  Registers denseRegisters()
+  {
+    if (registers != null) {
+      return registers;
+    }
+    final Registers result = newRegisters();
+    sparse.toDense(result, null);
+    return result;
+  }
+
+  /**
+   * Merge a register of a sketch of `precision`, at least the precision of this sketch, in the layout of
+   * {@link #addHash(long)}. Converts a sparse sketch to dense registers.
+   */
+  void mergeRegister(int precision, int index, int rank)
+  {
+    assert precision >= p;
+    if (rank == 0) {
+      return;
+    }
+    if (sparse != null) {
+      convertToDense();
+    }
+    // at most 64 - precision + 1 for a 64-bit hash
+    rank = Math.min(rank, Long.SIZE - precision + 1);
+    final int k = precision - p;
+    if (k > 0) {
+      rank = foldedRank(index & ((1 << k) - 1), rank, k);
+      index >>>= k;
+    }
+    registers.updateMax(index, rank, histogram);
+  }
+
+  /**
+   * Merge the registers of this sketch into `target`, registers of this precision or lower in any layout.
+   *
+   * @param histogram register histogram of target kept in sync with the updates, may be null
+   */
+  void mergeInto(Registers target, int[] histogram)
+  {
+    if (sparse != null) {
+      sparse.toDense(target, histogram);
+    } else if (target.size() == registers.size()) {
+      target.merge(registers, histogram);
+    } else {
+      fold(registers, target, histogram);
+    }
+  }
+
+  private boolean isPacked()
+  {
+    return options.contains(HllOption.PACKED);
+  }
+
+  private Registers newRegisters()
+  {
+    return Registers.create(p, BITS_PER_REGISTER, isPacked());
+  }
+
+  private void initHistogram()
+  {
+    if (options.contains(HllOption.INCREMENTAL)) {
+      histogram = new int[Long.SIZE];
+      histogram[0] = 1 << p;
+    }
+  }
+
+  private void convertToDense()
+  {
+    if (sparse.isReadOnly()) {
+      throw SketchFormat.readOnly(this);
+    }
+    if (budget != null) {
+      // the registers and their histogram if incremental
+      budget.reserve(
+          this,
+          Registers.retainedSize(p, BITS_PER_REGISTER, isPacked())
+          + (options.contains(HllOption.INCREMENTAL) ? ObjectSizes.array(Long.SIZE, Integer.BYTES) : 0)
+      );
+    }
+    registers = newRegisters();
+    initHistogram();
+    sparse.toDense(registers, histogram);
+    sparse = null;
+    if (budget != null) {
+      budget.settle(this);
+    }
+  }
+
+  /**
+   * Union of all `sketches` in a single pass over their dense registers, see {@link Registers#mergeAll}.
+   * Sparse sketches and sketches of a higher precision are merged into the result afterwards. The result has
+   * the lowest precision of all sketches, the hash function and options of the first sketch, and is dense
+   * unless all sketches are sparse.
+   */
+  public static Hll64WithBiasCorrection unionAll(List<Hll64WithBiasCorrection> sketches)
+  {
+    return unionAll(sketches, null);
+  }
+
+  /**
+   * @param pool where to merge registers and other sketches, see {@link ParallelUnion}, null for the calling thread
+   */
+  static Hll64WithBiasCorrection unionAll(List<Hll64WithBiasCorrection> sketches, ForkJoinPool pool)
+  {
+    Preconditions.checkArgument(!sketches.isEmpty(), "nothing to union");
+    final Hll64WithBiasCorrection first = sketches.get(0);
+    int minP = first.p;
+    for (Hll64WithBiasCorrection sketch : sketches) {
+      minP = Math.min(minP, sketch.p);
+    }
+    final Hll64WithBiasCorrection union = new Hll64WithBiasCorrection(minP, first.hasher.hashFunction(), first.options);
+    final List<Registers> sameLayout = new ArrayList<>(sketches.size());
+    final List<Hll64WithBiasCorrection> others = new ArrayList<>();
+    for (Hll64WithBiasCorrection sketch : sketches) {
+      if (sketch.registers != null && union.sparse != null) {
+        union.convertToDense();
+      }
+    }
+    for (Hll64WithBiasCorrection sketch : sketches) {
+      if (union.registers != null && sketch.registers != null && sketch.registers.sameLayout(union.registers)) {
+        sameLayout.add(sketch.registers);
+      } else {
+        others.add(sketch);
+      }
+    }
+    if (!sameLayout.isEmpty()) {
+      ParallelUnion.mergeAll(pool, union.registers, sameLayout, union.histogram);
+    }
+    ParallelUnion.mergeAll(pool, union, others);
+    return union;
+  }
+
+  /**
+   * Same as unionAll(sketches).cardinality(), merging into bare scratch registers instead of a new sketch
+   * as long as all sketches are dense with the same precision and register layout.
+   */
+  public static long unionCardinality(List<Hll64WithBiasCorrection> sketches)
+  {
+    return unionCardinality(sketches, null);
+  }
+
+  static long unionCardinality(List<Hll64WithBiasCorrection> sketches, ForkJoinPool pool)
+  {
+    Preconditions.checkArgument(!sketches.isEmpty(), "nothing to union");
+    final Hll64WithBiasCorrection first = sketches.get(0);
+    final List<Registers> registers = new ArrayList<>(sketches.size());
+    for (Hll64WithBiasCorrection sketch : sketches) {
+      if (sketch.registers == null || first.registers == null || !sketch.registers.sameLayout(first.registers)) {
+        return unionAll(sketches, pool).cardinality();
+      }
+      registers.add(sketch.registers);
+    }
+    final int[] histogram = new int[Long.SIZE];
+    ParallelUnion.mergeAll(pool, registers.get(0).newInstance(), registers, histogram);
+    return first.denseCardinality(histogram);
   }
 
   public void add(byte[] value)
   {
-    add64BitsHash(hashFunction.hashBytes(value).asLong());
+    add(value, 0, value.length);
+  }
+
+  public void add(byte[] value, int offset, int length)
+  {
+    add64BitsHash(hasher.hash(value, offset, length));
+  }
+
+  public void add(ByteBuffer value)
+  {
+    add64BitsHash(hasher.hash(value));
+  }
+
+  public void add(CharSequence value)
+  {
+    add64BitsHash(hasher.hash(value));
   }
 
   public void add(long value)
   {
-    add64BitsHash(hashFunction.hashLong(value).asLong());
+    add64BitsHash(hasher.hash(value));
+  }
+
+  @Override
+  public void add(long[] values, int offset, int length, long[] selection)
+  {
+    final long[] hashes = RadixPartition.worthIt(options, p, length) ? RadixPartition.scratch() : ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, hasher.hash(values, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  @Override
+  public void add(byte[] data, int[] offsets, int offset, int length, long[] selection)
+  {
+    final long[] hashes = RadixPartition.worthIt(options, p, length) ? RadixPartition.scratch() : ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, hasher.hash(data, offsets, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  /**
+   * Uses all 64 bits of `hash`: the high p bits are the register index, the rank is the number of leading zeros
+   * of the other 64 - p bits plus one (65 - p if they are all zero). The sparse representation does the same with
+   * a precision of 25, so that its entries convert to dense registers.
+   */
+  public void addHash(long hash)
+  {
+    add64BitsHash(hash);
+  }
+
+  ValueHasher hasher()
+  {
+    return hasher;
+  }
+
+  private void addHashes(long[] hashes, int count)
+  {
+    int i = 0;
+    while (sparse != null && i < count) {
+      add64BitsHash(hashes[i++]);
+    }
+    // dense from here on, no representation to check
+    if (RadixPartition.worthIt(options, p, count - i)) {
+      hashes = RadixPartition.partition(hashes, i, count, p, Long.SIZE - p);
+      count -= i;
+      i = 0;
+    }
+    for (; i < count; i++) {
+      addDenseHash(hashes[i]);
+    }
   }
 
   private void add64BitsHash(long hash)
+  {
+    if (sparse != null) {
+      final long sparseFootprint = budget == null ? 0 : sparse.memoryFootprint();
+      sparse.add(hash);
+      if (sparse.encodedSize() > denseFootprint) {
+        convertToDense();
+      } else if (budget != null && sparse.memoryFootprint() != sparseFootprint) {
+        budget.settle(this);
+      }
+      return;
+    }
+    addDenseHash(hash);
+  }
+
+  private void addDenseHash(long hash)
   {
     final int bucket = (int) (hash >>> (Long.SIZE - p));
     byte positionOfOne = (byte) (Long.numberOfLeadingZeros((hash << p) | (1 << (p - 1))) + 1);
-    // note that both operands can never be negative, so we don't need to use unsigned comparison
-    if (registers[bucket] < positionOfOne) {
-      registers[bucket] = positionOfOne;
-    }
+    registers.updateMax(bucket, positionOfOne, histogram);
   }
 
+  /**
+   * Merge `that` of any precision, folding this sketch first if that has a lower precision.
+   */
   public void merge(Hll64WithBiasCorrection that)
   {
-    assert this.p == that.p;
-    for (int i = 0; i < registers.length; i++) {
-      if (registers[i] < that.registers[i]) {
-        registers[i] = that.registers[i];
+    if (that.p < p) {
+      foldTo(that.p);
+    }
+    if (sparse != null) {
+      if (that.sparse != null) {
+        sparse.merge(that.sparse);
+        if (sparse.encodedSize() > denseFootprint) {
+          convertToDense();
+        } else if (budget != null) {
+          budget.settle(this);
+        }
+        return;
       }
+      convertToDense();
     }
+    that.mergeInto(registers, histogram);
   }
 
   public long cardinality()
   {
-    final int m = 1 << p;
+    if (sparse != null) {
+      return sparse.cardinality();
+    }
+    return denseCardinality(registerHistogram());
+  }
 
-    double registerSum = 0.0;
-    int zeros = 0;
-    for (int i = 0; i < m; i++) {
-      registerSum += 1.0 / (1 << registers[i]);
-      if (registers[i] == 0) {
-        zeros++;
-      }
+  private long denseCardinality(int[] histogram)
+  {
+    if (HllEstimates.selected(options)) {
+      return HllEstimates.estimate(options, p, Long.SIZE, histogram);
     }
+    return denseCardinality(p, histogram);
+  }
+
+  /**
+   * @return HyperLogLog++ estimate of dense registers of precision `p`, given their histogram
+   */
+  static long denseCardinality(int p, int[] histogram)
+  {
+    final int m = 1 << p;
+
+    final double registerSum = Registers.harmonicSum(histogram);
+    final int zeros = histogram[0];
 
     final double alpha = 0.7213 / (1 + 1.079 / m);
     final double e = alpha * m * m * (1 / registerSum);
@@ -82,14 +521,59 @@ public class Hll64WithBiasCorrection implements CardinalityEstimator<Hll64WithBi
     }
   }
 
+  private int[] registerHistogram()
+  {
+    if (histogram != null) {
+      return histogram;
+    }
+    final int[] result = new int[Long.SIZE];
+    registers.histogram(result);
+    return result;
+  }
+
   public long memoryFootprint()
   {
-    return registers.length; // not counting object headers, `p`, `hashFunction` reference;
+    // the hasher is shared
+    final long shallowSize = ObjectSizes.object(6, Integer.BYTES + Long.BYTES) + ObjectSizes.ENUM_SET;
+    if (sparse != null) {
+      return shallowSize + sparse.memoryFootprint();
+    }
+    return shallowSize + ObjectSizes.sizeOf(histogram) + registers.retainedSize();
   }
 
   @Override
   public String name()
   {
-    return "hllnobias" + p;
+    return "hllnobias" + p + HllOption.suffix(options);
+  }
+
+  @Override
+  public int serializedSize()
+  {
+    if (sparse != null) {
+      return SketchFormat.HEADER_SIZE + sparse.serializedSize();
+    }
+    return SketchFormat.HEADER_SIZE + (int) registers.serializedSize();
+  }
+
+  @Override
+  public void serialize(ByteBuffer out)
+  {
+    final byte representation;
+    if (sparse != null) {
+      representation = SketchFormat.SPARSE;
+    } else if (registers instanceof Registers.AbstractPackedRegisters) {
+      representation = SketchFormat.PACKED;
+    } else {
+      representation = SketchFormat.DENSE;
+    }
+    SketchFormat.writeHeader(out, SketchFormat.TYPE_HLLNOBIAS, p, representation, options);
+    ByteBuffer body = SketchFormat.startBody(out);
+    if (sparse != null) {
+      sparse.writeTo(body);
+    } else {
+      registers.writeTo(body);
+    }
+    SketchFormat.finishBody(out, body);
   }
 }
@@ -0,0 +1,134 @@
+package io.dbfun.sketch;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the table-free estimates selected by {@link HllOption#ERTL} and {@link HllOption#LOGLOG_BETA}, for every
+ * HyperLogLog estimator: estimates close to those of the default estimate on the same values, the option kept by
+ * serialize/wrap round-trips and by unions, which estimate the same as a sketch of all the values.
+ */
+public class HllEstimatesTests
+{
+  private static final String[] NAMES = {
+      "hllraw14",
+      "hllraw12+packed",
+      "hllnobias14",
+      "hllnobias14+sparse",
+      "hllnobias16+packed+incremental",
+      "combined12",
+      "combined14+incremental"
+  };
+  private static final String[] OPTIONS = {"ertl", "loglog_beta"};
+  private static final int[] CARDINALITIES = {0, 1, 100, 5_000, 10_000, 200_000};
+  private static final int SKETCHES_PER_UNION = 3;
+  // the default estimate of raw registers is off by up to 3% around 2.5 * 2^p values, the table-free ones aren't
+  private static final double MAX_DIFFERENCE = 0.04;
+
+  private static int failures;
+
+  public static void main(String[] args)
+  {
+    for (String name : NAMES) {
+      for (String option : OPTIONS) {
+        for (int cardinality : CARDINALITIES) {
+          checkEstimate(name, option, cardinality);
+          checkRoundTrip(name, option, cardinality);
+          checkUnion(name, option, cardinality);
+        }
+      }
+    }
+
+    System.out.printf("%,d failures%n", failures);
+    if (failures > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static void checkEstimate(String name, String option, int cardinality)
+  {
+    final CardinalityEstimator standard = CardinalityEstimators.get(name);
+    final CardinalityEstimator selected = CardinalityEstimators.get(name + "+" + option);
+    final Random random = new Random(cardinality);
+    for (int i = 0; i < cardinality; i++) {
+      final long value = random.nextLong();
+      standard.add(value);
+      selected.add(value);
+    }
+    check(
+        Math.abs(selected.cardinality() - standard.cardinality()) <= MAX_DIFFERENCE * Math.max(1, cardinality),
+        "%s+%s n=%s: estimate %s, default estimate %s",
+        name, option, cardinality, selected.cardinality(), standard.cardinality()
+    );
+  }
+
+  private static void checkRoundTrip(String name, String option, int cardinality)
+  {
+    final CardinalityEstimator estimator = sketch(name + "+" + option, 0, cardinality);
+    final ByteBuffer serialized = CardinalityEstimators.serialize(estimator);
+    final CardinalityEstimator wrapped = CardinalityEstimators.wrap(serialized.duplicate());
+    check(
+        wrapped.name().equals(estimator.name()),
+        "%s+%s n=%s: wrapped as %s", name, option, cardinality, wrapped.name()
+    );
+    check(
+        CardinalityEstimators.serialize(wrapped).equals(serialized),
+        "%s+%s n=%s: serialize(wrap(bytes)) differs from bytes", name, option, cardinality
+    );
+    check(
+        wrapped.cardinality() == estimator.cardinality(),
+        "%s+%s n=%s: wrapped estimate %s instead of %s",
+        name, option, cardinality, wrapped.cardinality(), estimator.cardinality()
+    );
+  }
+
+  private static void checkUnion(String name, String option, int cardinality)
+  {
+    final String fullName = name + "+" + option;
+    final CardinalityEstimator all = sketch(fullName, 0, cardinality);
+    final List<CardinalityEstimator> sketches = new ArrayList<>();
+    for (int i = 0; i < SKETCHES_PER_UNION; i++) {
+      // overlapping ranges of values, covering all of them
+      final int from = cardinality * i / (SKETCHES_PER_UNION + 1);
+      final int to = cardinality * (i + 2) / (SKETCHES_PER_UNION + 1);
+      sketches.add(sketch(fullName, from, to));
+    }
+    final CardinalityEstimator union = CardinalityEstimators.unionAll(sketches);
+    check(union.name().equals(fullName), "%s n=%s: union named %s", fullName, cardinality, union.name());
+    check(
+        union.cardinality() == all.cardinality(),
+        "%s n=%s: union estimate %s instead of %s", fullName, cardinality, union.cardinality(), all.cardinality()
+    );
+    final long unionCardinality = CardinalityEstimators.unionCardinality(sketches);
+    check(
+        unionCardinality == all.cardinality(),
+        "%s n=%s: unionCardinality %s instead of %s", fullName, cardinality, unionCardinality, all.cardinality()
+    );
+  }
+
+  /**
+   * @return an estimator of `name` holding the values [from, to) of a sequence shared by all sketches
+   */
+  private static CardinalityEstimator sketch(String name, int from, int to)
+  {
+    final CardinalityEstimator estimator = CardinalityEstimators.get(name);
+    final Random random = new Random(42);
+    for (int i = 0; i < to; i++) {
+      final long value = random.nextLong();
+      if (i >= from) {
+        estimator.add(value);
+      }
+    }
+    return estimator;
+  }
+
+  private static void check(boolean condition, String format, Object... args)
+  {
+    if (!condition) {
+      failures++;
+      System.out.printf("FAILED " + format + "%n", args);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package io.dbfun.sketch;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Optional representations and estimates of HyperLogLog estimators, spelled as `+option` suffixes of the
+ * estimator name, e.g. "hllraw14+packed" or "hllnobias18+ertl".
+ */
+public enum HllOption
+{
+  /**
+   * Bit-pack registers into longs (5 or 6 bits per register) instead of one byte per register.
+   */
+  PACKED,
+
+  /**
+   * Start with the HLL++ sparse representation and convert to dense registers once it outgrows them,
+   * only supported by {@link Hll64WithBiasCorrection}.
+   */
+  SPARSE,
+
+  /**
+   * Keep the register histogram (zero count and the count of every register value) up to date on each
+   * register update and merge, making cardinality() constant-time instead of a pass over all registers.
+   */
+  INCREMENTAL,
+
+  /**
+   * Radix-partition batch adds of at least 4096 values by register region before updating registers, from p = 18.
+   * Pays off when registers are much larger than the last level cache, otherwise the extra passes over the hashes
+   * cost more than the cache misses they save. Only supported by {@link HllRaw} and {@link Hll64WithBiasCorrection}.
+   */
+  PARTITIONED,
+
+  /**
+   * Estimate with Ertl's improved raw estimator instead of the estimator's own, see {@link HllEstimates}.
+   * Exclusive with LOGLOG_BETA, not used by the exact states of {@link Hll16Combined}.
+   */
+  ERTL,
+
+  /**
+   * Estimate with LogLog-Beta instead of the estimator's own, see {@link HllEstimates}.
+   * Exclusive with ERTL, not used by the exact states of {@link Hll16Combined}.
+   */
+  LOGLOG_BETA;
+
+  static Set<HllOption> parse(String suffix)
+  {
+    Set<HllOption> options = EnumSet.noneOf(HllOption.class);
+    if (suffix.isEmpty()) {
+      return options;
+    }
+    for (String option : suffix.split("\\+")) {
+      options.add(HllOption.valueOf(option.toUpperCase(Locale.ROOT)));
+    }
+    return options;
+  }
+
+  static String suffix(Set<HllOption> options)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (HllOption option : options) {
+      sb.append('+').append(option.name().toLowerCase(Locale.ROOT));
+    }
+    return sb.toString();
+  }
+}
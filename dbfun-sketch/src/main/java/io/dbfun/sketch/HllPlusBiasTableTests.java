@@ -0,0 +1,114 @@
+package io.dbfun.sketch;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Pins {@link HllPlusBiasTable#getEstimateBias(double, int)} against the former TreeMap based
+ * nearest neighbor search, for every precision an estimator accepts.
+ *
+ * <p>Estimates exactly halfway between two raw estimates are skipped: the former implementation kept
+ * only one of two neighbors at equal distance and averaged the 7th nearest instead.
+ */
+public class HllPlusBiasTableTests
+{
+  private static final int MIN_PRECISION = 7;
+  private static final int MAX_PRECISION = 18;
+
+  public static void main(String[] args)
+  {
+    final int samplesPerPrecision = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+    final Random random = new Random(42);
+
+    int checked = 0;
+    int mismatches = 0;
+    for (int p = MIN_PRECISION; p <= MAX_PRECISION; p++) {
+      final double[] estimates = HllPlusBiasTable.rawEstimateData[p - 4];
+      final double max = 5.0 * (1 << p);
+
+      for (int i = 0; i < samplesPerPrecision + 3 * estimates.length; i++) {
+        double estimate;
+        if (i < estimates.length) {
+          // exactly on a raw estimate
+          estimate = estimates[i];
+        } else if (i < 3 * estimates.length) {
+          // just below or above a raw estimate
+          final double x = estimates[(i - estimates.length) / 2];
+          estimate = i % 2 == 0 ? Math.nextDown(x) : Math.nextUp(x);
+        } else {
+          estimate = random.nextDouble() * max;
+        }
+        if (isHalfway(estimates, estimate)) {
+          continue;
+        }
+
+        final double expected = legacyEstimateBias(estimate, p);
+        final double actual = HllPlusBiasTable.getEstimateBias(estimate, p);
+        checked++;
+        if (Double.doubleToLongBits(expected) != Double.doubleToLongBits(actual)) {
+          mismatches++;
+          System.out.printf("p=%d estimate=%s expected=%s actual=%s%n", p, estimate, expected, actual);
+        }
+      }
+    }
+
+    System.out.printf("Checked %,d estimates, %,d mismatches%n", checked, mismatches);
+    if (mismatches > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * @return whether two raw estimates are at the same distance of `estimate` on both sides. Raw estimates are
+   * strictly ascending from precision 7, so the estimates on each side are walked outwards from `estimate` in
+   * order of distance.
+   */
+  private static boolean isHalfway(double[] estimates, double estimate)
+  {
+    final int insertion = Arrays.binarySearch(estimates, estimate);
+    // on a raw estimate, the estimates on both sides are those around it
+    int below = insertion >= 0 ? insertion - 1 : -insertion - 2;
+    int above = insertion >= 0 ? insertion + 1 : -insertion - 1;
+    while (below >= 0 && above < estimates.length) {
+      final double belowDistance = estimate - estimates[below];
+      final double aboveDistance = estimates[above] - estimate;
+      if (belowDistance == aboveDistance) {
+        return true;
+      }
+      if (belowDistance < aboveDistance) {
+        below--;
+      } else {
+        above++;
+      }
+    }
+    return false;
+  }
+
+  private static double legacyEstimateBias(double estimate, int p)
+  {
+    double[] estimateVector = HllPlusBiasTable.rawEstimateData[p - 4];
+    SortedMap<Double, Integer> distances = new TreeMap<>();
+    int index = 0;
+    for (double anEstimateVector : estimateVector) {
+      distances.put(Math.pow(estimate - anEstimateVector, 2), index++);
+    }
+
+    int[] nearest = new int[6];
+    int i = 0;
+    for (Integer neighbor : distances.values()) {
+      nearest[i++] = neighbor;
+      if (i >= 6) {
+        break;
+      }
+    }
+
+    double[] biasVector = HllPlusBiasTable.biasData[p - 4];
+    double biasTotal = 0.0d;
+    for (int neighbor : nearest) {
+      biasTotal += biasVector[neighbor];
+    }
+    return biasTotal / nearest.length;
+  }
+}
@@ -2,6 +2,14 @@ package io.dbfun.sketch;
 
 import com.google.common.base.Preconditions;
 import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Implements HyperLogLog described in http://algo.inria.fr/flajolet/Publications/FlFuGaMe07.pdf.
@@ -17,41 +25,297 @@ import com.google.common.hash.HashFunction;
  *
  * <p> Differences from paper
  * <ul>
- *   <li>each register takes 8-bits instead of 5-bits
+ *   <li>each register takes 8-bits instead of 5-bits, unless {@link HllOption#PACKED} is given
  *   <li>bucket index and position of 1 are took from the least-significant bit instead of most-significant bit
  * </ul>
+ *
+ * <p>Sketches of different precisions merge at the lower one, see {@link #foldTo(int)}.
  */
 public class HllRaw implements CardinalityEstimator<HllRaw>
 {
   private static final double TWO_TO_THE_THIRTY_TWO = Math.pow(2, 32);
   private static final double HIGH_CORRECTION_THRESHOLD = TWO_TO_THE_THIRTY_TWO / 30.0d;
 
-  private final int p;
-  private final HashFunction hashFunction;
+  // a register holds at most 32 - p + 1 <= 26
+  private static final int BITS_PER_REGISTER = 5;
+
+  // p and registers change when folded to a lower precision
+  private int p;
+  private final ValueHasher hasher;
+  private final Set<HllOption> options;
+
+  // histogram of register values, maintained on each update with HllOption.INCREMENTAL, null otherwise
+  private int[] histogram;
 
-  // each register actually only needs 5-bits,
-  // we use `byte` here to simplify implementation
-  private final byte[] registers;
+  private Registers registers;
 
   public HllRaw(int precision, HashFunction hashFunction)
+  {
+    this(precision, hashFunction, EnumSet.noneOf(HllOption.class));
+  }
+
+  public HllRaw(int precision, HashFunction hashFunction, Set<HllOption> options)
   {
     Preconditions.checkArgument(
         precision >= 7 && precision < 31,
         "invalid precision [%d] : should be in [7, 32)"
     );
+    Preconditions.checkArgument(!options.contains(HllOption.SPARSE), "hllraw doesn't support sparse representation");
+    HllEstimates.checkOptions(options);
     this.p = precision;
-    this.hashFunction = hashFunction;
-    this.registers = new byte[1 << p];
+    this.hasher = ValueHasher.of(hashFunction);
+    this.options = options.isEmpty() ? EnumSet.noneOf(HllOption.class) : EnumSet.copyOf(options);
+    this.registers = Registers.create(p, BITS_PER_REGISTER, options.contains(HllOption.PACKED));
+    if (options.contains(HllOption.INCREMENTAL)) {
+      this.histogram = new int[Long.SIZE];
+      this.histogram[0] = 1 << p;
+    }
+  }
+
+  private HllRaw(int precision, HashFunction hashFunction, Set<HllOption> options, Registers registers)
+  {
+    this.p = precision;
+    this.hasher = ValueHasher.of(hashFunction);
+    this.options = options;
+    this.registers = registers;
+  }
+
+  /**
+   * Create a read-only view over an estimator serialized by {@link #serialize(ByteBuffer)},
+   * registers are read from `in` instead of being copied. Assumes the default murmur3_128 hash function.
+   */
+  public static HllRaw wrap(ByteBuffer in)
+  {
+    SketchFormat.checkType(in, SketchFormat.TYPE_HLLRAW);
+    final int precision = SketchFormat.precision(in, 7, 30);
+    final boolean packed = SketchFormat.representation(in) == SketchFormat.PACKED;
+    final Registers registers = Registers.wrap(SketchFormat.body(in), precision, BITS_PER_REGISTER, packed);
+    return new HllRaw(precision, Hashing.murmur3_128(), SketchFormat.options(in), registers);
+  }
+
+  /**
+   * Union of all `sketches` in a single pass over their registers, see {@link Registers#mergeAll}.
+   * Sketches of a higher precision are folded into the result afterwards. The result has the lowest precision
+   * of all sketches, the hash function and options of the first sketch.
+   */
+  public static HllRaw unionAll(List<HllRaw> sketches)
+  {
+    return unionAll(sketches, null);
+  }
+
+  /**
+   * @param pool where to merge registers and other sketches, see {@link ParallelUnion}, null for the calling thread
+   */
+  static HllRaw unionAll(List<HllRaw> sketches, ForkJoinPool pool)
+  {
+    Preconditions.checkArgument(!sketches.isEmpty(), "nothing to union");
+    final HllRaw first = sketches.get(0);
+    int minP = first.p;
+    for (HllRaw sketch : sketches) {
+      minP = Math.min(minP, sketch.p);
+    }
+    final HllRaw union = new HllRaw(minP, first.hasher.hashFunction(), first.options);
+    final List<Registers> sameLayout = new ArrayList<>(sketches.size());
+    final List<HllRaw> others = new ArrayList<>();
+    for (HllRaw sketch : sketches) {
+      if (sketch.registers.sameLayout(union.registers)) {
+        sameLayout.add(sketch.registers);
+      } else {
+        others.add(sketch);
+      }
+    }
+    ParallelUnion.mergeAll(pool, union.registers, sameLayout, union.histogram);
+    ParallelUnion.mergeAll(pool, union, others);
+    return union;
+  }
+
+  /**
+   * Same as unionAll(sketches).cardinality(), merging into bare scratch registers instead of a new sketch
+   * as long as all sketches have the same precision and register layout.
+   */
+  public static long unionCardinality(List<HllRaw> sketches)
+  {
+    return unionCardinality(sketches, null);
+  }
+
+  static long unionCardinality(List<HllRaw> sketches, ForkJoinPool pool)
+  {
+    Preconditions.checkArgument(!sketches.isEmpty(), "nothing to union");
+    final HllRaw first = sketches.get(0);
+    final List<Registers> registers = new ArrayList<>(sketches.size());
+    for (HllRaw sketch : sketches) {
+      if (!sketch.registers.sameLayout(first.registers)) {
+        return unionAll(sketches, pool).cardinality();
+      }
+      registers.add(sketch.registers);
+    }
+    final int[] histogram = new int[Long.SIZE];
+    ParallelUnion.mergeAll(pool, registers.get(0).newInstance(), registers, histogram);
+    return first.cardinality(histogram);
   }
 
   public void add(byte[] value)
   {
-    add32BitsHash(hashFunction.hashBytes(value).asInt());
+    add(value, 0, value.length);
+  }
+
+  public void add(byte[] value, int offset, int length)
+  {
+    add32BitsHash((int) hasher.hash(value, offset, length));
+  }
+
+  public void add(ByteBuffer value)
+  {
+    add32BitsHash((int) hasher.hash(value));
+  }
+
+  public void add(CharSequence value)
+  {
+    add32BitsHash((int) hasher.hash(value));
   }
 
   public void add(long value)
   {
-    add32BitsHash(hashFunction.hashLong(value).asInt());
+    add32BitsHash((int) hasher.hash(value));
+  }
+
+  @Override
+  public void add(long[] values, int offset, int length, long[] selection)
+  {
+    final long[] hashes = RadixPartition.worthIt(options, p, length) ? RadixPartition.scratch() : ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, hasher.hash(values, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  @Override
+  public void add(byte[] data, int[] offsets, int offset, int length, long[] selection)
+  {
+    final long[] hashes = RadixPartition.worthIt(options, p, length) ? RadixPartition.scratch() : ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, hasher.hash(data, offsets, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  /**
+   * Uses the low 32 bits of `hash`: the low p bits are the register index, the rank is the number of trailing zeros
+   * of the next 32 - p bits plus one (33 - p if they are all zero).
+   */
+  public void addHash(long hash)
+  {
+    add32BitsHash((int) hash);
+  }
+
+  ValueHasher hasher()
+  {
+    return hasher;
+  }
+
+  int precision()
+  {
+    return p;
+  }
+
+  /**
+   * Lower the precision to `newP`, leaving the same registers as if all values had been added at precision newP.
+   *
+   * @throws IllegalArgumentException if newP is above the current precision or below 7
+   */
+  public void foldTo(int newP)
+  {
+    Preconditions.checkArgument(newP >= 7 && newP <= p, "can't fold precision %s to %s", p, newP);
+    if (newP == p) {
+      return;
+    }
+    final Registers source = registers;
+    p = newP;
+    registers = Registers.create(p, BITS_PER_REGISTER, options.contains(HllOption.PACKED));
+    if (histogram != null) {
+      histogram = new int[Long.SIZE];
+      histogram[0] = 1 << p;
+    }
+    fold(source, registers, histogram);
+  }
+
+  /**
+   * @return a new sketch of precision `newP` with the same hash function and options, holding this sketch folded
+   * to newP, see {@link #foldTo(int)}. This sketch is left as is.
+   */
+  public HllRaw downsample(int newP)
+  {
+    Preconditions.checkArgument(newP >= 7 && newP <= p, "can't downsample precision %s to %s", p, newP);
+    final HllRaw result = new HllRaw(newP, hasher.hashFunction(), options);
+    result.merge(this);
+    return result;
+  }
+
+  /**
+   * Set the registers of `target` to the max of their value and the registers of `source` folded to the lower
+   * precision of target: the high k bits of a source index, k being the difference of precisions, are the low bits
+   * of the hash the rank is counted from.
+   *
+   * @param histogram register histogram of target kept in sync with the updates, may be null
+   */
+  private static void fold(Registers source, Registers target, int[] histogram)
+  {
+    final int newP = Integer.numberOfTrailingZeros(target.size());
+    final int k = Integer.numberOfTrailingZeros(source.size()) - newP;
+    assert k > 0;
+    final int indexMask = target.size() - 1;
+    for (int index = 0; index < source.size(); index++) {
+      final int rank = source.get(index);
+      if (rank != 0) {
+        target.updateMax(index & indexMask, foldedRank(index, rank, newP, k), histogram);
+      }
+    }
+  }
+
+  /**
+   * @return rank of register `index` folded from precision newP + k to newP
+   */
+  private static int foldedRank(int index, int rank, int newP, int k)
+  {
+    final int high = index >>> newP;
+    return high == 0 ? k + rank : Integer.numberOfTrailingZeros(high) + 1;
+  }
+
+  /**
+   * @return rank of register `index`
+   */
+  int register(int index)
+  {
+    return registers.get(index);
+  }
+
+  /**
+   * Merge a register of a sketch of `precision`, at least the precision of this sketch, whose hashes have the
+   * layout of {@link #addHash(long)} but may be wider than 32 bits: ranks are capped at the 33 - precision
+   * of a 32-bit hash, the rank this sketch gets for the same hash.
+   */
+  void mergeRegister(int precision, int index, int rank)
+  {
+    assert precision >= p;
+    if (rank == 0) {
+      return;
+    }
+    rank = Math.min(rank, Integer.SIZE - precision + 1);
+    if (precision > p) {
+      rank = foldedRank(index, rank, p, precision - p);
+      index &= (1 << p) - 1;
+    }
+    registers.updateMax(index, rank, histogram);
+  }
+
+  private void addHashes(long[] hashes, int count)
+  {
+    if (RadixPartition.worthIt(options, p, count)) {
+      hashes = RadixPartition.partition(hashes, 0, count, p, 0);
+    }
+    for (int i = 0; i < count; i++) {
+      add32BitsHash((int) hashes[i]);
+    }
   }
 
   private void add32BitsHash(int hash)
@@ -66,34 +330,38 @@ public class HllRaw implements CardinalityEstimator<HllRaw>
       positionOfOne = (byte) (Integer.numberOfTrailingZeros(hash) + 1);
     }
 
-    // note that both operands can never be negative, so we don't need to use unsigned comparison
-    if (registers[bucket] < positionOfOne) {
-      registers[bucket] = positionOfOne;
-    }
+    registers.updateMax(bucket, positionOfOne, histogram);
   }
 
+  /**
+   * Merge `that` of any precision, folding this sketch first if that has a lower precision.
+   */
   public void merge(HllRaw that)
   {
-    assert this.p == that.p;
-    for (int i = 0; i < registers.length; i++) {
-      if (registers[i] < that.registers[i]) {
-        registers[i] = that.registers[i];
-      }
+    if (that.p < p) {
+      foldTo(that.p);
+    }
+    if (that.p > p) {
+      fold(that.registers, registers, histogram);
+    } else {
+      registers.merge(that.registers, histogram);
     }
   }
 
   public long cardinality()
   {
-    final int m = 1 << p;
+    return cardinality(registerHistogram());
+  }
 
-    double registerSum = 0.0;
-    int zeros = 0;
-    for (int i = 0; i < m; i++) {
-      registerSum += 1.0 / (1 << registers[i]);
-      if (registers[i] == 0) {
-        zeros++;
-      }
+  private long cardinality(int[] histogram)
+  {
+    if (HllEstimates.selected(options)) {
+      return HllEstimates.estimate(options, p, Integer.SIZE, histogram);
     }
+    final int m = 1 << p;
+
+    final double registerSum = Registers.harmonicSum(histogram);
+    final int zeros = histogram[0];
 
     final double alpha = 0.7213 / (1 + 1.079 / m);
     final double e = alpha * m * m * (1 / registerSum);
@@ -113,15 +381,44 @@ public class HllRaw implements CardinalityEstimator<HllRaw>
     return e;
   }
 
+  private int[] registerHistogram()
+  {
+    if (histogram != null) {
+      return histogram;
+    }
+    final int[] result = new int[Long.SIZE];
+    registers.histogram(result);
+    return result;
+  }
+
   public long memoryFootprint()
   {
-    return registers.length; // not counting object headers, `p`, `hashFunction` reference
+    // the hasher is shared
+    return ObjectSizes.object(4, Integer.BYTES) + ObjectSizes.ENUM_SET + ObjectSizes.sizeOf(histogram)
+           + registers.retainedSize();
   }
 
   @Override
   public String name()
   {
-    return "hllraw" + p;
+    return "hllraw" + p + HllOption.suffix(options);
+  }
+
+  @Override
+  public int serializedSize()
+  {
+    return SketchFormat.HEADER_SIZE + (int) registers.serializedSize();
+  }
+
+  @Override
+  public void serialize(ByteBuffer out)
+  {
+    final boolean packed = registers instanceof Registers.AbstractPackedRegisters;
+    final byte representation = packed ? SketchFormat.PACKED : SketchFormat.DENSE;
+    SketchFormat.writeHeader(out, SketchFormat.TYPE_HLLRAW, p, representation, options);
+    ByteBuffer body = SketchFormat.startBody(out);
+    registers.writeTo(body);
+    SketchFormat.finishBody(out, body);
   }
 
   public static void main(String[] args)
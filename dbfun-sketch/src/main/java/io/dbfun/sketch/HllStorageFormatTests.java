@@ -0,0 +1,267 @@
+package io.dbfun.sketch;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks {@link PostgresHllFormat} and {@link RedisHllFormat}: golden blobs and hashes, encode/decode round-trips
+ * of every representation, decoded estimates equal to those of the encoded sketch, and merging a blob in place
+ * equal to merging its decoded sketch, into sketches of a higher and a lower precision.
+ */
+public class HllStorageFormatTests
+{
+  private static final HashFunction MURMUR3 = Hashing.murmur3_128();
+  private static final int[] CARDINALITIES = {0, 1, 10, 300, 3_000, 100_000};
+
+  private static int failures;
+
+  public static void main(String[] args)
+  {
+    checkRedisHash();
+    checkGoldenBlobs();
+    for (int cardinality : CARDINALITIES) {
+      checkPostgres(11, cardinality);
+      checkPostgres(14, cardinality);
+      checkRedis(cardinality);
+    }
+    checkPostgresExplicit();
+    checkLargeRanks();
+
+    System.out.printf("%,d failures%n", failures);
+    if (failures > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static void check(boolean condition, String format, Object... args)
+  {
+    if (!condition) {
+      failures++;
+      System.out.printf("FAILED " + format + "%n", args);
+    }
+  }
+
+  /**
+   * MurmurHash64A of Redis' hyperloglog.c, computed by its C code.
+   */
+  private static void checkRedisHash()
+  {
+    final String[] values = {"", "a", "foo", "hello", "12345678", "123456789", "redis hyperloglog"};
+    final long[] hashes = {
+        0xd8dfea6585bc9732L,
+        0x53d2470a9b43b1a7L,
+        0xe64609b8b0141cb4L,
+        0x0f656f01eecfe400L,
+        0x95ebb86389132953L,
+        0x217532cb09f2a44dL,
+        0x73712e8bb3a94a27L
+    };
+    for (int i = 0; i < values.length; i++) {
+      final long hash = RedisHllFormat.hash(values[i].getBytes(StandardCharsets.UTF_8));
+      check(hash == hashes[i], "hash(\"%s\") = %x instead of %x", values[i], hash, hashes[i]);
+    }
+    final byte[] padded = "xx123456789".getBytes(StandardCharsets.UTF_8);
+    check(RedisHllFormat.hash(padded, 2, 9) == hashes[5], "hash of an offset range");
+  }
+
+  private static void checkGoldenBlobs()
+  {
+    // SELECT hll_empty()
+    final byte[] postgresEmpty = {0x11, (byte) 0x8b, 0x7f};
+    check(
+        Arrays.equals(PostgresHllFormat.encode(new Hll64WithBiasCorrection(11, MURMUR3)), postgresEmpty),
+        "hll_empty() encoding"
+    );
+    check(PostgresHllFormat.decode(ByteBuffer.wrap(postgresEmpty)).cardinality() == 0, "hll_empty() decoding");
+
+    // empty sparse HyperLogLog, a single XZERO of 16384 registers
+    final byte[] redisEmpty = {'H', 'Y', 'L', 'L', 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0x80, 0x7f, (byte) 0xff};
+    check(
+        Arrays.equals(RedisHllFormat.encode(new Hll64WithBiasCorrection(14, MURMUR3)), redisEmpty),
+        "empty Redis HyperLogLog encoding"
+    );
+
+    // registers 100 and 101 of rank 3, 16000 of rank 32: XZERO 100, VAL 3 x 2, XZERO 15898, VAL 32, ZERO 64,
+    // XZERO 319
+    final byte[] redisSparse = {
+        'H', 'Y', 'L', 'L', 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+        0x40, 99, (byte) (0x80 | 2 << 2 | 1), 0x40 | 15897 >>> 8, (byte) 15897, (byte) (0x80 | 31 << 2), 63,
+        0x40 | 318 >>> 8, (byte) 318
+    };
+    final Hll64WithBiasCorrection decoded = RedisHllFormat.decode(ByteBuffer.wrap(redisSparse));
+    final Registers registers = decoded.denseRegisters();
+    for (int index = 0; index < 1 << RedisHllFormat.PRECISION; index++) {
+      final int expected = index == 100 || index == 101 ? 3 : index == 16000 ? 32 : 0;
+      final int actual = registers.get(Integer.reverse(index) >>> (Integer.SIZE - RedisHllFormat.PRECISION));
+      check(actual == expected, "register %s of the sparse Redis blob is %s instead of %s", index, actual, expected);
+    }
+    try {
+      final byte[] truncated = Arrays.copyOf(redisSparse, redisSparse.length - 2);
+      RedisHllFormat.mergeInto(decoded, ByteBuffer.wrap(truncated));
+      check(false, "sparse Redis blob of less than 16384 registers accepted");
+    }
+    catch (IllegalArgumentException expected) {
+      // ok
+    }
+  }
+
+  private static Hll64WithBiasCorrection postgresSketch(int p, int from, int to)
+  {
+    final Hll64WithBiasCorrection sketch = new Hll64WithBiasCorrection(p, MURMUR3);
+    for (long value = from; value < to; value++) {
+      // hll_hash_bigint(value)
+      sketch.addHash(Long.reverse(MURMUR3.hashLong(value).asLong()));
+    }
+    return sketch;
+  }
+
+  private static Hll64WithBiasCorrection redisSketch(int p, int from, int to)
+  {
+    final Hll64WithBiasCorrection sketch = new Hll64WithBiasCorrection(p, MURMUR3);
+    for (int value = from; value < to; value++) {
+      // PFADD key value
+      sketch.addHash(Long.reverse(RedisHllFormat.hash(Integer.toString(value).getBytes(StandardCharsets.UTF_8))));
+    }
+    return sketch;
+  }
+
+  private static boolean sameRegisters(Hll64WithBiasCorrection a, Hll64WithBiasCorrection b)
+  {
+    return CardinalityEstimators.serialize(a).equals(CardinalityEstimators.serialize(b));
+  }
+
+  private static void checkPostgres(int p, int cardinality)
+  {
+    final Hll64WithBiasCorrection sketch = postgresSketch(p, 0, cardinality);
+    for (boolean sparse : new boolean[]{true, false}) {
+      final byte[] blob = PostgresHllFormat.encode(sketch, 6, -1, sparse);
+      final int type = blob[0] & 0x0f;
+      check(
+          cardinality == 0 ? type == 1 : sparse ? type == 3 || type == 4 : type == 4,
+          "postgres p=%s n=%s sparse=%s: type %s", p, cardinality, sparse, type
+      );
+      final Hll64WithBiasCorrection decoded = PostgresHllFormat.decode(ByteBuffer.wrap(blob));
+      check(sameRegisters(decoded, sketch), "postgres p=%s n=%s type=%s: round-trip", p, cardinality, type);
+      check(
+          decoded.cardinality() == sketch.cardinality(),
+          "postgres p=%s n=%s type=%s: estimate %s instead of %s",
+          p, cardinality, type, decoded.cardinality(), sketch.cardinality()
+      );
+      checkMergeInto(blob, PostgresHllFormat.decode(ByteBuffer.wrap(blob)), p, true);
+    }
+    checkPostgresRaw(p, cardinality);
+  }
+
+  private static void checkPostgresRaw(int p, int cardinality)
+  {
+    final HllRaw sketch = new HllRaw(p, MURMUR3);
+    for (long value = 0; value < cardinality; value++) {
+      sketch.add(value);
+    }
+    final HllRaw decoded = new HllRaw(p, MURMUR3);
+    PostgresHllFormat.mergeInto(decoded, ByteBuffer.wrap(PostgresHllFormat.encode(sketch)));
+    check(
+        CardinalityEstimators.serialize(decoded).equals(CardinalityEstimators.serialize(sketch)),
+        "postgres hllraw p=%s n=%s: round-trip", p, cardinality
+    );
+  }
+
+  private static void checkPostgresExplicit()
+  {
+    final int n = 100;
+    final ByteBuffer blob = ByteBuffer.allocate(3 + n * Long.BYTES).order(ByteOrder.BIG_ENDIAN);
+    // EXPLICIT, log2m 12, register width 5, sparse enabled, auto explicit threshold
+    blob.put((byte) 0x12).put((byte) (4 << 5 | 12)).put((byte) 0x7f);
+    final long[] hashes = new long[n];
+    for (int i = 0; i < n; i++) {
+      hashes[i] = MURMUR3.hashLong(i).asLong();
+    }
+    Arrays.sort(hashes);
+    for (long hash : hashes) {
+      blob.putLong(hash);
+    }
+    blob.flip();
+    check(sameRegisters(PostgresHllFormat.decode(blob), postgresSketch(12, 0, n)), "postgres EXPLICIT decoding");
+    check(blob.position() == 0, "decode moved the position of the blob");
+  }
+
+  private static void checkRedis(int cardinality)
+  {
+    final Hll64WithBiasCorrection sketch = redisSketch(RedisHllFormat.PRECISION, 0, cardinality);
+    for (int sparseMaxBytes : new int[]{3000, 0}) {
+      final byte[] blob = RedisHllFormat.encode(sketch, sparseMaxBytes);
+      final boolean dense = blob[4] == 0;
+      check(
+          dense == (sparseMaxBytes == 0 || cardinality >= 3_000),
+          "redis n=%s max %s bytes: dense=%s", cardinality, sparseMaxBytes, dense
+      );
+      final Hll64WithBiasCorrection decoded = RedisHllFormat.decode(ByteBuffer.wrap(blob));
+      check(sameRegisters(decoded, sketch), "redis n=%s dense=%s: round-trip", cardinality, dense);
+      check(
+          decoded.cardinality() == sketch.cardinality(),
+          "redis n=%s dense=%s: estimate %s instead of %s",
+          cardinality, dense, decoded.cardinality(), sketch.cardinality()
+      );
+      checkMergeInto(blob, RedisHllFormat.decode(ByteBuffer.wrap(blob)), RedisHllFormat.PRECISION, false);
+    }
+    // from a higher precision
+    final Hll64WithBiasCorrection high = redisSketch(16, 0, cardinality);
+    check(
+        sameRegisters(RedisHllFormat.decode(ByteBuffer.wrap(RedisHllFormat.encode(high))), sketch),
+        "redis n=%s: encoding precision 16", cardinality
+    );
+  }
+
+  /**
+   * Merging `blob` in place must give the same sketch as merging `decoded`, into a target of a higher and of a
+   * lower precision than the blob.
+   */
+  private static void checkMergeInto(byte[] blob, Hll64WithBiasCorrection decoded, int p, boolean postgres)
+  {
+    for (int targetP : new int[]{p + 2, p - 3}) {
+      final Hll64WithBiasCorrection inPlace = sketch(postgres, targetP);
+      final Hll64WithBiasCorrection merged = sketch(postgres, targetP);
+      if (postgres) {
+        PostgresHllFormat.mergeInto(inPlace, ByteBuffer.wrap(blob));
+      } else {
+        RedisHllFormat.mergeInto(inPlace, ByteBuffer.wrap(blob));
+      }
+      merged.merge(decoded);
+      check(
+          sameRegisters(inPlace, merged),
+          "%s p=%s into p=%s: mergeInto", postgres ? "postgres" : "redis", p, targetP
+      );
+    }
+  }
+
+  private static Hll64WithBiasCorrection sketch(boolean postgres, int p)
+  {
+    return postgres ? postgresSketch(p, 50, 400) : redisSketch(p, 50, 400);
+  }
+
+  /**
+   * Ranks a 32-bit hash can't give survive a round-trip: decoded blobs keep the 64-bit estimate of the sketch.
+   */
+  private static void checkLargeRanks()
+  {
+    final Random random = new Random(7);
+    final Hll64WithBiasCorrection sketch = new Hll64WithBiasCorrection(RedisHllFormat.PRECISION, MURMUR3);
+    for (int i = 0; i < 1000; i++) {
+      // rank 30 to 50 in the layout of Redis: 14 random index bits, then trailing zeros
+      final long hash = (random.nextLong() | 1L << 63) << (RedisHllFormat.PRECISION + 29 + random.nextInt(21))
+                        | random.nextInt(1 << RedisHllFormat.PRECISION);
+      sketch.addHash(Long.reverse(hash));
+    }
+    final byte[] redis = RedisHllFormat.encode(sketch);
+    check(redis[4] == 0, "redis registers above 32 encoded sparse");
+    check(sameRegisters(RedisHllFormat.decode(ByteBuffer.wrap(redis)), sketch), "redis ranks above 32");
+    final byte[] postgres = PostgresHllFormat.encode(sketch, 6, -1, true);
+    check(sameRegisters(PostgresHllFormat.decode(ByteBuffer.wrap(postgres)), sketch), "postgres ranks above 32");
+  }
+}
@@ -0,0 +1,500 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+import java.util.Arrays;
+
+/**
+ * COUNT(DISTINCT value) GROUP BY key over millions of long keys, without an estimator object per key.
+ *
+ * <p>Keys are in a primitive open-addressing map to group ids, groups are described by a few parallel arrays,
+ * and the state of every group is a block of words in large shared pages (a slab of long[] pages):
+ * <ul>
+ *   <li>small groups are sets of the high 32 bits of value hashes, open-addressing tables of two entries per
+ *   word doubling from 1 word, counted exactly up to 32-bit collisions like {@link Hll16Combined}
+ *   <li>a set that would outgrow the registers is replaced by 2^p one-byte HLL registers packed in 2^p / 8 words,
+ *   indexed and ranked like {@link Hll64WithBiasCorrection}, whose estimate is then the same as a dense
+ *   "hllnobias" sketch of the group's values. Values added while the group was a set only set ranks up to
+ *   33 - p, which takes billions of values per group to matter.
+ * </ul>
+ * Blocks given up by growing sets are reused through free lists per block size. A group takes about 30 bytes plus
+ * its block, which never exceeds the registers: 2^p bytes.
+ *
+ * <p>Values are hashed with murmur3_128 like the estimators of {@link CardinalityEstimators#get(String)}.
+ * Zero marks empty set slots, a set entry of zero is stored as 1. Not thread-safe.
+ */
+public final class KeyedDistinctCounter
+{
+  private static final int DEFAULT_PRECISION = 14;
+  private static final ValueHasher HASHER = ValueHasher.of(Hashing.murmur3_128());
+
+  // 512KB pages, block addresses are ints: page << PAGE_SHIFT | word offset
+  private static final int PAGE_SHIFT = 16;
+  private static final int PAGE_WORDS = 1 << PAGE_SHIFT;
+  private static final int MAX_PAGES = 1 << (Integer.SIZE - 1 - PAGE_SHIFT);
+
+  private static final int MIN_SET_CAPACITY_LOG = 0;
+  // count of a group holding registers instead of a set
+  private static final int DENSE = -1;
+  private static final int NO_BLOCK = -1;
+
+  private final int p;
+  private final int registerWordsLog;
+  private final int[] histogram = new int[Long.SIZE];
+
+  // key map, group ids or -1 in empty slots
+  private int[] slots;
+  private int size;
+
+  // groups, by id
+  private long[] keys;
+  private int[] addresses;
+  private int[] counts;
+  private byte[] capacityLogs;
+
+  // slab
+  private long[][] pages;
+  private int pageCount;
+  private int pageTop;
+  // by capacity log, address of the first free block, whose first word holds the address of the next one
+  private final int[] freeBlocks;
+
+  public KeyedDistinctCounter()
+  {
+    this(DEFAULT_PRECISION);
+  }
+
+  /**
+   * @param precision log2 of the number of registers of large groups, in [8, 18]
+   */
+  public KeyedDistinctCounter(int precision)
+  {
+    Preconditions.checkArgument(
+        precision >= 8 && precision <= 18,
+        "invalid precision [%s] : should be in [8, 18]", precision
+    );
+    this.p = precision;
+    this.registerWordsLog = precision - 3;
+    this.slots = new int[16];
+    Arrays.fill(slots, -1);
+    this.keys = new long[8];
+    this.addresses = new int[8];
+    this.counts = new int[8];
+    this.capacityLogs = new byte[8];
+    this.pages = new long[4][];
+    this.freeBlocks = new int[registerWordsLog + 1];
+    Arrays.fill(freeBlocks, NO_BLOCK);
+  }
+
+  public int precision()
+  {
+    return p;
+  }
+
+  /**
+   * @return number of keys
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  public void add(long key, long value)
+  {
+    addHash(key, HASHER.hash(value));
+  }
+
+  public void add(long key, byte[] value)
+  {
+    addHash(key, HASHER.hash(value, 0, value.length));
+  }
+
+  public void add(long key, byte[] value, int offset, int length)
+  {
+    addHash(key, HASHER.hash(value, offset, length));
+  }
+
+  public void add(long key, CharSequence value)
+  {
+    addHash(key, HASHER.hash(value));
+  }
+
+  /**
+   * Same as add(keys[i], values[i]) for i in [offset, offset + length), hashing values a batch at a time.
+   */
+  public void add(long[] keys, long[] values, int offset, int length)
+  {
+    Preconditions.checkPositionIndexes(offset, offset + length, keys.length);
+    final long[] hashes = ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      final int count = HASHER.hash(values, from, Math.min(end, from + hashes.length), null, hashes);
+      for (int i = 0; i < count; i++) {
+        addHash(keys[from + i], hashes[i]);
+      }
+    }
+  }
+
+  /**
+   * Add a value by its hash, see {@link Hll64WithBiasCorrection#addHash(long)} for the bits used.
+   */
+  public void addHash(long key, long hash)
+  {
+    addHashToGroup(group(key), hash);
+  }
+
+  /**
+   * @return estimated number of distinct values of `key`, 0 for keys never added to
+   */
+  public long cardinality(long key)
+  {
+    final int id = find(key);
+    return id < 0 ? 0 : cardinalityOf(id);
+  }
+
+  /**
+   * Add all values of all keys of `that`, which must have the same precision.
+   */
+  public void merge(KeyedDistinctCounter that)
+  {
+    Preconditions.checkArgument(that.p == p, "can't merge precision %s into %s", that.p, p);
+    for (int other = 0; other < that.size; other++) {
+      final int id = group(that.keys[other]);
+      final int otherAddress = that.addresses[other];
+      final long[] otherPage = that.pages[otherAddress >>> PAGE_SHIFT];
+      final int otherBase = otherAddress & (PAGE_WORDS - 1);
+      if (that.counts[other] == DENSE) {
+        if (counts[id] != DENSE) {
+          toDense(id);
+        }
+        final int address = addresses[id];
+        final long[] page = pages[address >>> PAGE_SHIFT];
+        final int base = address & (PAGE_WORDS - 1);
+        for (int i = 0; i < 1 << registerWordsLog; i++) {
+          page[base + i] = Registers.AbstractByteRegisters.maxWord(page[base + i], otherPage[otherBase + i]);
+        }
+      } else {
+        for (int i = 0; i < 2 << that.capacityLogs[other]; i++) {
+          final int entry = getEntry(otherPage, otherBase, i);
+          if (entry != 0) {
+            addEntryToGroup(id, entry);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return a cursor over all keys and their cardinality, in the order keys were first added
+   */
+  public Cursor cursor()
+  {
+    return new Cursor();
+  }
+
+  /**
+   * @return bytes retained by the key map, group arrays and slab pages, including unused slots and page space
+   */
+  public long memoryFootprint()
+  {
+    return ObjectSizes.object(8, 5 * Integer.BYTES)
+           + ObjectSizes.sizeOf(slots)
+           + ObjectSizes.sizeOf(histogram)
+           + ObjectSizes.sizeOf(freeBlocks)
+           + ObjectSizes.sizeOf(keys)
+           + ObjectSizes.sizeOf(addresses)
+           + ObjectSizes.sizeOf(counts)
+           + ObjectSizes.sizeOf(capacityLogs)
+           + ObjectSizes.array(pages.length, ObjectSizes.REFERENCE)
+           + ObjectSizes.array(PAGE_WORDS, Long.BYTES) * pageCount;
+  }
+
+  private int find(long key)
+  {
+    final int mask = slots.length - 1;
+    for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+      final int id = slots[slot];
+      if (id < 0 || keys[id] == key) {
+        return id;
+      }
+    }
+  }
+
+  /**
+   * @return id of the group of `key`, new if `key` has none
+   */
+  private int group(long key)
+  {
+    final int mask = slots.length - 1;
+    int slot = slot(key, mask);
+    for (int id = slots[slot]; id >= 0; id = slots[slot]) {
+      if (keys[id] == key) {
+        return id;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (size >= slots.length - (slots.length >>> 2)) {
+      growSlots();
+      return group(key);
+    }
+    if (size == keys.length) {
+      final int capacity = keys.length * 2;
+      keys = Arrays.copyOf(keys, capacity);
+      addresses = Arrays.copyOf(addresses, capacity);
+      counts = Arrays.copyOf(counts, capacity);
+      capacityLogs = Arrays.copyOf(capacityLogs, capacity);
+    }
+    final int id = size++;
+    slots[slot] = id;
+    keys[id] = key;
+    addresses[id] = allocate(MIN_SET_CAPACITY_LOG);
+    counts[id] = 0;
+    capacityLogs[id] = MIN_SET_CAPACITY_LOG;
+    return id;
+  }
+
+  private static int slot(long key, int mask)
+  {
+    return (int) Murmur3.fmix64(key) & mask;
+  }
+
+  private void growSlots()
+  {
+    slots = new int[slots.length * 2];
+    Arrays.fill(slots, -1);
+    final int mask = slots.length - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = slot(keys[id], mask);
+      while (slots[slot] >= 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = id;
+    }
+  }
+
+  private void addHashToGroup(int id, long hash)
+  {
+    if (counts[id] == DENSE) {
+      updateRegister(addresses[id], hash);
+    } else {
+      addEntry(id, entry(hash));
+    }
+  }
+
+  private void addEntryToGroup(int id, int entry)
+  {
+    if (counts[id] == DENSE) {
+      updateRegister(addresses[id], hash(entry));
+    } else {
+      addEntry(id, entry);
+    }
+  }
+
+  /**
+   * @return set entry of `hash`: its high 32 bits, the index and the leading bits of the rank
+   */
+  private static int entry(long hash)
+  {
+    final int entry = (int) (hash >>> 32);
+    return entry == 0 ? 1 : entry;
+  }
+
+  /**
+   * @return a hash of the same register index and rank as the hashes of `entry`, with the rank capped
+   * at 33 - p when the 32 - p bits after the index are all zero
+   */
+  private static long hash(int entry)
+  {
+    return ((long) entry << 32) | (1L << 31);
+  }
+
+  // sets are open-addressing tables of 32-bit entries, two per word, the low half first
+
+  private static int getEntry(long[] page, int base, int slot)
+  {
+    return (int) (page[base + (slot >>> 1)] >>> ((slot & 1) << 5));
+  }
+
+  private static void setEntry(long[] page, int base, int slot, int entry)
+  {
+    // the slot is empty, its bits are zero
+    page[base + (slot >>> 1)] |= (entry & 0xffffffffL) << ((slot & 1) << 5);
+  }
+
+  private void addEntry(int id, int entry)
+  {
+    final int address = addresses[id];
+    final long[] page = pages[address >>> PAGE_SHIFT];
+    final int base = address & (PAGE_WORDS - 1);
+    final int mask = (2 << capacityLogs[id]) - 1;
+    int slot = entry & mask;
+    for (int current = getEntry(page, base, slot); current != 0; current = getEntry(page, base, slot)) {
+      if (current == entry) {
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    // keep sets at most half-full
+    if (counts[id] >= (mask + 1) >>> 1) {
+      growSet(id);
+      addEntryToGroup(id, entry);
+      return;
+    }
+    setEntry(page, base, slot, entry);
+    counts[id]++;
+  }
+
+  private void growSet(int id)
+  {
+    final int capacityLog = capacityLogs[id] + 1;
+    if (capacityLog > registerWordsLog) {
+      toDense(id);
+      return;
+    }
+    final int oldAddress = addresses[id];
+    final int oldCapacityLog = capacityLogs[id];
+    final int address = allocate(capacityLog);
+    final long[] oldPage = pages[oldAddress >>> PAGE_SHIFT];
+    final int oldBase = oldAddress & (PAGE_WORDS - 1);
+    final long[] page = pages[address >>> PAGE_SHIFT];
+    final int base = address & (PAGE_WORDS - 1);
+    final int mask = (2 << capacityLog) - 1;
+    for (int i = 0; i < 2 << oldCapacityLog; i++) {
+      final int entry = getEntry(oldPage, oldBase, i);
+      if (entry != 0) {
+        int slot = entry & mask;
+        while (getEntry(page, base, slot) != 0) {
+          slot = (slot + 1) & mask;
+        }
+        setEntry(page, base, slot, entry);
+      }
+    }
+    free(oldAddress, oldCapacityLog);
+    addresses[id] = address;
+    capacityLogs[id] = (byte) capacityLog;
+  }
+
+  private void toDense(int id)
+  {
+    final int oldAddress = addresses[id];
+    final int oldCapacityLog = capacityLogs[id];
+    final int address = allocate(registerWordsLog);
+    final long[] oldPage = pages[oldAddress >>> PAGE_SHIFT];
+    final int oldBase = oldAddress & (PAGE_WORDS - 1);
+    for (int i = 0; i < 2 << oldCapacityLog; i++) {
+      final int entry = getEntry(oldPage, oldBase, i);
+      if (entry != 0) {
+        updateRegister(address, hash(entry));
+      }
+    }
+    free(oldAddress, oldCapacityLog);
+    addresses[id] = address;
+    capacityLogs[id] = (byte) registerWordsLog;
+    counts[id] = DENSE;
+  }
+
+  private void updateRegister(int address, long hash)
+  {
+    final int index = (int) (hash >>> (Long.SIZE - p));
+    final long rank = Long.numberOfLeadingZeros((hash << p) | (1L << (p - 1))) + 1;
+    final long[] page = pages[address >>> PAGE_SHIFT];
+    final int word = (address & (PAGE_WORDS - 1)) + (index >>> 3);
+    final int shift = (index & 7) << 3;
+    final long current = page[word];
+    if (((current >>> shift) & 0xff) < rank) {
+      page[word] = (current & ~(0xffL << shift)) | (rank << shift);
+    }
+  }
+
+  private long cardinalityOf(int id)
+  {
+    if (counts[id] != DENSE) {
+      return counts[id];
+    }
+    final int address = addresses[id];
+    final long[] page = pages[address >>> PAGE_SHIFT];
+    final int base = address & (PAGE_WORDS - 1);
+    Arrays.fill(histogram, 0);
+    for (int i = 0; i < 1 << registerWordsLog; i++) {
+      Registers.AbstractByteRegisters.histogram(page[base + i], histogram);
+    }
+    return Hll64WithBiasCorrection.denseCardinality(p, histogram);
+  }
+
+  /**
+   * @return address of a zeroed block of 2^capacityLog words, which never crosses pages
+   */
+  private int allocate(int capacityLog)
+  {
+    final int words = 1 << capacityLog;
+    final int free = freeBlocks[capacityLog];
+    if (free != NO_BLOCK) {
+      final long[] page = pages[free >>> PAGE_SHIFT];
+      final int offset = free & (PAGE_WORDS - 1);
+      freeBlocks[capacityLog] = (int) page[offset];
+      Arrays.fill(page, offset, offset + words, 0L);
+      return free;
+    }
+    if (pageCount == 0 || pageTop + words > PAGE_WORDS) {
+      addPage();
+    }
+    final int address = ((pageCount - 1) << PAGE_SHIFT) | pageTop;
+    pageTop += words;
+    return address;
+  }
+
+  private void free(int address, int capacityLog)
+  {
+    pages[address >>> PAGE_SHIFT][address & (PAGE_WORDS - 1)] = freeBlocks[capacityLog];
+    freeBlocks[capacityLog] = address;
+  }
+
+  private void addPage()
+  {
+    if (pageCount == MAX_PAGES) {
+      throw new IllegalStateException("slab is full : " + pageCount + " pages");
+    }
+    if (pageCount == pages.length) {
+      pages = Arrays.copyOf(pages, pages.length * 2);
+    }
+    pages[pageCount++] = new long[PAGE_WORDS];
+    pageTop = 0;
+  }
+
+  /**
+   * Iterates keys without boxing:
+   * <pre>
+   * for (Cursor cursor = counter.cursor(); cursor.next(); ) {
+   *   use(cursor.key(), cursor.cardinality());
+   * }
+   * </pre>
+   * Keys added while iterating are visited, if they are new they come last.
+   */
+  public final class Cursor
+  {
+    private int id = -1;
+
+    private Cursor()
+    {
+    }
+
+    /**
+     * @return false once all keys were visited
+     */
+    public boolean next()
+    {
+      return ++id < size;
+    }
+
+    public long key()
+    {
+      return keys[id];
+    }
+
+    public long cardinality()
+    {
+      return cardinalityOf(id);
+    }
+  }
+}
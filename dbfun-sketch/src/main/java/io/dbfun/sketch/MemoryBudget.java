@@ -0,0 +1,321 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Upper bound of the memory retained by a set of estimators, for capacity planning of many sketches whose size
+ * depends on the data: a sudden spike of cardinality otherwise turns small hash sets into dense registers
+ * everywhere at once.
+ *
+ * <p>Tracked estimators are charged their {@link CardinalityEstimator#memoryFootprint()}. Those that grow
+ * ({@link UniqCounter}, {@link OffHeapUniqCounter} and the hash table of {@link Hll16Combined} on resize,
+ * the sparse {@link Hll64WithBiasCorrection} and {@link Hll16Combined} on conversion to dense registers) reserve
+ * the bytes they are about to allocate first, and are charged their new footprint once done. The sparse lists of
+ * {@link Hll64WithBiasCorrection} and {@link Hll16Combined} are charged after they grew, which never fails.
+ * Other estimators keep the size they were tracked with.
+ *
+ * <p>A reservation over the limit applies the {@link Policy} of the budget. If it can't make room, the reservation
+ * fails with an {@link ExceededException} and the estimator is left as it was before the add or merge.
+ *
+ * <p>Methods are synchronized, so estimators used by different threads can share a {@link Policy#REFUSE} budget.
+ * The other policies change or drop estimators other than the one growing, from the thread that grows: all their
+ * estimators must be used by a single thread.
+ */
+public final class MemoryBudget
+{
+  public enum Policy
+  {
+    /**
+     * Fail the add or merge that would exceed the limit.
+     */
+    REFUSE,
+
+    /**
+     * Fold the largest dense {@link HllRaw} or {@link Hll64WithBiasCorrection} to one less precision, halving
+     * its registers, until there is room or all are at the minimum precision.
+     */
+    FOLD,
+
+    /**
+     * Hand the least recently grown or tracked estimators over to a {@link SpillStore} until there is room.
+     */
+    SPILL
+  }
+
+  /**
+   * Where {@link Policy#SPILL} evicts estimators to.
+   */
+  public interface SpillStore
+  {
+    /**
+     * Take over `estimator`, which the budget no longer tracks: typically serialize it to disk, then drop it from
+     * wherever the application keeps it, so that it can be collected. Called while the budget is locked.
+     */
+    void spill(CardinalityEstimator estimator);
+  }
+
+  public static final class ExceededException extends IllegalStateException
+  {
+    private static final long serialVersionUID = 1L;
+
+    private ExceededException(String message)
+    {
+      super(message);
+    }
+  }
+
+  private final long limit;
+  private final Policy policy;
+  private final int minPrecision;
+  private final SpillStore spillStore;
+
+  // bytes charged to every tracked estimator, least recently charged first
+  private final LinkedHashMap<CardinalityEstimator, Long> charges = new LinkedHashMap<>(16, 0.75f, true);
+  private long used;
+  private long folds;
+  private long spills;
+
+  private MemoryBudget(long limit, Policy policy, int minPrecision, SpillStore spillStore)
+  {
+    Preconditions.checkArgument(limit >= 0, "invalid limit [%s]", limit);
+    this.limit = limit;
+    this.policy = policy;
+    this.minPrecision = minPrecision;
+    this.spillStore = spillStore;
+  }
+
+  public static MemoryBudget refusing(long limit)
+  {
+    return new MemoryBudget(limit, Policy.REFUSE, 0, null);
+  }
+
+  /**
+   * @param minPrecision precision below which estimators are never folded
+   */
+  public static MemoryBudget folding(long limit, int minPrecision)
+  {
+    Preconditions.checkArgument(minPrecision >= 7, "invalid minPrecision [%s] : should be at least 7", minPrecision);
+    return new MemoryBudget(limit, Policy.FOLD, minPrecision, null);
+  }
+
+  public static MemoryBudget spilling(long limit, SpillStore spillStore)
+  {
+    return new MemoryBudget(limit, Policy.SPILL, 0, Preconditions.checkNotNull(spillStore));
+  }
+
+  public long limit()
+  {
+    return limit;
+  }
+
+  public Policy policy()
+  {
+    return policy;
+  }
+
+  /**
+   * @return bytes charged to the tracked estimators
+   */
+  public synchronized long used()
+  {
+    return used;
+  }
+
+  public synchronized int trackedCount()
+  {
+    return charges.size();
+  }
+
+  /**
+   * @return number of estimators folded by {@link Policy#FOLD}, one precision at a time
+   */
+  public synchronized long foldCount()
+  {
+    return folds;
+  }
+
+  /**
+   * @return number of estimators evicted by {@link Policy#SPILL}
+   */
+  public synchronized long spillCount()
+  {
+    return spills;
+  }
+
+  /**
+   * Charge `estimator` its current footprint and its growth from now on, until {@link #untrack} or eviction.
+   *
+   * @throws ExceededException if there is no room for it, in which case it isn't tracked
+   * @throws IllegalArgumentException if it is already tracked by a budget
+   */
+  public synchronized <T extends CardinalityEstimator> T track(T estimator)
+  {
+    Preconditions.checkArgument(
+        !charges.containsKey(estimator) && budgetOf(estimator) == null,
+        "%s is already tracked", estimator.name()
+    );
+    final long footprint = estimator.memoryFootprint();
+    makeRoom(estimator, footprint, true);
+    charges.put(estimator, footprint);
+    used += footprint;
+    attach(estimator, this);
+    return estimator;
+  }
+
+  /**
+   * Stop tracking `estimator` and release its bytes, does nothing if it isn't tracked.
+   */
+  public synchronized void untrack(CardinalityEstimator estimator)
+  {
+    final Long charge = charges.remove(estimator);
+    if (charge != null) {
+      used -= charge;
+      attach(estimator, null);
+    }
+  }
+
+  /**
+   * Charge `owner` for `bytes` it is about to allocate, settled by {@link #settle} once done.
+   *
+   * @throws ExceededException if the policy can't make room, nothing is charged then
+   */
+  synchronized void reserve(CardinalityEstimator owner, long bytes)
+  {
+    final Long charge = charges.get(owner);
+    if (charge == null) {
+      return;
+    }
+    makeRoom(owner, bytes, true);
+    charges.put(owner, charge + bytes);
+    used += bytes;
+  }
+
+  /**
+   * Charge `owner` its current footprint, after it grew or released memory. Makes room if that is over the limit,
+   * but never fails.
+   */
+  synchronized void settle(CardinalityEstimator owner)
+  {
+    final Long charge = charges.get(owner);
+    if (charge == null) {
+      return;
+    }
+    final long footprint = owner.memoryFootprint();
+    charges.put(owner, footprint);
+    used += footprint - charge;
+    makeRoom(owner, 0, false);
+  }
+
+  private void makeRoom(CardinalityEstimator owner, long bytes, boolean required)
+  {
+    while (used + bytes > limit) {
+      if (policy == Policy.FOLD && foldLargest(owner)) {
+        continue;
+      }
+      if (policy == Policy.SPILL && spillOldest(owner)) {
+        continue;
+      }
+      if (!required) {
+        return;
+      }
+      throw new ExceededException(
+          "memory budget exceeded : " + used + " + " + bytes + " bytes over the limit of " + limit
+      );
+    }
+  }
+
+  private boolean foldLargest(CardinalityEstimator owner)
+  {
+    CardinalityEstimator largest = null;
+    long largestCharge = 0;
+    for (Map.Entry<CardinalityEstimator, Long> entry : charges.entrySet()) {
+      if (entry.getKey() != owner && entry.getValue() > largestCharge && foldablePrecision(entry.getKey()) > minPrecision) {
+        largest = entry.getKey();
+        largestCharge = entry.getValue();
+      }
+    }
+    if (largest == null) {
+      return false;
+    }
+    final int precision = foldablePrecision(largest);
+    if (largest instanceof HllRaw) {
+      ((HllRaw) largest).foldTo(precision - 1);
+    } else {
+      ((Hll64WithBiasCorrection) largest).foldTo(precision - 1);
+    }
+    // a folded Hll64WithBiasCorrection settles its charge already
+    final long footprint = largest.memoryFootprint();
+    used += footprint - charges.put(largest, footprint);
+    folds++;
+    return true;
+  }
+
+  /**
+   * @return precision of `estimator` if folding it to a lower one would halve its registers, 0 otherwise
+   */
+  private static int foldablePrecision(CardinalityEstimator estimator)
+  {
+    if (estimator instanceof HllRaw) {
+      return ((HllRaw) estimator).precision();
+    }
+    if (estimator instanceof Hll64WithBiasCorrection && ((Hll64WithBiasCorrection) estimator).isDense()) {
+      return ((Hll64WithBiasCorrection) estimator).precision();
+    }
+    return 0;
+  }
+
+  private boolean spillOldest(CardinalityEstimator owner)
+  {
+    final Iterator<Map.Entry<CardinalityEstimator, Long>> it = charges.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<CardinalityEstimator, Long> entry = it.next();
+      final CardinalityEstimator oldest = entry.getKey();
+      if (oldest != owner) {
+        it.remove();
+        used -= entry.getValue();
+        attach(oldest, null);
+        spills++;
+        spillStore.spill(oldest);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static MemoryBudget budgetOf(CardinalityEstimator estimator)
+  {
+    if (estimator instanceof Hll64WithBiasCorrection) {
+      return ((Hll64WithBiasCorrection) estimator).budget();
+    }
+    if (estimator instanceof Hll16Combined) {
+      return ((Hll16Combined) estimator).budget();
+    }
+    if (estimator instanceof UniqCounter) {
+      return ((UniqCounter) estimator).budget();
+    }
+    if (estimator instanceof OffHeapUniqCounter) {
+      return ((OffHeapUniqCounter) estimator).budget();
+    }
+    return null;
+  }
+
+  /**
+   * Let the estimators that grow report to `budget`, or stop reporting if null.
+   */
+  private static void attach(CardinalityEstimator estimator, MemoryBudget budget)
+  {
+    if (estimator instanceof Hll64WithBiasCorrection) {
+      ((Hll64WithBiasCorrection) estimator).budget(budget);
+    } else if (estimator instanceof Hll16Combined) {
+      ((Hll16Combined) estimator).budget(budget);
+    } else if (estimator instanceof UniqCounter) {
+      ((UniqCounter) estimator).budget(budget);
+    } else if (estimator instanceof OffHeapUniqCounter) {
+      ((OffHeapUniqCounter) estimator).budget(budget);
+    }
+  }
+}
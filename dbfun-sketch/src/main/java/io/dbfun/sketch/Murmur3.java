@@ -0,0 +1,244 @@
+package io.dbfun.sketch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Allocation-free MurmurHash3 x64_128 (seed 0), returning the first 64 bits of the 128-bits hash.
+ *
+ * <p>Results are identical to {@code Hashing.murmur3_128().hashXXX(value).asLong()} of Guava,
+ * without allocating a Hasher and a HashCode per call. The int hash used by 32-bits estimators
+ * ({@code asInt()}) is the low 32 bits of the result.
+ *
+ * <p>see https://github.com/aappleby/smhasher/blob/master/src/MurmurHash3.cpp
+ */
+public final class Murmur3
+{
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private Murmur3()
+  {
+  }
+
+  /**
+   * @return hash of the 8 bytes of `value` in little-endian order
+   */
+  public static long hash64(long value)
+  {
+    long h1 = mixK1(value);
+    long h2 = 0;
+    return finish(h1, h2, Long.BYTES);
+  }
+
+  public static long hash64(byte[] data)
+  {
+    return hash64(data, 0, data.length);
+  }
+
+  public static long hash64(byte[] data, int offset, int length)
+  {
+    long h1 = 0;
+    long h2 = 0;
+    final int blocksEnd = offset + (length & ~15);
+    int i = offset;
+    for (; i < blocksEnd; i += 16) {
+      h1 ^= mixK1(getLongLittleEndian(data, i));
+      h1 = Long.rotateLeft(h1, 27) + h2;
+      h1 = h1 * 5 + 0x52dce729;
+      h2 ^= mixK2(getLongLittleEndian(data, i + 8));
+      h2 = Long.rotateLeft(h2, 31) + h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    long k1 = 0;
+    long k2 = 0;
+    final int tail = length & 15;
+    for (int j = tail - 1; j >= 8; j--) {
+      k2 = (k2 << 8) | (data[i + j] & 0xffL);
+    }
+    for (int j = Math.min(tail, 8) - 1; j >= 0; j--) {
+      k1 = (k1 << 8) | (data[i + j] & 0xffL);
+    }
+    if (tail > 8) {
+      h2 ^= mixK2(k2);
+    }
+    if (tail > 0) {
+      h1 ^= mixK1(k1);
+    }
+    return finish(h1, h2, length);
+  }
+
+  /**
+   * @return hash of the remaining bytes of `data`, without changing its position
+   */
+  public static long hash64(ByteBuffer data)
+  {
+    if (data.hasArray()) {
+      return hash64(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+
+    final boolean bigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+    final int length = data.remaining();
+    long h1 = 0;
+    long h2 = 0;
+    final int blocksEnd = data.position() + (length & ~15);
+    int i = data.position();
+    for (; i < blocksEnd; i += 16) {
+      long k1 = data.getLong(i);
+      long k2 = data.getLong(i + 8);
+      if (bigEndian) {
+        k1 = Long.reverseBytes(k1);
+        k2 = Long.reverseBytes(k2);
+      }
+      h1 ^= mixK1(k1);
+      h1 = Long.rotateLeft(h1, 27) + h2;
+      h1 = h1 * 5 + 0x52dce729;
+      h2 ^= mixK2(k2);
+      h2 = Long.rotateLeft(h2, 31) + h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    long k1 = 0;
+    long k2 = 0;
+    final int tail = length & 15;
+    for (int j = tail - 1; j >= 8; j--) {
+      k2 = (k2 << 8) | (data.get(i + j) & 0xffL);
+    }
+    for (int j = Math.min(tail, 8) - 1; j >= 0; j--) {
+      k1 = (k1 << 8) | (data.get(i + j) & 0xffL);
+    }
+    if (tail > 8) {
+      h2 ^= mixK2(k2);
+    }
+    if (tail > 0) {
+      h1 ^= mixK1(k1);
+    }
+    return finish(h1, h2, length);
+  }
+
+  /**
+   * @return hash of the UTF-8 encoding of `chars`, same as {@code hash64(chars.toString().getBytes(UTF_8))}
+   * (unpaired surrogates are encoded as '?'), encoding on the fly without allocating
+   */
+  public static long hash64(CharSequence chars)
+  {
+    long h1 = 0;
+    long h2 = 0;
+    long k1 = 0;
+    long k2 = 0;
+    int blockPos = 0;
+    int length = 0;
+
+    final int numChars = chars.length();
+    for (int i = 0; i < numChars; i++) {
+      final char c = chars.charAt(i);
+      // up to 4 UTF-8 bytes of the char, first byte in the lowest bits
+      int utf8;
+      int numBytes;
+      if (c < 0x80) {
+        utf8 = c;
+        numBytes = 1;
+      } else if (c < 0x800) {
+        utf8 = (0xc0 | (c >>> 6)) | ((0x80 | (c & 0x3f)) << 8);
+        numBytes = 2;
+      } else if (!Character.isSurrogate(c)) {
+        utf8 = (0xe0 | (c >>> 12)) | ((0x80 | ((c >>> 6) & 0x3f)) << 8) | ((0x80 | (c & 0x3f)) << 16);
+        numBytes = 3;
+      } else if (Character.isHighSurrogate(c) && i + 1 < numChars && Character.isLowSurrogate(chars.charAt(i + 1))) {
+        final int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+        utf8 = (0xf0 | (codePoint >>> 18))
+               | ((0x80 | ((codePoint >>> 12) & 0x3f)) << 8)
+               | ((0x80 | ((codePoint >>> 6) & 0x3f)) << 16)
+               | ((0x80 | (codePoint & 0x3f)) << 24);
+        numBytes = 4;
+      } else {
+        utf8 = '?';
+        numBytes = 1;
+      }
+
+      for (int j = 0; j < numBytes; j++, utf8 >>>= 8) {
+        final long b = utf8 & 0xffL;
+        if (blockPos < 8) {
+          k1 |= b << (blockPos << 3);
+        } else {
+          k2 |= b << ((blockPos - 8) << 3);
+        }
+        if (++blockPos == 16) {
+          h1 ^= mixK1(k1);
+          h1 = Long.rotateLeft(h1, 27) + h2;
+          h1 = h1 * 5 + 0x52dce729;
+          h2 ^= mixK2(k2);
+          h2 = Long.rotateLeft(h2, 31) + h1;
+          h2 = h2 * 5 + 0x38495ab5;
+          k1 = 0;
+          k2 = 0;
+          blockPos = 0;
+        }
+      }
+      length += numBytes;
+    }
+
+    if (blockPos > 8) {
+      h2 ^= mixK2(k2);
+    }
+    if (blockPos > 0) {
+      h1 ^= mixK1(k1);
+    }
+    return finish(h1, h2, length);
+  }
+
+  /**
+   * MurmurHash3 64-bit finalizer, a fast and well distributed hash for long values.
+   * Note that it maps 0 to 0.
+   */
+  public static long fmix64(long k)
+  {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+  private static long mixK1(long k1)
+  {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    k1 *= C2;
+    return k1;
+  }
+
+  private static long mixK2(long k2)
+  {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    k2 *= C1;
+    return k2;
+  }
+
+  private static long finish(long h1, long h2, int length)
+  {
+    h1 ^= length;
+    h2 ^= length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    return h1;
+  }
+
+  private static long getLongLittleEndian(byte[] data, int offset)
+  {
+    return (data[offset] & 0xffL)
+           | (data[offset + 1] & 0xffL) << 8
+           | (data[offset + 2] & 0xffL) << 16
+           | (data[offset + 3] & 0xffL) << 24
+           | (data[offset + 4] & 0xffL) << 32
+           | (data[offset + 5] & 0xffL) << 40
+           | (data[offset + 6] & 0xffL) << 48
+           | (data[offset + 7] & 0xffL) << 56;
+  }
+}
@@ -0,0 +1,83 @@
+package io.dbfun.sketch;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+
+/**
+ * Shallow sizes of objects and arrays on the running JVM, for the memoryFootprint() of estimators.
+ *
+ * <p>Header and reference sizes are read from the array layout, which covers compressed oops on and off.
+ * The fields of an object are assumed to pack without gaps, which is what HotSpot does for the few
+ * fields of the classes of this package.
+ */
+final class ObjectSizes
+{
+  // shared by the classes of this package reading arrays and native memory directly
+  static final Unsafe UNSAFE = unsafe();
+  private static final int ALIGNMENT = 8;
+
+  static final int REFERENCE = UNSAFE.arrayIndexScale(Object[].class);
+  static final int ARRAY_HEADER = UNSAFE.arrayBaseOffset(byte[].class);
+  // an array header is an object header followed by the int length
+  static final int OBJECT_HEADER = ARRAY_HEADER - Integer.BYTES;
+
+  /**
+   * Heap buffers wrapped by read-only views: 4 ints, a long address, the array, offset and a few flags.
+   */
+  static final long BYTE_BUFFER = object(2, 6 * Integer.BYTES + Long.BYTES);
+
+  /**
+   * EnumSet of up to 64 constants, such as the set of {@link HllOption}: the element type, the constants and a long.
+   */
+  static final long ENUM_SET = object(2, Long.BYTES);
+
+  private ObjectSizes()
+  {
+  }
+
+  private static Unsafe unsafe()
+  {
+    try {
+      Field field = Unsafe.class.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      return (Unsafe) field.get(null);
+    }
+    catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  static long align(long size)
+  {
+    return (size + ALIGNMENT - 1) & -ALIGNMENT;
+  }
+
+  /**
+   * @return size of an object with `references` reference fields and `primitiveBytes` of other fields
+   */
+  static long object(int references, int primitiveBytes)
+  {
+    return align(OBJECT_HEADER + (long) REFERENCE * references + primitiveBytes);
+  }
+
+  static long array(int length, int elementBytes)
+  {
+    return align(ARRAY_HEADER + (long) length * elementBytes);
+  }
+
+  static long sizeOf(byte[] array)
+  {
+    return array == null ? 0 : array(array.length, Byte.BYTES);
+  }
+
+  static long sizeOf(int[] array)
+  {
+    return array == null ? 0 : array(array.length, Integer.BYTES);
+  }
+
+  static long sizeOf(long[] array)
+  {
+    return array == null ? 0 : array(array.length, Long.BYTES);
+  }
+}
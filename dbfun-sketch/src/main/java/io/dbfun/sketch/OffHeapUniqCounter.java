@@ -0,0 +1,409 @@
+package io.dbfun.sketch;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+/**
+ * {@link UniqCounter} whose hash table lives in native memory, for engines running many short-lived
+ * aggregations: counting doesn't allocate on the Java heap once the table is large enough.
+ *
+ * <p>The table grows with Unsafe.reallocateMemory and is rehashed in place, thinning drops and moves values in
+ * place as well. {@link #reset()} empties the counter in O(1) and keeps the memory for the next aggregation,
+ * which is only zeroed as the table grows again. Estimates and the serialized form are those of a UniqCounter
+ * of the same values, {@link CardinalityEstimators#wrap(ByteBuffer)} reads them back as a UniqCounter.
+ *
+ * <p>The memory is only released by {@link #close()}. Not thread-safe.
+ */
+public final class OffHeapUniqCounter implements CardinalityEstimator<OffHeapUniqCounter>, Closeable
+{
+  private static final ValueHasher HASHER = ValueHasher.uniq();
+
+  // 0 once closed
+  private long address;
+  // number of slots allocated, the table uses the first 1 << sizeDegree
+  private int capacity;
+
+  private int count;
+  private int sizeDegree;
+  private int skipDegree;
+  private boolean hasZero;
+
+  // non-null while tracked by a budget, see MemoryBudget
+  private MemoryBudget budget;
+
+  public OffHeapUniqCounter()
+  {
+    this.sizeDegree = UniqCounter.INITIAL_SIZE_DEGREE;
+    this.capacity = 1 << sizeDegree;
+    this.address = ObjectSizes.UNSAFE.allocateMemory((long) capacity * Integer.BYTES);
+    ObjectSizes.UNSAFE.setMemory(address, (long) capacity * Integer.BYTES, (byte) 0);
+  }
+
+  private int get(int index)
+  {
+    return ObjectSizes.UNSAFE.getInt(address + ((long) index << 2));
+  }
+
+  private void set(int index, int hash)
+  {
+    ObjectSizes.UNSAFE.putInt(address + ((long) index << 2), hash);
+  }
+
+  private void checkOpen()
+  {
+    if (address == 0) {
+      throw new IllegalStateException("counter is closed");
+    }
+  }
+
+  private boolean good(int hash)
+  { // hash can be divided by 2^skipDegree
+    return hash == ((hash >> skipDegree) << skipDegree);
+  }
+
+  private int mask()
+  {
+    return (1 << sizeDegree) - 1;
+  }
+
+  private int place(int hash)
+  {
+    return (hash >>> UniqCounter.BITS_FOR_SKIP) & mask();
+  }
+
+  private void add32BitsHash(int hash)
+  {
+    if (!good(hash)) {
+      return;
+    }
+
+    if (hash == 0) {
+      if (!hasZero) {
+        count += 1;
+      }
+      hasZero = true;
+      return;
+    }
+
+    int index = place(hash);
+    int slot;
+    // linear probe until search hit or miss
+    while ((slot = get(index)) != 0 && slot != hash) {
+      index = (index + 1) & mask();
+    }
+    if (slot == hash) {
+      return; // search hit
+    }
+    // search miss
+    reserveResize();
+    set(index, hash);
+    count++;
+
+    shrinkIfNeeded();
+  }
+
+  // Before adding a value, reserve the memory the table may grow to.
+  private void reserveResize()
+  {
+    if (budget != null
+        && count >= 1 << (sizeDegree - 1)
+        && count < UniqCounter.MAX_SIZE
+        && 2 << sizeDegree > capacity) {
+      budget.reserve(this, (long) (2 << sizeDegree) * Integer.BYTES);
+    }
+  }
+
+  // If the hash table is half-full, then do resize.
+  // If there are too many items, then throw half the pieces until they are small enough.
+  private void shrinkIfNeeded()
+  {
+    if (count > (1 << (sizeDegree - 1))) {
+      if (count > UniqCounter.MAX_SIZE) {
+        while (count > UniqCounter.MAX_SIZE) {
+          skipDegree++;
+          removeAccordingToSkipDegree();
+        }
+      } else {
+        resize();
+      }
+    }
+  }
+
+  /**
+   * Drop the values that aren't good anymore and move the others back into their probe sequences.
+   */
+  private void removeAccordingToSkipDegree()
+  {
+    final int size = 1 << sizeDegree;
+    // the table is never full, no probe sequence goes through an empty slot
+    int start = 0;
+    while (get(start) != 0) {
+      start++;
+    }
+    for (int i = 0; i < size; i++) {
+      final int hash = get(i);
+      if (hash != 0 && !good(hash)) {
+        set(i, 0);
+        count--;
+      }
+    }
+    // in probe order from the empty slot, moving a value never breaks the sequence of a value already visited
+    for (int n = 1; n < size; n++) {
+      final int i = (start + n) & mask();
+      final int hash = get(i);
+      if (hash != 0) {
+        int index = place(hash);
+        while (index != i && get(index) != 0) {
+          index = (index + 1) & mask();
+        }
+        if (index != i) {
+          set(index, hash);
+          set(i, 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Double the table in place, reallocating it if needed.
+   */
+  private void resize()
+  {
+    final int oldSize = 1 << sizeDegree;
+    sizeDegree++;
+    final int size = 1 << sizeDegree;
+    if (size > capacity) {
+      address = ObjectSizes.UNSAFE.reallocateMemory(address, (long) size * Integer.BYTES);
+      capacity = size;
+    }
+    ObjectSizes.UNSAFE.setMemory(address + (long) oldSize * Integer.BYTES, (long) oldSize * Integer.BYTES, (byte) 0);
+
+    // A value stays in place, moves to the new half, or moves left because the values before it moved.
+    // A value at the start of the old half that wrapped around from its end may only find its place after
+    // the whole old half moved, so keep going through the run after the old half.
+    for (int i = 0; i < oldSize || get(i) != 0; i++) {
+      final int hash = get(i);
+      if (hash == 0) {
+        continue;
+      }
+      int index = place(hash);
+      if (index == i) {
+        continue;
+      }
+      int slot;
+      while ((slot = get(index)) != 0 && slot != hash) {
+        index = (index + 1) & mask();
+      }
+      if (slot == hash) {
+        continue;
+      }
+      set(index, hash);
+      set(i, 0);
+    }
+    if (budget != null) {
+      budget.settle(this);
+    }
+  }
+
+  /**
+   * Empty the counter, keeping its memory for the next values.
+   */
+  public void reset()
+  {
+    checkOpen();
+    sizeDegree = UniqCounter.INITIAL_SIZE_DEGREE;
+    // the rest of the memory is zeroed as the table grows into it
+    ObjectSizes.UNSAFE.setMemory(address, (long) (1 << sizeDegree) * Integer.BYTES, (byte) 0);
+    count = 0;
+    skipDegree = 0;
+    hasZero = false;
+  }
+
+  /**
+   * Release the memory of the table, the counter can't be used afterwards.
+   */
+  @Override
+  public void close()
+  {
+    if (address != 0) {
+      ObjectSizes.UNSAFE.freeMemory(address);
+      address = 0;
+      capacity = 0;
+    }
+  }
+
+  @Override
+  public void add(byte[] value)
+  {
+    add(value, 0, value.length);
+  }
+
+  @Override
+  public void add(byte[] value, int offset, int length)
+  {
+    checkOpen();
+    add32BitsHash((int) HASHER.hash(value, offset, length));
+  }
+
+  @Override
+  public void add(ByteBuffer value)
+  {
+    checkOpen();
+    add32BitsHash((int) HASHER.hash(value));
+  }
+
+  @Override
+  public void add(CharSequence value)
+  {
+    checkOpen();
+    add32BitsHash((int) HASHER.hash(value));
+  }
+
+  @Override
+  public void add(long value)
+  {
+    checkOpen();
+    add32BitsHash((int) HASHER.hash(value));
+  }
+
+  @Override
+  public void add(long[] values, int offset, int length, long[] selection)
+  {
+    checkOpen();
+    final long[] hashes = ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, HASHER.hash(values, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  @Override
+  public void add(byte[] data, int[] offsets, int offset, int length, long[] selection)
+  {
+    checkOpen();
+    final long[] hashes = ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, HASHER.hash(data, offsets, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  /**
+   * Uses the low 32 bits of `hash`, see {@link UniqCounter#addHash(long)}.
+   */
+  @Override
+  public void addHash(long hash)
+  {
+    checkOpen();
+    add32BitsHash((int) hash);
+  }
+
+  ValueHasher hasher()
+  {
+    return HASHER;
+  }
+
+  MemoryBudget budget()
+  {
+    return budget;
+  }
+
+  void budget(MemoryBudget budget)
+  {
+    this.budget = budget;
+  }
+
+  /**
+   * See {@link UniqCounter#raiseSkipDegree(int)}.
+   */
+  void raiseSkipDegree(int skipDegree)
+  {
+    checkOpen();
+    if (this.skipDegree < skipDegree) {
+      this.skipDegree = skipDegree;
+      removeAccordingToSkipDegree();
+    }
+  }
+
+  private void addHashes(long[] hashes, int count)
+  {
+    for (int i = 0; i < count; i++) {
+      add32BitsHash((int) hashes[i]);
+    }
+  }
+
+  @Override
+  public void merge(OffHeapUniqCounter that)
+  {
+    checkOpen();
+    that.checkOpen();
+    raiseSkipDegree(that.skipDegree);
+
+    if (!hasZero && that.hasZero) {
+      reserveResize();
+      hasZero = true;
+      count++;
+      shrinkIfNeeded();
+    }
+
+    final int size = 1 << that.sizeDegree;
+    for (int i = 0; i < size; i++) {
+      final int hash = that.get(i);
+      if (hash != 0) {
+        add32BitsHash(hash);
+      }
+    }
+  }
+
+  @Override
+  public long cardinality()
+  {
+    return UniqCounter.estimate(count, skipDegree);
+  }
+
+  /**
+   * @return bytes retained by the counter, including all the native memory it keeps
+   */
+  @Override
+  public long memoryFootprint()
+  {
+    return ObjectSizes.object(1, Long.BYTES + 4 * Integer.BYTES + 1) + (long) capacity * Integer.BYTES;
+  }
+
+  @Override
+  public String name()
+  {
+    return "uniqoffheap";
+  }
+
+  @Override
+  public int serializedSize()
+  {
+    final int numValues = hasZero ? count - 1 : count;
+    return SketchFormat.HEADER_SIZE + 8 + Integer.BYTES * numValues;
+  }
+
+  /**
+   * Same format as {@link UniqCounter#serialize(ByteBuffer)}.
+   */
+  @Override
+  public void serialize(ByteBuffer out)
+  {
+    checkOpen();
+    SketchFormat.writeHeader(out, SketchFormat.TYPE_UNIQ, 0, SketchFormat.HASH_SET, EnumSet.noneOf(HllOption.class));
+    ByteBuffer body = SketchFormat.startBody(out);
+    body.put((byte) skipDegree);
+    body.put((byte) (hasZero ? 1 : 0));
+    body.putShort((short) 0);
+    body.putInt(count);
+    final int size = 1 << sizeDegree;
+    for (int i = 0; i < size; i++) {
+      final int hash = get(i);
+      if (hash != 0) {
+        body.putInt(hash);
+      }
+    }
+    SketchFormat.finishBody(out, body);
+  }
+}
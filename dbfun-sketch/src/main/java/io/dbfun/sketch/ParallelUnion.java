@@ -0,0 +1,191 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Union of large collections of estimators on a {@link ForkJoinPool},
+ * the parallel counterpart of {@link CardinalityEstimators#unionAll(List)}.
+ *
+ * <p>Work is split in one of two ways, chosen per representation by each estimator type:
+ * <ul>
+ *   <li>dense registers of the same layout are split by register ranges: every task merges a range of words
+ *   of all sketches into the result, so tasks never write to the same word
+ *   <li>anything else (sparse lists, hash tables of {@link Hll16Combined}, {@link UniqCounter}) is split by
+ *   sketch subsets: every task unions a subset into a new estimator, results are merged as tasks join
+ * </ul>
+ * Estimators are only read, they can be read-only views such as those of {@link CardinalityEstimators#wrap}.
+ */
+public final class ParallelUnion
+{
+  // smallest range of words worth a task, 2KB of every sketch
+  private static final int MIN_RANGE_WORDS = 256;
+  // smallest subset of sketches worth a task
+  private static final int MIN_SUBSET_SIZE = 16;
+  // tasks per thread, so that threads finishing early have work to steal
+  private static final int TASKS_PER_THREAD = 4;
+
+  private ParallelUnion()
+  {
+  }
+
+  /**
+   * Same as {@link CardinalityEstimators#unionAll(List)}, using the common pool. The caller must close the
+   * union of {@link OffHeapUniqCounter}s.
+   */
+  public static CardinalityEstimator unionAll(List<? extends CardinalityEstimator> estimators)
+  {
+    return unionAll(estimators, ForkJoinPool.commonPool());
+  }
+
+  public static CardinalityEstimator unionAll(List<? extends CardinalityEstimator> estimators, ForkJoinPool pool)
+  {
+    return CardinalityEstimators.unionAll(estimators, Preconditions.checkNotNull(pool));
+  }
+
+  /**
+   * Same as {@link CardinalityEstimators#unionCardinality(List)}, using the common pool.
+   */
+  public static long unionCardinality(List<? extends CardinalityEstimator> estimators)
+  {
+    return unionCardinality(estimators, ForkJoinPool.commonPool());
+  }
+
+  public static long unionCardinality(List<? extends CardinalityEstimator> estimators, ForkJoinPool pool)
+  {
+    return CardinalityEstimators.unionCardinality(estimators, Preconditions.checkNotNull(pool));
+  }
+
+  /**
+   * Same as {@link Registers#mergeAll(Registers, List, int[])}, split by register ranges on `pool` if not null.
+   */
+  static void mergeAll(ForkJoinPool pool, Registers target, List<? extends Registers> sources, int[] histogram)
+  {
+    if (pool == null) {
+      Registers.mergeAll(target, sources, histogram);
+      return;
+    }
+    final int wordCount = target.wordCount();
+    final int rangeWords = Math.max(MIN_RANGE_WORDS, wordCount / (pool.getParallelism() * TASKS_PER_THREAD));
+    final int[] merged = pool.invoke(new RangeMerge(target, sources, 0, wordCount, rangeWords, histogram != null));
+    if (histogram != null) {
+      System.arraycopy(merged, 0, histogram, 0, histogram.length);
+      target.discountUnusedSlots(histogram);
+    }
+  }
+
+  /**
+   * Merge all of `others` into `target`, unioning them by subsets on `pool` first if not null.
+   */
+  @SuppressWarnings("unchecked")
+  static <T extends CardinalityEstimator<T>> void mergeAll(ForkJoinPool pool, T target, List<T> others)
+  {
+    if (pool == null || others.size() <= MIN_SUBSET_SIZE) {
+      for (T other : others) {
+        target.merge(other);
+      }
+      return;
+    }
+    target.merge((T) reduce(pool, others));
+  }
+
+  /**
+   * @return a new estimator, union of `estimators` split by subsets on `pool`
+   */
+  static CardinalityEstimator reduce(ForkJoinPool pool, List<? extends CardinalityEstimator> estimators)
+  {
+    final int subsetSize = Math.max(MIN_SUBSET_SIZE, estimators.size() / (pool.getParallelism() * TASKS_PER_THREAD));
+    return pool.invoke(new SubsetUnion(estimators, subsetSize));
+  }
+
+  /**
+   * Merges words [fromWord, toWord) of all sources into the target.
+   *
+   * @return histogram of the merged words if counting, null otherwise
+   */
+  private static final class RangeMerge extends RecursiveTask<int[]>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final Registers target;
+    private final List<? extends Registers> sources;
+    private final int fromWord;
+    private final int toWord;
+    private final int rangeWords;
+    private final boolean counting;
+
+    RangeMerge(
+        Registers target,
+        List<? extends Registers> sources,
+        int fromWord,
+        int toWord,
+        int rangeWords,
+        boolean counting
+    )
+    {
+      this.target = target;
+      this.sources = sources;
+      this.fromWord = fromWord;
+      this.toWord = toWord;
+      this.rangeWords = rangeWords;
+      this.counting = counting;
+    }
+
+    @Override
+    protected int[] compute()
+    {
+      if (toWord - fromWord <= rangeWords) {
+        final int[] histogram = counting ? new int[Long.SIZE] : null;
+        Registers.mergeAll(target, sources, fromWord, toWord, histogram);
+        return histogram;
+      }
+      // split on a multiple of 8 words, so that two tasks rarely write to the same cache line
+      final int middle = Math.max(fromWord + 8, (fromWord + (toWord - fromWord) / 2) & ~7);
+      final RangeMerge left = new RangeMerge(target, sources, fromWord, middle, rangeWords, counting);
+      left.fork();
+      final int[] histogram = new RangeMerge(target, sources, middle, toWord, rangeWords, counting).compute();
+      final int[] leftHistogram = left.join();
+      if (counting) {
+        for (int i = 0; i < histogram.length; i++) {
+          histogram[i] += leftHistogram[i];
+        }
+      }
+      return histogram;
+    }
+  }
+
+  private static final class SubsetUnion extends RecursiveTask<CardinalityEstimator>
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final List<? extends CardinalityEstimator> estimators;
+    private final int subsetSize;
+
+    SubsetUnion(List<? extends CardinalityEstimator> estimators, int subsetSize)
+    {
+      this.estimators = estimators;
+      this.subsetSize = subsetSize;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected CardinalityEstimator compute()
+    {
+      if (estimators.size() <= subsetSize) {
+        return CardinalityEstimators.unionAll(estimators, null);
+      }
+      final int middle = estimators.size() / 2;
+      final SubsetUnion left = new SubsetUnion(estimators.subList(0, middle), subsetSize);
+      left.fork();
+      final SubsetUnion right = new SubsetUnion(estimators.subList(middle, estimators.size()), subsetSize);
+      final CardinalityEstimator union = right.compute();
+      final CardinalityEstimator leftUnion = left.join();
+      union.merge(leftUnion);
+      CardinalityEstimators.close(leftUnion);
+      return union;
+    }
+  }
+}
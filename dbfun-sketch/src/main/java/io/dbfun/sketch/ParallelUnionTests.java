@@ -0,0 +1,121 @@
+package io.dbfun.sketch;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that {@link ParallelUnion} gives exactly the registers of merging the estimators one after the other into
+ * a new estimator, and the same hashes for hash tables, for every representation and for read-only views.
+ */
+public class ParallelUnionTests
+{
+  private static final String[] NAMES = {
+      "hllraw14",
+      "hllraw18+packed",
+      "hllraw14+incremental",
+      "hllnobias14",
+      "hllnobias16+sparse+incremental",
+      "hllnobias18+packed+incremental",
+      "combined12",
+      "combined14+incremental",
+      "uniq"
+  };
+
+  private static int failures;
+
+  public static void main(String[] args)
+  {
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (String name : NAMES) {
+        // small sketches stay sparse or in their hash tables, large ones are dense
+        for (int maxCardinality : new int[]{50, 20_000}) {
+          for (int count : new int[]{1, 7, 300}) {
+            checkUnion(pool, name, count, maxCardinality);
+          }
+        }
+      }
+    }
+    finally {
+      pool.shutdown();
+    }
+
+    System.out.printf("%,d failures%n", failures);
+    if (failures > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static void checkUnion(ForkJoinPool pool, String name, int count, int maxCardinality)
+  {
+    final Random random = new Random(count * 31L + maxCardinality);
+    final List<CardinalityEstimator> estimators = new ArrayList<>();
+    final List<CardinalityEstimator> views = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      final CardinalityEstimator estimator = CardinalityEstimators.get(name);
+      final int cardinality = random.nextInt(maxCardinality);
+      for (int j = 0; j < cardinality; j++) {
+        estimator.add(random.nextInt(maxCardinality * 4));
+      }
+      estimators.add(estimator);
+      views.add(CardinalityEstimators.wrap(CardinalityEstimators.serialize(estimator)));
+    }
+
+    final CardinalityEstimator sequential = CardinalityEstimators.get(name);
+    for (CardinalityEstimator estimator : estimators) {
+      merge(sequential, estimator);
+    }
+    final ByteBuffer expected = CardinalityEstimators.serialize(sequential);
+
+    for (List<CardinalityEstimator> sources : Arrays.asList(estimators, views)) {
+      final String what = String.format("%s, %s sketches of up to %s%s", name, count, maxCardinality,
+                                        sources == views ? " wrapped" : "");
+      final CardinalityEstimator union = ParallelUnion.unionAll(sources, pool);
+      if (union instanceof HllRaw || union instanceof Hll64WithBiasCorrection) {
+        check(CardinalityEstimators.serialize(union).equals(expected), "%s: unionAll differs", what);
+      } else {
+        check(contains(name, union, sequential) && contains(name, sequential, union), "%s: unionAll differs", what);
+      }
+      final long cardinality = ParallelUnion.unionCardinality(sources, pool);
+      check(
+          cardinality == sequential.cardinality(),
+          "%s: unionCardinality %s instead of %s", what, cardinality, sequential.cardinality()
+      );
+    }
+  }
+
+  /**
+   * Hash tables lay the same hashes out in the order they were added, so they are compared as sets: `a` contains
+   * `b` if merging `b` into a copy of `a` leaves it unchanged.
+   */
+  private static boolean contains(String name, CardinalityEstimator a, CardinalityEstimator b)
+  {
+    final CardinalityEstimator copy = CardinalityEstimators.get(name);
+    merge(copy, a);
+    final ByteBuffer before = CardinalityEstimators.serialize(copy);
+    merge(copy, b);
+    return CardinalityEstimators.serialize(copy).equals(before);
+  }
+
+  /**
+   * Unchecked: estimators returned by {@link CardinalityEstimators#get(String)} for the same name have the same
+   * type, which the raw CardinalityEstimator they are returned as can't express.
+   */
+  @SuppressWarnings("unchecked")
+  private static void merge(CardinalityEstimator target, CardinalityEstimator source)
+  {
+    target.merge(source);
+  }
+
+  private static void check(boolean condition, String format, Object... args)
+  {
+    if (!condition) {
+      failures++;
+      System.out.printf("FAILED " + format + "%n", args);
+    }
+  }
+}
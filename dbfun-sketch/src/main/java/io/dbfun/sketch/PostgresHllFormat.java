@@ -0,0 +1,280 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongConsumer;
+
+/**
+ * Reads and writes {@link HllRaw} as the `hll` type of postgresql-hll, following its storage specification
+ * (https://github.com/citusdata/postgresql-hll/blob/master/STORAGE.markdown), version 1:
+ * <ul>
+ *   <li>byte 0: version (high 4 bits) and type (low 4 bits): 1 EMPTY, 2 EXPLICIT, 3 SPARSE, 4 FULL</li>
+ *   <li>byte 1: register width - 1 (high 3 bits) and log2m (low 5 bits)</li>
+ *   <li>byte 2: sparse enabled (bit 6) and explicit cutoff (low 6 bits): 0 disabled, 63 auto,
+ *   otherwise log2(expthresh) + 1</li>
+ *   <li>EXPLICIT: the hashes, 8 bytes big-endian each, in ascending order</li>
+ *   <li>SPARSE: (index, value) pairs of the non-zero registers, log2m + register width bits each</li>
+ *   <li>FULL: all registers, register width bits each</li>
+ * </ul>
+ * SPARSE and FULL are bit-packed from the most significant bit of each byte, padded with zero bits.
+ *
+ * <p>postgresql-hll hashes values with the first 64 bits of murmur3_x64_128, seed 0 (hll_hash_bigint,
+ * hll_hash_bytea...), the hashes of the default murmur3_128 function. The low log2m bits of the hash are the
+ * index, the rank is the number of trailing zeros of the rest plus one:
+ * <ul>
+ *   <li>{@link Hll64WithBiasCorrection} has these registers for the reversed hashes, at the reversed index: blobs
+ *   merge with sketches whose values were added with addHash(Long.reverse(hash)), as if the values had been added
+ *   to the sketch. Decoded blobs are Hll64WithBiasCorrection sketches.</li>
+ *   <li>{@link HllRaw} has these registers for the same hashes, but only takes their low 32 bits: ranks above the
+ *   33 - log2m a 32-bit hash can give are capped at it, and its estimate corrects for 32-bit collisions that
+ *   64-bit hashes don't have, overestimating above about 2^32 / 30 values.</li>
+ * </ul>
+ */
+public final class PostgresHllFormat
+{
+  private static final int VERSION = 1;
+  private static final int TYPE_UNDEFINED = 0;
+  private static final int TYPE_EMPTY = 1;
+  private static final int TYPE_EXPLICIT = 2;
+  private static final int TYPE_SPARSE = 3;
+  private static final int TYPE_FULL = 4;
+  private static final int HEADER_SIZE = 3;
+
+  // defaults of hll_empty()
+  private static final int DEFAULT_REGISTER_WIDTH = 5;
+  private static final int AUTO_EXPLICIT_THRESHOLD = -1;
+
+  private PostgresHllFormat()
+  {
+  }
+
+  /**
+   * Same as encode(sketch, 5, -1, true), the settings of hll_empty() at the precision of the sketch.
+   */
+  public static byte[] encode(Hll64WithBiasCorrection sketch)
+  {
+    return encode(sketch, DEFAULT_REGISTER_WIDTH, AUTO_EXPLICIT_THRESHOLD, true);
+  }
+
+  /**
+   * Encode the registers of `sketch` as the smaller of a SPARSE and a FULL hll, or an EMPTY one, with log2m the
+   * precision of the sketch. postgresql-hll only unions hlls of the same settings: pass those of the column, see
+   * {@link Hll64WithBiasCorrection#downsample(int)} to match its log2m.
+   *
+   * @param registerWidth bits per register in [1, 8], larger ranks are capped at 2^registerWidth - 1
+   * @param expthresh explicit threshold stored in the settings: -1 for auto, 0 to disable, or a power of 2
+   * @param sparse whether the SPARSE representation is enabled
+   */
+  public static byte[] encode(Hll64WithBiasCorrection sketch, int registerWidth, int expthresh, boolean sparse)
+  {
+    final int log2m = sketch.precision();
+    final Registers registers = sketch.denseRegisters();
+    return encode(
+        log2m,
+        index -> registers.get(Integer.reverse(index) >>> (Integer.SIZE - log2m)),
+        registerWidth,
+        expthresh,
+        sparse
+    );
+  }
+
+  /**
+   * Same as encode(sketch, 5, -1, true), the settings of hll_empty() at the precision of the sketch.
+   */
+  public static byte[] encode(HllRaw sketch)
+  {
+    return encode(sketch, DEFAULT_REGISTER_WIDTH, AUTO_EXPLICIT_THRESHOLD, true);
+  }
+
+  /**
+   * Same as {@link #encode(Hll64WithBiasCorrection, int, int, boolean)}, with the registers of an HllRaw.
+   */
+  public static byte[] encode(HllRaw sketch, int registerWidth, int expthresh, boolean sparse)
+  {
+    return encode(sketch.precision(), sketch::register, registerWidth, expthresh, sparse);
+  }
+
+  /**
+   * @param registers rank of each register index in the layout of postgresql-hll
+   */
+  private static byte[] encode(
+      int log2m,
+      IntUnaryOperator registers,
+      int registerWidth,
+      int expthresh,
+      boolean sparse
+  )
+  {
+    Preconditions.checkArgument(
+        registerWidth >= 1 && registerWidth <= 8,
+        "invalid registerWidth [%s] : should be in [1, 8]", registerWidth
+    );
+    Preconditions.checkArgument(
+        expthresh == -1 || expthresh == 0 || (expthresh > 0 && Integer.bitCount(expthresh) == 1),
+        "invalid expthresh [%s] : should be -1, 0 or a power of 2", expthresh
+    );
+    Preconditions.checkArgument(log2m <= 30, "can't encode log2m [%s] : should be at most 30", log2m);
+    final int m = 1 << log2m;
+    final int maxValue = (1 << registerWidth) - 1;
+    int filled = 0;
+    for (int index = 0; index < m; index++) {
+      if (registers.applyAsInt(index) != 0) {
+        filled++;
+      }
+    }
+
+    final long fullBits = (long) m * registerWidth;
+    final long sparseBits = (long) filled * (log2m + registerWidth);
+    final int type = filled == 0 ? TYPE_EMPTY : sparse && sparseBits <= fullBits ? TYPE_SPARSE : TYPE_FULL;
+    final long bodyBits = type == TYPE_EMPTY ? 0 : type == TYPE_SPARSE ? sparseBits : fullBits;
+    Preconditions.checkArgument(bodyBits <= 8L * (Integer.MAX_VALUE - HEADER_SIZE), "hll too large to encode");
+    final byte[] blob = new byte[HEADER_SIZE + (int) ((bodyBits + 7) >>> 3)];
+    blob[0] = (byte) (VERSION << 4 | type);
+    blob[1] = (byte) ((registerWidth - 1) << 5 | log2m);
+    final int cutoff = expthresh == -1 ? 63 : expthresh == 0 ? 0 : Integer.numberOfTrailingZeros(expthresh) + 1;
+    blob[2] = (byte) ((sparse ? 1 << 6 : 0) | cutoff);
+
+    long bit = 8L * HEADER_SIZE;
+    if (type == TYPE_SPARSE) {
+      for (int index = 0; index < m; index++) {
+        final int rank = registers.applyAsInt(index);
+        if (rank != 0) {
+          bit = writeBits(blob, bit, (long) index << registerWidth | Math.min(rank, maxValue), log2m + registerWidth);
+        }
+      }
+    } else if (type == TYPE_FULL) {
+      for (int index = 0; index < m; index++) {
+        bit = writeBits(blob, bit, Math.min(registers.applyAsInt(index), maxValue), registerWidth);
+      }
+    }
+    return blob;
+  }
+
+  /**
+   * @return a new sketch of precision log2m with the default murmur3_128 hash function, holding the hll of the
+   * remaining bytes of `in`, whose position is left as is. Add values with addHash(Long.reverse(hash)).
+   * @throws IllegalArgumentException if `in` isn't a version 1 hll of log2m in [7, 30]
+   */
+  public static Hll64WithBiasCorrection decode(ByteBuffer in)
+  {
+    final Hll64WithBiasCorrection sketch = new Hll64WithBiasCorrection(log2m(in), Hashing.murmur3_128());
+    mergeInto(sketch, in);
+    return sketch;
+  }
+
+  /**
+   * Merge the hll of the remaining bytes of `in` into `target`, reading it in place. `target` is folded to log2m
+   * first if it has a higher precision, see {@link Hll64WithBiasCorrection#merge(Hll64WithBiasCorrection)}.
+   */
+  public static void mergeInto(Hll64WithBiasCorrection target, ByteBuffer in)
+  {
+    final int log2m = log2m(in);
+    if (target.precision() > log2m) {
+      target.foldTo(log2m);
+    }
+    mergeInto(in, log2m, hash -> target.addHash(Long.reverse(hash)), RegisterSink.of(target));
+  }
+
+  /**
+   * Same as {@link #mergeInto(Hll64WithBiasCorrection, ByteBuffer)}, for an HllRaw, see {@link HllRaw#merge(HllRaw)}.
+   */
+  public static void mergeInto(HllRaw target, ByteBuffer in)
+  {
+    final int log2m = log2m(in);
+    if (target.precision() > log2m) {
+      target.foldTo(log2m);
+    }
+    mergeInto(in, log2m, target::addHash, RegisterSink.of(target));
+  }
+
+  /**
+   * @param hashes receives the hashes of an EXPLICIT hll
+   * @param registers receives the registers of a SPARSE or FULL hll
+   */
+  private static void mergeInto(ByteBuffer in, int log2m, LongConsumer hashes, RegisterSink registers)
+  {
+    final int start = in.position();
+    final int type = in.get(start) & 0x0f;
+    final int registerWidth = ((in.get(start + 1) & 0xff) >>> 5) + 1;
+    final long endBit = 8L * in.remaining();
+    long bit = 8L * HEADER_SIZE;
+    switch (type) {
+      case TYPE_EMPTY:
+        return;
+      case TYPE_EXPLICIT:
+        final ByteBuffer explicit = in.duplicate().order(ByteOrder.BIG_ENDIAN);
+        for (int offset = start + HEADER_SIZE; offset + Long.BYTES <= in.limit(); offset += Long.BYTES) {
+          hashes.accept(explicit.getLong(offset));
+        }
+        return;
+      case TYPE_SPARSE:
+        final int wordBits = log2m + registerWidth;
+        final long valueMask = (1L << registerWidth) - 1;
+        for (; bit + wordBits <= endBit; bit += wordBits) {
+          final long word = readBits(in, start, bit, wordBits);
+          registers.mergeRegister(log2m, (int) (word >>> registerWidth), (int) (word & valueMask));
+        }
+        return;
+      case TYPE_FULL:
+        final int m = 1 << log2m;
+        Preconditions.checkArgument(
+            endBit >= bit + (long) m * registerWidth,
+            "invalid hll : %s bytes for %s registers", in.remaining(), m
+        );
+        for (int index = 0; index < m; index++, bit += registerWidth) {
+          registers.mergeRegister(log2m, index, (int) readBits(in, start, bit, registerWidth));
+        }
+        return;
+      default:
+        throw new IllegalArgumentException("invalid hll : type " + type);
+    }
+  }
+
+  /**
+   * @return log2m of the hll at the position of `in`, after checking its header, before anything is merged
+   */
+  private static int log2m(ByteBuffer in)
+  {
+    Preconditions.checkArgument(in.remaining() >= HEADER_SIZE, "invalid hll : %s bytes", in.remaining());
+    final int version = (in.get(in.position()) & 0xff) >>> 4;
+    Preconditions.checkArgument(version == VERSION, "unsupported hll version [%s]", version);
+    final int type = in.get(in.position()) & 0x0f;
+    if (type < TYPE_EMPTY || type > TYPE_FULL) {
+      throw new IllegalArgumentException("invalid hll : type " + (type == TYPE_UNDEFINED ? "UNDEFINED" : type));
+    }
+    final int log2m = in.get(in.position() + 1) & 0x1f;
+    Preconditions.checkArgument(log2m >= 7 && log2m <= 30, "unsupported hll log2m [%s] : should be in [7, 30]", log2m);
+    return log2m;
+  }
+
+  /**
+   * Write the low `bits` bits of `value` at bit `bit` of `blob`, most significant first.
+   *
+   * @return the bit after them
+   */
+  private static long writeBits(byte[] blob, long bit, long value, int bits)
+  {
+    for (int i = bits - 1; i >= 0; i--, bit++) {
+      if ((value >>> i & 1) != 0) {
+        blob[(int) (bit >>> 3)] |= 0x80 >>> (bit & 7);
+      }
+    }
+    return bit;
+  }
+
+  /**
+   * @return the `bits` bits at bit `bit` from byte `start` of `in`, most significant first
+   */
+  private static long readBits(ByteBuffer in, int start, long bit, int bits)
+  {
+    long value = 0;
+    for (int i = 0; i < bits; i++, bit++) {
+      value = value << 1 | ((in.get(start + (int) (bit >>> 3)) >>> (7 - (bit & 7))) & 1);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,89 @@
+package io.dbfun.sketch;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Radix partitioning of hashes by the high bits of their register index, for batch adds into registers that don't
+ * fit in cache (p >= {@link #MIN_PRECISION}).
+ *
+ * <p>Updating registers in hash order is a cache miss (and often a TLB miss) per value. Scattering a large batch of
+ * hashes by region first costs two sequential passes over the hashes, after which the register updates walk the
+ * registers region by region, each region small enough to stay in L2 while its updates are applied.
+ * Enabled by {@link HllOption#PARTITIONED}.
+ */
+final class RadixPartition
+{
+  /**
+   * Smallest precision partitioned, below that registers fit in L2 anyway.
+   */
+  static final int MIN_PRECISION = 18;
+
+  /**
+   * Hashes per partitioned batch, and smallest batch worth partitioning.
+   */
+  static final int BATCH_SIZE = 1 << 15;
+  static final int MIN_BATCH_SIZE = 1 << 12;
+
+  // registers per region: 64KB of byte registers, 48KB of packed ones
+  private static final int REGION_BITS = 16;
+  private static final int MAX_PARTITION_BITS = 8;
+
+  private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+  private RadixPartition()
+  {
+  }
+
+  /**
+   * @return whether batch adds of `length` values into 2^p registers should be partitioned
+   */
+  static boolean worthIt(Set<HllOption> options, int p, int length)
+  {
+    return p >= MIN_PRECISION && length >= MIN_BATCH_SIZE && options.contains(HllOption.PARTITIONED);
+  }
+
+  /**
+   * @return the calling thread's array of {@link #BATCH_SIZE} hashes, used like {@link ValueHasher#scratch()}
+   */
+  static long[] scratch()
+  {
+    return BUFFERS.get().hashes;
+  }
+
+  /**
+   * @param p precision, the number of bits of the register index
+   * @param indexShift position of the lowest bit of the register index in the hash
+   * @return hashes[from, to) reordered by region of their register, in an array of the calling thread starting
+   * at index 0. Hashes of the same region keep their order.
+   */
+  static long[] partition(long[] hashes, int from, int to, int p, int indexShift)
+  {
+    final Buffers buffers = BUFFERS.get();
+    final long[] out = buffers.partitioned;
+    final int[] starts = buffers.starts;
+    final int bits = Math.min(MAX_PARTITION_BITS, p - REGION_BITS);
+    final int shift = indexShift + p - bits;
+    final int mask = (1 << bits) - 1;
+
+    Arrays.fill(starts, 0, mask + 2, 0);
+    for (int i = from; i < to; i++) {
+      starts[((int) (hashes[i] >>> shift) & mask) + 1]++;
+    }
+    for (int i = 1; i <= mask; i++) {
+      starts[i] += starts[i - 1];
+    }
+    for (int i = from; i < to; i++) {
+      final long hash = hashes[i];
+      out[starts[(int) (hash >>> shift) & mask]++] = hash;
+    }
+    return out;
+  }
+
+  private static final class Buffers
+  {
+    final long[] hashes = new long[BATCH_SIZE];
+    final long[] partitioned = new long[BATCH_SIZE];
+    final int[] starts = new int[(1 << MAX_PARTITION_BITS) + 1];
+  }
+}
@@ -0,0 +1,225 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index over a sequence of time buckets, one estimator per bucket, for unions of any range of buckets.
+ *
+ * <p>Besides the buckets (level 0), keeps the union of every aligned run of 2^k buckets at level k, built as soon
+ * as its last bucket is appended: node i of level k is the union of buckets [i * 2^k, (i + 1) * 2^k). A range
+ * [from, to) is then the union of at most 2 log2(to - from) nodes instead of to - from buckets, greedily taking
+ * the largest node starting at `from` that fits. Appending a bucket merges one node per completed level,
+ * one on average. Levels take about as much memory as the buckets.
+ *
+ * <p>The unions of the `cacheSize` most recently queried ranges are cached. Ranges are clamped to the appended
+ * buckets, so that appending a bucket doesn't change a cached union, while merging into a bucket evicts the
+ * cached ranges holding it.
+ *
+ * <p>Works with any estimator type whose merge() accepts estimators of the same type. The index merges into
+ * the nodes it builds, and into appended buckets only through {@link #merge(int, CardinalityEstimator)}, so that
+ * buckets can be read-only views, such as those of {@link SketchStore#views}. Buckets must not change once
+ * appended otherwise. Thread-safe.
+ */
+public final class RangeUnionIndex<T extends CardinalityEstimator<T>>
+{
+  private static final int DEFAULT_CACHE_SIZE = 64;
+
+  private final Supplier<T> factory;
+  // levels.get(0) are the buckets, levels.get(k).get(i) the union of buckets [i << k, (i + 1) << k)
+  private final List<List<T>> levels = new ArrayList<>();
+  private final LinkedHashMap<Range, T> cache;
+  private long cacheHits;
+  private long cacheMisses;
+
+  public RangeUnionIndex(Supplier<T> factory)
+  {
+    this(factory, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * @param factory new empty estimators of the type of the buckets, for nodes and unions
+   * @param cacheSize number of range unions to cache, 0 to disable the cache
+   */
+  public RangeUnionIndex(Supplier<T> factory, int cacheSize)
+  {
+    Preconditions.checkArgument(cacheSize >= 0, "invalid cacheSize [%s]", cacheSize);
+    this.factory = factory;
+    this.levels.add(new ArrayList<T>());
+    this.cache = new LinkedHashMap<Range, T>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Range, T> eldest)
+      {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * @return number of buckets
+   */
+  public synchronized int size()
+  {
+    return levels.get(0).size();
+  }
+
+  public synchronized long cacheHitCount()
+  {
+    return cacheHits;
+  }
+
+  public synchronized long cacheMissCount()
+  {
+    return cacheMisses;
+  }
+
+  /**
+   * Append the next bucket and the nodes it completes.
+   *
+   * @return number of the bucket
+   */
+  public synchronized int append(T bucket)
+  {
+    final List<T> buckets = levels.get(0);
+    final int number = buckets.size();
+    buckets.add(bucket);
+    // node i of level k is complete once its last bucket, ((i + 1) << k) - 1, is appended
+    for (int level = 1; ((number + 1) & ((1 << level) - 1)) == 0; level++) {
+      if (levels.size() == level) {
+        levels.add(new ArrayList<T>());
+      }
+      final List<T> children = levels.get(level - 1);
+      final T node = factory.get();
+      node.merge(children.get(children.size() - 2));
+      node.merge(children.get(children.size() - 1));
+      levels.get(level).add(node);
+    }
+    return number;
+  }
+
+  /**
+   * Merge `sketch` into bucket `number` and the nodes holding it, such as values arriving late.
+   */
+  public synchronized void merge(int number, T sketch)
+  {
+    Preconditions.checkElementIndex(number, size());
+    for (int level = 0; level < levels.size() && (number >> level) < levels.get(level).size(); level++) {
+      levels.get(level).get(number >> level).merge(sketch);
+    }
+    final Iterator<Range> it = cache.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().contains(number)) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return estimated number of distinct values in buckets [from, to), 0 if there is none
+   */
+  public synchronized long cardinality(int from, int to)
+  {
+    final T union = cachedUnion(from, Math.min(to, size()));
+    return union == null ? 0 : union.cardinality();
+  }
+
+  /**
+   * @return a new estimator, union of buckets [from, to)
+   */
+  public synchronized T union(int from, int to)
+  {
+    final T result = factory.get();
+    final T union = cachedUnion(from, Math.min(to, size()));
+    if (union != null) {
+      result.merge(union);
+    }
+    return result;
+  }
+
+  /**
+   * @return the nodes whose union is buckets [from, to), to being at most the number of buckets
+   */
+  List<T> nodes(int from, int to)
+  {
+    final List<T> nodes = new ArrayList<>();
+    int start = from;
+    while (start < to) {
+      int level = 0;
+      // a node of the next level starts at `start` and fits in the range
+      while (level + 1 < levels.size()
+             && (start & ((2 << level) - 1)) == 0
+             && start + (2 << level) <= to) {
+        level++;
+      }
+      nodes.add(levels.get(level).get(start >> level));
+      start += 1 << level;
+    }
+    return nodes;
+  }
+
+  private T cachedUnion(int from, int to)
+  {
+    Preconditions.checkArgument(from >= 0, "invalid from [%s]", from);
+    if (from >= to) {
+      return null;
+    }
+    final Range range = new Range(from, to);
+    T union = cache.get(range);
+    if (union != null) {
+      cacheHits++;
+      return union;
+    }
+    cacheMisses++;
+    final List<T> nodes = nodes(from, to);
+    if (nodes.size() == 1) {
+      union = nodes.get(0);
+    } else {
+      union = factory.get();
+      for (T node : nodes) {
+        union.merge(node);
+      }
+    }
+    cache.put(range, union);
+    return union;
+  }
+
+  private static final class Range
+  {
+    final int from;
+    final int to;
+
+    Range(int from, int to)
+    {
+      this.from = from;
+      this.to = to;
+    }
+
+    boolean contains(int number)
+    {
+      return from <= number && number < to;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Range)) {
+        return false;
+      }
+      final Range that = (Range) o;
+      return from == that.from && to == that.to;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * from + to;
+    }
+  }
+}
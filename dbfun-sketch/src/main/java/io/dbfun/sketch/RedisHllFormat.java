@@ -0,0 +1,344 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Reads and writes {@link Hll64WithBiasCorrection} and {@link HllRaw} as the string values of Redis HyperLogLogs
+ * (PFADD, PFMERGE, GET and SET of their keys), described in Redis' hyperloglog.c:
+ * <ul>
+ *   <li>header: "HYLL", encoding (1 byte: 0 dense, 1 sparse), 3 unused bytes, cached cardinality (8 bytes
+ *   little-endian, invalid if the most significant bit of the last byte is set)</li>
+ *   <li>dense: 2^14 registers of 6 bits, packed from the least significant bit of each byte</li>
+ *   <li>sparse: runs of registers, ZERO (00xxxxxx: 1 to 64 zeros), XZERO (01xxxxxx yyyyyyyy: 1 to 16384 zeros)
+ *   and VAL (1vvvvvxx: 1 to 4 registers of value 1 to 32)</li>
+ * </ul>
+ *
+ * <p>Redis hashes values with MurmurHash64A, see {@link #hash(byte[], int, int)}, with a precision of 14: the low
+ * 14 bits of the hash are the index, the rank is the number of trailing zeros of the rest plus one.
+ * <ul>
+ *   <li>{@link Hll64WithBiasCorrection} has these registers for the reversed hashes, at the reversed index: blobs
+ *   merge with sketches of precision 14 or less whose values were added with addHash(Long.reverse(hash(value))),
+ *   as if the values had been added to the sketch. Decoded blobs are Hll64WithBiasCorrection sketches.</li>
+ *   <li>{@link HllRaw} has these registers for addHash(hash(value)), but only takes the low 32 bits of the hash:
+ *   ranks above the 19 a 32-bit hash can give at precision 14 are capped at it, and its estimate corrects for
+ *   32-bit collisions, overestimating PFCOUNT above about 2^32 / 30 values.</li>
+ * </ul>
+ *
+ * <p>Written blobs have their cached cardinality marked invalid, Redis estimates it on the next PFCOUNT.
+ */
+public final class RedisHllFormat
+{
+  public static final int PRECISION = 14;
+
+  private static final int REGISTERS = 1 << PRECISION;
+  private static final int BITS = 6;
+  private static final int REGISTER_MAX = (1 << BITS) - 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int DENSE_SIZE = HEADER_SIZE + REGISTERS * BITS / Byte.SIZE;
+  private static final byte DENSE = 0;
+  private static final byte SPARSE = 1;
+  // value of hll-sparse-max-bytes in the default Redis configuration
+  private static final int DEFAULT_SPARSE_MAX_BYTES = 3000;
+
+  private static final int SPARSE_VAL_MAX_VALUE = 32;
+  private static final int SPARSE_VAL_MAX_LENGTH = 4;
+  private static final int SPARSE_ZERO_MAX_LENGTH = 64;
+
+  private static final long MURMUR_SEED = 0xadc83b19L;
+  private static final long MURMUR_M = 0xc6a4a7935bd1e995L;
+  private static final int MURMUR_R = 47;
+
+  private RedisHllFormat()
+  {
+  }
+
+  /**
+   * @return the hash Redis computes for `value` (MurmurHash64A with seed 0xadc83b19), to add reversed to an
+   * Hll64WithBiasCorrection, see above. Redis stores integers as their decimal strings.
+   */
+  public static long hash(byte[] value, int offset, int length)
+  {
+    long h = MURMUR_SEED ^ (length * MURMUR_M);
+    final int blocksEnd = offset + (length & ~7);
+    for (int i = offset; i < blocksEnd; i += Long.BYTES) {
+      long k = 0;
+      for (int j = Long.BYTES - 1; j >= 0; j--) {
+        k = k << 8 | (value[i + j] & 0xff);
+      }
+      k *= MURMUR_M;
+      k ^= k >>> MURMUR_R;
+      k *= MURMUR_M;
+      h ^= k;
+      h *= MURMUR_M;
+    }
+    final int tail = length & 7;
+    if (tail != 0) {
+      for (int j = tail - 1; j >= 0; j--) {
+        h ^= (long) (value[blocksEnd + j] & 0xff) << (j * Byte.SIZE);
+      }
+      h *= MURMUR_M;
+    }
+    h ^= h >>> MURMUR_R;
+    h *= MURMUR_M;
+    h ^= h >>> MURMUR_R;
+    return h;
+  }
+
+  public static long hash(byte[] value)
+  {
+    return hash(value, 0, value.length);
+  }
+
+  /**
+   * Same as encode(sketch, 3000), the default hll-sparse-max-bytes of Redis.
+   */
+  public static byte[] encode(Hll64WithBiasCorrection sketch)
+  {
+    return encode(sketch, DEFAULT_SPARSE_MAX_BYTES);
+  }
+
+  /**
+   * Encode `sketch` as sparse if it takes at most `sparseMaxBytes` and no register is above 32, the largest value
+   * of the sparse encoding, dense otherwise. Sketches of a precision above 14 are encoded folded to 14, see
+   * {@link Hll64WithBiasCorrection#downsample(int)}.
+   *
+   * @throws IllegalArgumentException if the precision of sketch is below 14
+   */
+  public static byte[] encode(Hll64WithBiasCorrection sketch, int sparseMaxBytes)
+  {
+    checkPrecision(sketch.precision());
+    final Registers registers =
+        (sketch.precision() == PRECISION ? sketch : sketch.downsample(PRECISION)).denseRegisters();
+    return encode(index -> registers.get(Integer.reverse(index) >>> (Integer.SIZE - PRECISION)), sparseMaxBytes);
+  }
+
+  /**
+   * Same as encode(sketch, 3000), the default hll-sparse-max-bytes of Redis.
+   */
+  public static byte[] encode(HllRaw sketch)
+  {
+    return encode(sketch, DEFAULT_SPARSE_MAX_BYTES);
+  }
+
+  /**
+   * Same as {@link #encode(Hll64WithBiasCorrection, int)}, with the registers of an HllRaw.
+   */
+  public static byte[] encode(HllRaw sketch, int sparseMaxBytes)
+  {
+    checkPrecision(sketch.precision());
+    final HllRaw registers = sketch.precision() == PRECISION ? sketch : sketch.downsample(PRECISION);
+    return encode(registers::register, sparseMaxBytes);
+  }
+
+  private static void checkPrecision(int precision)
+  {
+    Preconditions.checkArgument(
+        precision >= PRECISION,
+        "can't encode precision %s, Redis uses %s", precision, PRECISION
+    );
+  }
+
+  /**
+   * @param registers rank of each register index in the layout of Redis
+   */
+  private static byte[] encode(IntUnaryOperator registers, int sparseMaxBytes)
+  {
+    final byte[] sparse = encodeSparse(registers, sparseMaxBytes);
+    return sparse != null ? sparse : encodeDense(registers);
+  }
+
+  /**
+   * @return the sparse encoding, null if it takes more than `maxBytes` or a register is above 32
+   */
+  private static byte[] encodeSparse(IntUnaryOperator registers, int maxBytes)
+  {
+    final byte[] blob = new byte[Math.max(HEADER_SIZE, maxBytes)];
+    int pos = HEADER_SIZE;
+    for (int index = 0; index < REGISTERS; ) {
+      final int value = registers.applyAsInt(index);
+      int run = 1;
+      while (index + run < REGISTERS && registers.applyAsInt(index + run) == value) {
+        run++;
+      }
+      index += run;
+      if (value == 0) {
+        if (run > SPARSE_ZERO_MAX_LENGTH) {
+          // 2^14 registers fit in one XZERO
+          if (pos + 2 > maxBytes) {
+            return null;
+          }
+          blob[pos++] = (byte) (0x40 | (run - 1) >>> 8);
+          blob[pos++] = (byte) (run - 1);
+        } else {
+          if (pos + 1 > maxBytes) {
+            return null;
+          }
+          blob[pos++] = (byte) (run - 1);
+        }
+      } else {
+        if (value > SPARSE_VAL_MAX_VALUE) {
+          return null;
+        }
+        for (; run > 0; run -= SPARSE_VAL_MAX_LENGTH) {
+          if (pos + 1 > maxBytes) {
+            return null;
+          }
+          blob[pos++] = (byte) (0x80 | (value - 1) << 2 | (Math.min(run, SPARSE_VAL_MAX_LENGTH) - 1));
+        }
+      }
+    }
+    final byte[] result = new byte[pos];
+    System.arraycopy(blob, 0, result, 0, pos);
+    writeHeader(result, SPARSE);
+    return result;
+  }
+
+  private static byte[] encodeDense(IntUnaryOperator registers)
+  {
+    final byte[] blob = new byte[DENSE_SIZE];
+    writeHeader(blob, DENSE);
+    for (int index = 0; index < REGISTERS; index++) {
+      final int value = Math.min(registers.applyAsInt(index), REGISTER_MAX);
+      final int bit = index * BITS;
+      final int byteIndex = HEADER_SIZE + (bit >>> 3);
+      final int shift = bit & 7;
+      blob[byteIndex] |= value << shift;
+      if (shift > Byte.SIZE - BITS) {
+        blob[byteIndex + 1] |= value >>> (Byte.SIZE - shift);
+      }
+    }
+    return blob;
+  }
+
+  private static void writeHeader(byte[] blob, byte encoding)
+  {
+    blob[0] = 'H';
+    blob[1] = 'Y';
+    blob[2] = 'L';
+    blob[3] = 'L';
+    blob[4] = encoding;
+    // invalid cached cardinality
+    blob[15] = (byte) 0x80;
+  }
+
+  /**
+   * @return a new sketch of precision 14 with the default murmur3_128 hash function, holding the HyperLogLog of
+   * the remaining bytes of `in`, whose position is left as is. Add values with addHash(Long.reverse(hash(value))).
+   */
+  public static Hll64WithBiasCorrection decode(ByteBuffer in)
+  {
+    final Hll64WithBiasCorrection sketch = new Hll64WithBiasCorrection(PRECISION, Hashing.murmur3_128());
+    mergeInto(sketch, in);
+    return sketch;
+  }
+
+  /**
+   * Merge the HyperLogLog of the remaining bytes of `in` into `target`, reading it in place. `target` is folded to
+   * precision 14 first if it has a higher one, see {@link Hll64WithBiasCorrection#merge(Hll64WithBiasCorrection)}.
+   *
+   * @throws IllegalArgumentException if `in` isn't a dense or sparse Redis HyperLogLog, before merging anything
+   */
+  public static void mergeInto(Hll64WithBiasCorrection target, ByteBuffer in)
+  {
+    final boolean dense = checkHeader(in);
+    if (target.precision() > PRECISION) {
+      target.foldTo(PRECISION);
+    }
+    mergeInto(in, dense, RegisterSink.of(target));
+  }
+
+  /**
+   * Same as {@link #mergeInto(Hll64WithBiasCorrection, ByteBuffer)}, for an HllRaw, see {@link HllRaw#merge(HllRaw)}.
+   */
+  public static void mergeInto(HllRaw target, ByteBuffer in)
+  {
+    final boolean dense = checkHeader(in);
+    if (target.precision() > PRECISION) {
+      target.foldTo(PRECISION);
+    }
+    mergeInto(in, dense, RegisterSink.of(target));
+  }
+
+  /**
+   * Check the HyperLogLog at the position of `in`, walking through the runs of a sparse one.
+   *
+   * @return whether it is dense
+   */
+  private static boolean checkHeader(ByteBuffer in)
+  {
+    final int start = in.position();
+    Preconditions.checkArgument(
+        in.remaining() >= HEADER_SIZE
+        && in.get(start) == 'H' && in.get(start + 1) == 'Y' && in.get(start + 2) == 'L' && in.get(start + 3) == 'L',
+        "invalid Redis HyperLogLog : bad magic"
+    );
+    final byte encoding = in.get(start + 4);
+    Preconditions.checkArgument(
+        encoding == DENSE || encoding == SPARSE,
+        "invalid Redis HyperLogLog encoding [%s]", encoding
+    );
+    if (encoding == DENSE) {
+      Preconditions.checkArgument(
+          in.remaining() == DENSE_SIZE,
+          "invalid dense Redis HyperLogLog : %s bytes", in.remaining()
+      );
+      return true;
+    }
+    final int registers = mergeSparse(in, null);
+    Preconditions.checkArgument(
+        registers == REGISTERS,
+        "invalid sparse Redis HyperLogLog : %s registers instead of %s", registers, REGISTERS
+    );
+    return false;
+  }
+
+  private static void mergeInto(ByteBuffer in, boolean dense, RegisterSink target)
+  {
+    if (!dense) {
+      mergeSparse(in, target);
+      return;
+    }
+    final int start = in.position();
+    for (int index = 0; index < REGISTERS; index++) {
+      final int bit = index * BITS;
+      final int byteIndex = start + HEADER_SIZE + (bit >>> 3);
+      final int shift = bit & 7;
+      int value = (in.get(byteIndex) & 0xff) >>> shift;
+      if (shift > Byte.SIZE - BITS) {
+        value |= (in.get(byteIndex + 1) & 0xff) << (Byte.SIZE - shift);
+      }
+      target.mergeRegister(PRECISION, index, value & REGISTER_MAX);
+    }
+  }
+
+  /**
+   * @param target receives the registers, null to only count them
+   * @return number of registers of the sparse HyperLogLog at the position of `in`
+   */
+  private static int mergeSparse(ByteBuffer in, RegisterSink target)
+  {
+    int index = 0;
+    for (int pos = in.position() + HEADER_SIZE; pos < in.limit(); pos++) {
+      final int b = in.get(pos) & 0xff;
+      if ((b & 0xc0) == 0) {
+        index += (b & 0x3f) + 1;
+      } else if ((b & 0xc0) == 0x40) {
+        Preconditions.checkArgument(pos + 1 < in.limit(), "invalid sparse Redis HyperLogLog : truncated XZERO");
+        index += ((b & 0x3f) << 8 | (in.get(++pos) & 0xff)) + 1;
+      } else {
+        final int value = ((b >>> 2) & 0x1f) + 1;
+        final int end = index + (b & 0x3) + 1;
+        Preconditions.checkArgument(end <= REGISTERS, "invalid sparse Redis HyperLogLog : too many registers");
+        for (; target != null && index < end; index++) {
+          target.mergeRegister(PRECISION, index, value);
+        }
+        index = end;
+      }
+    }
+    return index;
+  }
+}
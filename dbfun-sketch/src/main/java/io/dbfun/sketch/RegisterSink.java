@@ -0,0 +1,29 @@
+package io.dbfun.sketch;
+
+/**
+ * Receives the registers of a HyperLogLog read by {@link PostgresHllFormat} or {@link RedisHllFormat}, in their
+ * layout: the low `precision` bits of the hash are the index, the rank is the number of trailing zeros of the
+ * rest plus one. {@link HllRaw} has the same layout, {@link Hll64WithBiasCorrection} has it for reversed hashes.
+ */
+interface RegisterSink
+{
+  void mergeRegister(int precision, int index, int rank);
+
+  static RegisterSink of(HllRaw target)
+  {
+    return target::mergeRegister;
+  }
+
+  /**
+   * Reversing the bits of a hash turns its low bits into its high bits and its trailing zeros into leading zeros,
+   * so the register `index` of `precision` is the register of the reversed index in target.
+   */
+  static RegisterSink of(Hll64WithBiasCorrection target)
+  {
+    return (precision, index, rank) -> target.mergeRegister(
+        precision,
+        Integer.reverse(index) >>> (Integer.SIZE - precision),
+        rank
+    );
+  }
+}
@@ -0,0 +1,778 @@
+package io.dbfun.sketch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Storage of HyperLogLog registers, either one byte per register or bit-packed into longs.
+ *
+ * <p>Both layouts also have a read-only view over serialized registers in a {@link ByteBuffer},
+ * see {@link #wrap(ByteBuffer, int, int, boolean)}. Views can be merged into or estimated,
+ * but not updated.
+ *
+ * <p>Both layouts are also read as words of 64 bits holding several registers, so that registers are merged
+ * a word at a time with the SWAR max of {@link #maxLanes(long, long, long, long, int)}.
+ */
+abstract class Registers
+{
+  // mergeAll() merges this many words of every source before moving on to the next range,
+  // 4KB per source so that the range of the target stays in L1 while the sources stream through it
+  private static final int MERGE_ALL_RANGE_WORDS = 512;
+
+  static Registers create(int p, int bitsPerRegister, boolean packed)
+  {
+    if (packed) {
+      return new PackedRegisters(1 << p, bitsPerRegister);
+    }
+    return new ByteRegisters(1 << p);
+  }
+
+  /**
+   * @return packed registers safe to update and read from multiple threads, see {@link AtomicPackedRegisters}
+   */
+  static Registers createConcurrent(int p, int bitsPerRegister)
+  {
+    return new AtomicPackedRegisters(1 << p, bitsPerRegister);
+  }
+
+  /**
+   * @param buffer registers written by {@link #writeTo(ByteBuffer)} from its position on, in little-endian order
+   */
+  static Registers wrap(ByteBuffer buffer, int p, int bitsPerRegister, boolean packed)
+  {
+    if (packed) {
+      return new PackedBufferRegisters(buffer, 1 << p, bitsPerRegister);
+    }
+    return new ByteBufferRegisters(buffer, 1 << p);
+  }
+
+  /**
+   * @return {@link #memoryFootprint()} of the registers {@link #create(int, int, boolean)} would return
+   */
+  static long memoryFootprint(int p, int bitsPerRegister, boolean packed)
+  {
+    if (packed) {
+      final int registersPerWord = Long.SIZE / bitsPerRegister;
+      return (long) Long.BYTES * (((1 << p) + registersPerWord - 1) / registersPerWord);
+    }
+    return 1 << p;
+  }
+
+  /**
+   * @return {@link #retainedSize()} of the registers {@link #create(int, int, boolean)} would return
+   */
+  static long retainedSize(int p, int bitsPerRegister, boolean packed)
+  {
+    if (packed) {
+      final int words = (int) (memoryFootprint(p, bitsPerRegister, true) / Long.BYTES);
+      return AbstractPackedRegisters.SHALLOW_SIZE + ObjectSizes.array(words, Long.BYTES);
+    }
+    return ByteRegisters.SHALLOW_SIZE + ObjectSizes.array(1 << p, Byte.BYTES);
+  }
+
+  /**
+   * @return sum of 2^-r over all registers r, given the register histogram
+   */
+  static double harmonicSum(int[] histogram)
+  {
+    double sum = 0.0;
+    // from the smallest term to the largest to reduce rounding errors
+    for (int r = histogram.length - 1; r >= 0; r--) {
+      sum += Math.scalb((double) histogram[r], -r);
+    }
+    return sum;
+  }
+
+  /**
+   * Register-wise max of the registers of `a` and `b` selected by `lanes`, without looking at registers one by one.
+   *
+   * @param guards the bit right above each lane, which must be zero in `a & lanes` and `b & lanes`
+   * @param bits width of a lane
+   */
+  static long maxLanes(long a, long b, long lanes, long guards, int bits)
+  {
+    final long x = a & lanes;
+    final long y = b & lanes;
+    // the guard bit of a lane survives the subtraction iff x >= y in that lane, a borrow never crosses a guard bit
+    final long ge = ((x | guards) - y) & guards;
+    // spread each surviving guard bit over its lane
+    final long select = ge - (ge >>> bits);
+    return (x & select) | (y & ~select);
+  }
+
+  /**
+   * Merge all `sources` into `target`.
+   *
+   * <p>Unlike merging the sources one after the other, registers are merged a range of words at a time:
+   * the range of `target` is merged with the same range of every source, then counted in `histogram`
+   * while it is still in cache.
+   *
+   * @param sources registers of the same layout as `target`, see {@link #sameLayout(Registers)}
+   * @param histogram if not null, it is overwritten with the histogram of the merged registers
+   */
+  static void mergeAll(Registers target, List<? extends Registers> sources, int[] histogram)
+  {
+    if (histogram != null) {
+      Arrays.fill(histogram, 0);
+    }
+    mergeAll(target, sources, 0, target.wordCount(), histogram);
+    if (histogram != null) {
+      target.discountUnusedSlots(histogram);
+    }
+  }
+
+  /**
+   * Same as {@link #mergeAll(Registers, List, int[])} restricted to words [fromWord, toWord),
+   * adding the merged words to `histogram` as {@link #histogram(int, int, int[])} does.
+   */
+  static void mergeAll(Registers target, List<? extends Registers> sources, int fromWord, int toWord, int[] histogram)
+  {
+    for (int from = fromWord; from < toWord; from += MERGE_ALL_RANGE_WORDS) {
+      final int to = Math.min(from + MERGE_ALL_RANGE_WORDS, toWord);
+      for (Registers source : sources) {
+        assert target.sameLayout(source);
+        target.merge(source, from, to);
+      }
+      if (histogram != null) {
+        target.histogram(from, to, histogram);
+      }
+    }
+  }
+
+  abstract int size();
+
+  abstract int get(int index);
+
+  /**
+   * @return true if `that` stores the same number of registers in the same word layout,
+   * so that their words can be merged with each other
+   */
+  abstract boolean sameLayout(Registers that);
+
+  abstract int registersPerWord();
+
+  abstract int wordCount();
+
+  /**
+   * @return registers [wordIndex * registersPerWord(), (wordIndex + 1) * registersPerWord()) packed into a long,
+   * unused bits are zero
+   */
+  abstract long word(int wordIndex);
+
+  /**
+   * @return new registers of the same layout, all zero
+   */
+  abstract Registers newInstance();
+
+  /**
+   * Set register `index` to max(value, current value).
+   *
+   * @return the value of the register before the update
+   */
+  abstract int updateMax(int index, int value);
+
+  /**
+   * Set register `index` to max(value, current value), keeping `histogram` in sync if not null.
+   */
+  final void updateMax(int index, int value, int[] histogram)
+  {
+    final int previous = updateMax(index, value);
+    if (histogram != null && previous < value) {
+      histogram[previous]--;
+      histogram[value]++;
+    }
+  }
+
+  /**
+   * Set every register to max(this register, that register).
+   *
+   * @param histogram if not null, it is overwritten with the histogram of the merged registers, computed in the
+   * same pass: registers of the same layout are merged and counted a range of words at a time as in
+   * {@link #mergeAll(Registers, List, int[])}
+   */
+  void merge(Registers that, int[] histogram)
+  {
+    assert size() == that.size();
+    if (sameLayout(that)) {
+      mergeAll(this, Collections.singletonList(that), histogram);
+      return;
+    }
+    if (histogram != null) {
+      Arrays.fill(histogram, 0);
+    }
+    for (int i = 0; i < size(); i++) {
+      final int register = that.get(i);
+      final int previous = updateMax(i, register);
+      if (histogram != null) {
+        histogram[Math.max(previous, register)]++;
+      }
+    }
+  }
+
+  /**
+   * Merge words [fromWord, toWord) of `that`, which has the same layout, into this.
+   */
+  void merge(Registers that, int fromWord, int toWord)
+  {
+    throw readOnly();
+  }
+
+  /**
+   * Add the registers of words [fromWord, toWord) to `histogram`, including the unused slots of the last word.
+   */
+  abstract void histogram(int fromWord, int toWord, int[] histogram);
+
+  /**
+   * Remove the unused slots of the last word counted as zero registers by {@link #histogram(int, int, int[])}.
+   */
+  final void discountUnusedSlots(int[] histogram)
+  {
+    histogram[0] -= wordCount() * registersPerWord() - size();
+  }
+
+  /**
+   * Add the number of registers holding value `r` to `histogram[r]`.
+   */
+  abstract void histogram(int[] histogram);
+
+  abstract long memoryFootprint();
+
+  /**
+   * @return bytes retained by this object: the registers plus object and array headers, including the registers
+   * wrapped by read-only views
+   */
+  abstract long retainedSize();
+
+  /**
+   * @return number of bytes {@link #writeTo(ByteBuffer)} writes, same as {@link #memoryFootprint()}
+   */
+  long serializedSize()
+  {
+    return memoryFootprint();
+  }
+
+  /**
+   * Write all registers to `out` in little-endian order, in a layout {@link #wrap(ByteBuffer, int, int, boolean)}
+   * reads.
+   */
+  abstract void writeTo(ByteBuffer out);
+
+  private static UnsupportedOperationException readOnly()
+  {
+    return new UnsupportedOperationException("registers are a read-only view");
+  }
+
+  /**
+   * One byte per register, read 8 registers at a time as a long in native byte order.
+   * Word operations are register-wise, so the order of registers within a word doesn't matter
+   * as long as both operands use the same.
+   */
+  abstract static class AbstractByteRegisters extends Registers
+  {
+    // register values are below 2^7, which leaves the top bit of each byte free as the guard bit of maxLanes()
+    private static final long LANES = 0x7f7f7f7f7f7f7f7fL;
+    private static final long GUARDS = 0x8080808080808080L;
+    private static final int LANE_BITS = 7;
+
+    final int size;
+
+    AbstractByteRegisters(int size)
+    {
+      this.size = size;
+    }
+
+    static long maxWord(long a, long b)
+    {
+      return maxLanes(a, b, LANES, GUARDS, LANE_BITS);
+    }
+
+    static void histogram(long word, int[] histogram)
+    {
+      for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+        histogram[(int) ((word >>> shift) & 0xff)]++;
+      }
+    }
+
+    @Override
+    final int size()
+    {
+      return size;
+    }
+
+    @Override
+    final boolean sameLayout(Registers that)
+    {
+      return that instanceof AbstractByteRegisters && that.size() == size;
+    }
+
+    @Override
+    final int registersPerWord()
+    {
+      return Long.BYTES;
+    }
+
+    @Override
+    final int wordCount()
+    {
+      // there are at least 2^7 registers
+      return size / Long.BYTES;
+    }
+
+    @Override
+    final void histogram(int fromWord, int toWord, int[] histogram)
+    {
+      for (int i = fromWord; i < toWord; i++) {
+        histogram(word(i), histogram);
+      }
+    }
+
+    @Override
+    final long memoryFootprint()
+    {
+      return size;
+    }
+  }
+
+  static final class ByteRegisters extends AbstractByteRegisters
+  {
+    private static final long BYTE_ARRAY_OFFSET = ObjectSizes.UNSAFE.arrayBaseOffset(byte[].class);
+
+    // the size and the array
+    static final long SHALLOW_SIZE = ObjectSizes.object(1, Integer.BYTES);
+
+    private final byte[] registers;
+
+    ByteRegisters(int size)
+    {
+      super(size);
+      this.registers = new byte[size];
+    }
+
+    @Override
+    int get(int index)
+    {
+      return registers[index];
+    }
+
+    @Override
+    long word(int wordIndex)
+    {
+      return ObjectSizes.UNSAFE.getLong(registers, BYTE_ARRAY_OFFSET + ((long) wordIndex << 3));
+    }
+
+    @Override
+    int updateMax(int index, int value)
+    {
+      final byte previous = registers[index];
+      // note that both operands can never be negative, so we don't need to use unsigned comparison
+      if (previous < value) {
+        registers[index] = (byte) value;
+      }
+      return previous;
+    }
+
+    @Override
+    Registers newInstance()
+    {
+      return new ByteRegisters(size);
+    }
+
+    @Override
+    void merge(Registers that, int fromWord, int toWord)
+    {
+      assert toWord <= wordCount();
+      for (int i = fromWord; i < toWord; i++) {
+        final long offset = BYTE_ARRAY_OFFSET + ((long) i << 3);
+        final long word = ObjectSizes.UNSAFE.getLong(registers, offset);
+        ObjectSizes.UNSAFE.putLong(registers, offset, maxWord(word, that.word(i)));
+      }
+    }
+
+    @Override
+    void histogram(int[] histogram)
+    {
+      for (byte register : registers) {
+        histogram[register]++;
+      }
+    }
+
+    @Override
+    long retainedSize()
+    {
+      return SHALLOW_SIZE + ObjectSizes.sizeOf(registers);
+    }
+
+    @Override
+    void writeTo(ByteBuffer out)
+    {
+      out.put(registers);
+    }
+  }
+
+  static final class ByteBufferRegisters extends AbstractByteRegisters
+  {
+    private final ByteBuffer buffer;
+
+    ByteBufferRegisters(ByteBuffer buffer, int size)
+    {
+      super(size);
+      // words in the same byte order as ByteRegisters
+      this.buffer = buffer.slice().order(ByteOrder.nativeOrder());
+      if (this.buffer.remaining() < size) {
+        throw new IllegalArgumentException("expect " + size + " registers, got " + this.buffer.remaining() + " bytes");
+      }
+    }
+
+    @Override
+    int get(int index)
+    {
+      return buffer.get(index);
+    }
+
+    @Override
+    long word(int wordIndex)
+    {
+      return buffer.getLong(wordIndex << 3);
+    }
+
+    @Override
+    int updateMax(int index, int value)
+    {
+      throw readOnly();
+    }
+
+    @Override
+    void merge(Registers that, int[] histogram)
+    {
+      throw readOnly();
+    }
+
+    @Override
+    Registers newInstance()
+    {
+      return new ByteRegisters(size);
+    }
+
+    @Override
+    void histogram(int[] histogram)
+    {
+      for (int i = 0; i < size; i++) {
+        histogram[buffer.get(i)]++;
+      }
+    }
+
+    @Override
+    long retainedSize()
+    {
+      return ByteRegisters.SHALLOW_SIZE + ObjectSizes.BYTE_BUFFER + size;
+    }
+
+    @Override
+    void writeTo(ByteBuffer out)
+    {
+      ByteBuffer registers = buffer.duplicate();
+      registers.limit(size);
+      out.put(registers);
+    }
+  }
+
+  /**
+   * Packs `64 / bitsPerRegister` registers into each long, a register never spans two words.
+   *
+   * <p>5-bits registers (12 per word) are enough for 32-bits hashes,
+   * 6-bits registers (10 per word) are needed for 64-bits hashes.
+   *
+   * <p>Registers use all of their bits, so words are merged with maxLanes() on the even registers, then on
+   * the odd ones, each using the first bit of the next register as guard bit.
+   * This requires at least one unused bit at the top of the word.
+   */
+  abstract static class AbstractPackedRegisters extends Registers
+  {
+    // word index is computed as (index * reciprocal) >>> RECIPROCAL_SHIFT instead of a division,
+    // exact for every index < 2^30 as long as registersPerWord < 16
+    private static final int RECIPROCAL_SHIFT = 34;
+    // the fields below and the one reference field of subclasses
+    static final long SHALLOW_SIZE = ObjectSizes.object(1, 4 * Integer.BYTES + 6 * Long.BYTES);
+
+    final int size;
+    final int bitsPerRegister;
+    final int registersPerWord;
+    final int wordCount;
+    final long mask;
+    private final long reciprocal;
+    private final long evenLanes;
+    private final long evenGuards;
+    private final long oddLanes;
+    private final long oddGuards;
+
+    AbstractPackedRegisters(int size, int bitsPerRegister)
+    {
+      this.size = size;
+      this.bitsPerRegister = bitsPerRegister;
+      this.registersPerWord = Long.SIZE / bitsPerRegister;
+      if (registersPerWord * bitsPerRegister == Long.SIZE) {
+        throw new IllegalArgumentException("no spare bit left in a word of " + bitsPerRegister + "-bits registers");
+      }
+      this.wordCount = (size + registersPerWord - 1) / registersPerWord;
+      this.reciprocal = (1L << RECIPROCAL_SHIFT) / registersPerWord + 1;
+      this.mask = (1L << bitsPerRegister) - 1;
+
+      long evenLanes = 0;
+      long evenGuards = 0;
+      long oddLanes = 0;
+      long oddGuards = 0;
+      for (int i = 0; i < registersPerWord; i++) {
+        final int shift = i * bitsPerRegister;
+        if (i % 2 == 0) {
+          evenLanes |= mask << shift;
+          evenGuards |= 1L << (shift + bitsPerRegister);
+        } else {
+          oddLanes |= mask << shift;
+          oddGuards |= 1L << (shift + bitsPerRegister);
+        }
+      }
+      this.evenLanes = evenLanes;
+      this.evenGuards = evenGuards;
+      this.oddLanes = oddLanes;
+      this.oddGuards = oddGuards;
+    }
+
+    final int wordIndex(int index)
+    {
+      return (int) ((index * reciprocal) >>> RECIPROCAL_SHIFT);
+    }
+
+    final long maxWord(long a, long b)
+    {
+      return maxLanes(a, b, evenLanes, evenGuards, bitsPerRegister)
+             | maxLanes(a, b, oddLanes, oddGuards, bitsPerRegister);
+    }
+
+    final void histogram(long word, int[] histogram)
+    {
+      for (int shift = 0; shift + bitsPerRegister <= Long.SIZE; shift += bitsPerRegister) {
+        histogram[(int) ((word >>> shift) & mask)]++;
+      }
+    }
+
+    @Override
+    final boolean sameLayout(Registers that)
+    {
+      return that instanceof AbstractPackedRegisters
+             && ((AbstractPackedRegisters) that).bitsPerRegister == bitsPerRegister
+             && that.size() == size;
+    }
+
+    @Override
+    final int registersPerWord()
+    {
+      return registersPerWord;
+    }
+
+    @Override
+    final int wordCount()
+    {
+      return wordCount;
+    }
+
+    @Override
+    final void histogram(int fromWord, int toWord, int[] histogram)
+    {
+      for (int i = fromWord; i < toWord; i++) {
+        histogram(word(i), histogram);
+      }
+    }
+
+    @Override
+    final int size()
+    {
+      return size;
+    }
+
+    @Override
+    final int get(int index)
+    {
+      final int word = wordIndex(index);
+      final int shift = (index - word * registersPerWord) * bitsPerRegister;
+      return (int) ((word(word) >>> shift) & mask);
+    }
+
+    @Override
+    final Registers newInstance()
+    {
+      return new PackedRegisters(size, bitsPerRegister);
+    }
+
+    @Override
+    final void histogram(int[] histogram)
+    {
+      for (int i = 0; i < wordCount; i++) {
+        histogram(word(i), histogram);
+      }
+      discountUnusedSlots(histogram);
+    }
+
+    @Override
+    final long memoryFootprint()
+    {
+      return (long) Long.BYTES * wordCount;
+    }
+
+    @Override
+    final void writeTo(ByteBuffer out)
+    {
+      assert out.order() == ByteOrder.LITTLE_ENDIAN;
+      for (int i = 0; i < wordCount; i++) {
+        out.putLong(word(i));
+      }
+    }
+  }
+
+  static final class PackedRegisters extends AbstractPackedRegisters
+  {
+    private final long[] words;
+
+    PackedRegisters(int size, int bitsPerRegister)
+    {
+      super(size, bitsPerRegister);
+      this.words = new long[wordCount];
+    }
+
+    @Override
+    long word(int wordIndex)
+    {
+      return words[wordIndex];
+    }
+
+    @Override
+    int updateMax(int index, int value)
+    {
+      final int word = wordIndex(index);
+      final int shift = (index - word * registersPerWord) * bitsPerRegister;
+      final long w = words[word];
+      final int previous = (int) ((w >>> shift) & mask);
+      if (previous < value) {
+        words[word] = (w & ~(mask << shift)) | ((long) value << shift);
+      }
+      return previous;
+    }
+
+    @Override
+    void merge(Registers that, int fromWord, int toWord)
+    {
+      for (int i = fromWord; i < toWord; i++) {
+        words[i] = maxWord(words[i], that.word(i));
+      }
+    }
+
+    @Override
+    long retainedSize()
+    {
+      return SHALLOW_SIZE + ObjectSizes.sizeOf(words);
+    }
+  }
+
+  static final class PackedBufferRegisters extends AbstractPackedRegisters
+  {
+    private final ByteBuffer buffer;
+
+    PackedBufferRegisters(ByteBuffer buffer, int size, int bitsPerRegister)
+    {
+      super(size, bitsPerRegister);
+      this.buffer = buffer.slice().order(buffer.order());
+      if (this.buffer.remaining() < memoryFootprint()) {
+        throw new IllegalArgumentException(
+            "expect " + memoryFootprint() + " bytes of registers, got " + this.buffer.remaining()
+        );
+      }
+    }
+
+    @Override
+    long word(int wordIndex)
+    {
+      return buffer.getLong(wordIndex << 3);
+    }
+
+    @Override
+    int updateMax(int index, int value)
+    {
+      throw readOnly();
+    }
+
+    @Override
+    void merge(Registers that, int[] histogram)
+    {
+      throw readOnly();
+    }
+
+    @Override
+    long retainedSize()
+    {
+      return SHALLOW_SIZE + ObjectSizes.BYTE_BUFFER + memoryFootprint();
+    }
+  }
+
+  /**
+   * Packed registers updated with compare-and-set, safe to update from multiple threads without locking.
+   *
+   * <p>Registers only ever grow, so an update first reads the word and gives up if the register is already
+   * large enough, which is the common case once the sketch fills up. Concurrent readers see every word
+   * as of some point during the read, so an estimate is never below that of the registers before the read
+   * started, nor above that of the registers after it ended.
+   */
+  static final class AtomicPackedRegisters extends AbstractPackedRegisters
+  {
+    private final AtomicLongArray words;
+
+    AtomicPackedRegisters(int size, int bitsPerRegister)
+    {
+      super(size, bitsPerRegister);
+      this.words = new AtomicLongArray(wordCount);
+    }
+
+    @Override
+    long word(int wordIndex)
+    {
+      return words.get(wordIndex);
+    }
+
+    @Override
+    int updateMax(int index, int value)
+    {
+      final int word = wordIndex(index);
+      final int shift = (index - word * registersPerWord) * bitsPerRegister;
+      while (true) {
+        final long w = words.get(word);
+        final int previous = (int) ((w >>> shift) & mask);
+        if (previous >= value || words.compareAndSet(word, w, (w & ~(mask << shift)) | ((long) value << shift))) {
+          return previous;
+        }
+      }
+    }
+
+    @Override
+    void merge(Registers that, int fromWord, int toWord)
+    {
+      for (int i = fromWord; i < toWord; i++) {
+        final long other = that.word(i);
+        long w;
+        long merged;
+        do {
+          w = words.get(i);
+          merged = maxWord(w, other);
+        } while (merged != w && !words.compareAndSet(i, w, merged));
+      }
+    }
+
+    @Override
+    long retainedSize()
+    {
+      // the AtomicLongArray and its array
+      return SHALLOW_SIZE + ObjectSizes.object(1, 0) + ObjectSizes.array(wordCount, Long.BYTES);
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package io.dbfun.sketch;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Binary format shared by all estimators.
+ *
+ * <pre>
+ * byte 0     : format version
+ * byte 1     : estimator type, one of TYPE_*
+ * byte 2     : precision, 0 if the estimator doesn't have one
+ * byte 3     : representation of the body, one of DENSE, PACKED, SPARSE, HASH_SET
+ * byte 4     : bit set of {@link HllOption} ordinals the estimator was created with
+ * byte 5..7  : reserved, 0
+ * byte 8..   : body, specific to each estimator and representation, multi-byte values are little-endian
+ * </pre>
+ *
+ * <p>Serialized estimators can be read back with {@link CardinalityEstimators#wrap(ByteBuffer)}, which
+ * returns a read-only view over the buffer instead of copying registers or hash values.
+ */
+final class SketchFormat
+{
+  static final byte VERSION = 1;
+  static final int HEADER_SIZE = 8;
+
+  static final byte TYPE_HLLRAW = 1;
+  static final byte TYPE_HLLNOBIAS = 2;
+  static final byte TYPE_UNIQ = 3;
+  static final byte TYPE_COMBINED = 4;
+
+  // one byte per register
+  static final byte DENSE = 0;
+  // registers bit-packed into little-endian longs
+  static final byte PACKED = 1;
+  // HLL++ sparse list
+  static final byte SPARSE = 2;
+  // list of 32-bits hash values
+  static final byte HASH_SET = 3;
+
+  private SketchFormat()
+  {
+  }
+
+  static void writeHeader(ByteBuffer out, byte type, int precision, byte representation, Set<HllOption> options)
+  {
+    int optionBits = 0;
+    for (HllOption option : options) {
+      optionBits |= 1 << option.ordinal();
+    }
+    out.put(VERSION);
+    out.put(type);
+    out.put((byte) precision);
+    out.put(representation);
+    out.put((byte) optionBits);
+    out.put((byte) 0);
+    out.put((byte) 0);
+    out.put((byte) 0);
+  }
+
+  /**
+   * @return estimator type of the serialized estimator starting at the position of `in`
+   */
+  static byte type(ByteBuffer in)
+  {
+    final int start = in.position();
+    if (in.remaining() < HEADER_SIZE) {
+      throw new IllegalArgumentException("buffer too small for a header : " + in.remaining());
+    }
+    if (in.get(start) != VERSION) {
+      throw new IllegalArgumentException("unsupported format version : " + in.get(start));
+    }
+    return in.get(start + 1);
+  }
+
+  static void checkType(ByteBuffer in, byte expectedType)
+  {
+    final byte type = type(in);
+    if (type != expectedType) {
+      throw new IllegalArgumentException("expect estimator type " + expectedType + ", got " + type);
+    }
+  }
+
+  static int precision(ByteBuffer in)
+  {
+    return in.get(in.position() + 2);
+  }
+
+  /**
+   * @return precision of the serialized estimator, checked to be in [min, max]
+   */
+  static int precision(ByteBuffer in, int min, int max)
+  {
+    final int precision = precision(in);
+    if (precision < min || precision > max) {
+      throw new IllegalArgumentException(
+          "invalid precision " + precision + " : should be in [" + min + ", " + max + "]"
+      );
+    }
+    return precision;
+  }
+
+  static byte representation(ByteBuffer in)
+  {
+    return in.get(in.position() + 3);
+  }
+
+  static Set<HllOption> options(ByteBuffer in)
+  {
+    final int optionBits = in.get(in.position() + 4);
+    Set<HllOption> options = EnumSet.noneOf(HllOption.class);
+    for (HllOption option : HllOption.values()) {
+      if ((optionBits & (1 << option.ordinal())) != 0) {
+        options.add(option);
+      }
+    }
+    return options;
+  }
+
+  /**
+   * @return a little-endian view of the body, sharing content with `in` without changing its position
+   */
+  static ByteBuffer body(ByteBuffer in)
+  {
+    ByteBuffer body = in.duplicate();
+    body.position(in.position() + HEADER_SIZE);
+    return body.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * The format has no length prefix: check the size the header of the body implies before reading it, so that a
+   * truncated or foreign buffer isn't read past the end of the estimator.
+   *
+   * @throws IllegalArgumentException if `body` holds fewer than `size` bytes from its position on
+   */
+  static void checkBodySize(ByteBuffer body, long size)
+  {
+    if (body.remaining() < size) {
+      throw new IllegalArgumentException("expect a body of " + size + " bytes, got " + body.remaining());
+    }
+  }
+
+  /**
+   * @return a little-endian buffer for writing the body after the header just written to `out`,
+   * pass it to {@link #finishBody(ByteBuffer, ByteBuffer)} once written
+   */
+  static ByteBuffer startBody(ByteBuffer out)
+  {
+    return out.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  static void finishBody(ByteBuffer out, ByteBuffer body)
+  {
+    out.position(out.position() + body.position());
+  }
+
+  static UnsupportedOperationException readOnly(CardinalityEstimator estimator)
+  {
+    return new UnsupportedOperationException(estimator.name() + " is a read-only view of serialized bytes");
+  }
+}
@@ -0,0 +1,97 @@
+package io.dbfun.sketch;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks that {@link CardinalityEstimators#wrap(ByteBuffer)} reads back what {@link CardinalityEstimator#serialize}
+ * wrote, for every estimator and representation, at any position of a larger buffer, and rejects truncated
+ * buffers instead of reading past their end.
+ */
+public class SketchFormatTests
+{
+  private static final String[] NAMES = {
+      "hllraw14",
+      "hllraw12+packed",
+      "hllraw14+incremental",
+      "hllnobias14",
+      "hllnobias14+packed",
+      "hllnobias14+sparse",
+      "hllnobias16+sparse+incremental",
+      "combined12",
+      "combined14+incremental",
+      "uniq"
+  };
+  private static final int[] CARDINALITIES = {0, 1, 100, 5_000, 200_000};
+
+  private static int failures;
+
+  public static void main(String[] args)
+  {
+    for (String name : NAMES) {
+      for (int cardinality : CARDINALITIES) {
+        checkRoundTrip(name, cardinality);
+      }
+    }
+
+    System.out.printf("%,d failures%n", failures);
+    if (failures > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static void checkRoundTrip(String name, int cardinality)
+  {
+    final Random random = new Random(cardinality);
+    final CardinalityEstimator estimator = CardinalityEstimators.get(name);
+    for (int i = 0; i < cardinality; i++) {
+      estimator.add(random.nextLong());
+    }
+    final ByteBuffer serialized = CardinalityEstimators.serialize(estimator);
+    final int size = serialized.remaining();
+    check(size == estimator.serializedSize(), "%s n=%s: serializedSize %s, wrote %s",
+          name, cardinality, estimator.serializedSize(), size);
+
+    // between other bytes, as in a file of several estimators
+    final ByteBuffer buffer = ByteBuffer.allocate(size + 100);
+    buffer.position(37);
+    buffer.put(serialized.duplicate());
+    while (buffer.hasRemaining()) {
+      buffer.put((byte) random.nextInt());
+    }
+    buffer.position(37);
+    final CardinalityEstimator wrapped = CardinalityEstimators.wrap(buffer);
+    check(buffer.position() == 37, "%s n=%s: wrap moved the position", name, cardinality);
+    check(
+        CardinalityEstimators.serialize(wrapped).equals(serialized),
+        "%s n=%s: serialize(wrap(bytes)) differs from bytes", name, cardinality
+    );
+    check(
+        wrapped.cardinality() == estimator.cardinality(),
+        "%s n=%s: wrapped estimate %s instead of %s", name, cardinality, wrapped.cardinality(), estimator.cardinality()
+    );
+
+    for (int length : new int[]{0, SketchFormat.HEADER_SIZE, SketchFormat.HEADER_SIZE + 4, size / 2, size - 1}) {
+      if (length >= size) {
+        continue;
+      }
+      final ByteBuffer truncated = serialized.duplicate();
+      truncated.limit(length);
+      try {
+        CardinalityEstimators.wrap(truncated);
+        check(false, "%s n=%s: %s of %s bytes accepted", name, cardinality, length, size);
+      }
+      catch (IllegalArgumentException expected) {
+        // ok
+      }
+    }
+  }
+
+  private static void check(boolean condition, String format, Object... args)
+  {
+    if (!condition) {
+      failures++;
+      System.out.printf("FAILED " + format + "%n", args);
+    }
+  }
+}
@@ -0,0 +1,558 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local store of time-bucketed sketches keyed by (metric, bucket), in append-only segment files read through
+ * {@link MappedByteBuffer}s.
+ *
+ * <p>A segment is a file of fixed size, mapped once, holding records one after the other, 8-byte aligned:
+ * <pre>
+ * segment : int magic, int version, records..., zeros
+ * record  : int sketch length, int metric length, long bucket start, long bucket length,
+ *           metric in UTF-8, padding, sketch in the {@link SketchFormat} format, padding
+ * </pre>
+ * The sketch length of a record is written last, so a record cut short by a crash reads as the end of its segment.
+ * Sketches are serialized straight into the mapped pages of the active segment, a new one is created once it is full.
+ *
+ * <p>Opening a store maps its segments and reads record headers only. Queries wrap the sketches of the requested
+ * range with {@link CardinalityEstimators#wrap(ByteBuffer)} and union the read-only views, so that registers are
+ * merged straight from the mapped pages. The sketches of a metric must be of the same estimator type.
+ *
+ * <p>{@link #compact(long, List)} rolls buckets older than the age of a {@link Rollup} into coarser buckets, such as
+ * minutes into hours, rewriting the segments they are in. Unions are idempotent, so a bucket stored twice, say by
+ * a compaction interrupted before it deleted the segments it rewrote, doesn't change any estimate.
+ *
+ * <p>Thread-safe: appends, queries and one compaction at a time can run concurrently. Bucket bounds are in any unit,
+ * such as epoch milliseconds, which {@link #scheduleCompaction} assumes.
+ */
+public final class SketchStore implements Closeable
+{
+  private static final int MAGIC = 0x54534b53; // "SKST" in little-endian
+  private static final int VERSION = 1;
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 24;
+  private static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".dat";
+
+  /**
+   * Roll buckets ending more than `age` ago into buckets of `bucketLength`, aligned on multiples of it.
+   */
+  public static final class Rollup
+  {
+    private final long age;
+    private final long bucketLength;
+
+    public Rollup(long age, long bucketLength)
+    {
+      Preconditions.checkArgument(age >= 0, "invalid age [%s]", age);
+      Preconditions.checkArgument(bucketLength > 0, "invalid bucketLength [%s]", bucketLength);
+      this.age = age;
+      this.bucketLength = bucketLength;
+    }
+
+    public long age()
+    {
+      return age;
+    }
+
+    public long bucketLength()
+    {
+      return bucketLength;
+    }
+  }
+
+  private final Path directory;
+  private final int segmentSize;
+  private final Object compactionLock = new Object();
+
+  // sealed segments and the active one, guarded by this
+  private final List<Segment> segments = new ArrayList<>();
+  // by metric and bucket start, guarded by this
+  private final Map<String, TreeMap<Long, List<Entry>>> index = new HashMap<>();
+  private Segment active;
+  private long nextSegmentId;
+  private boolean closed;
+
+  private SketchStore(Path directory, int segmentSize)
+  {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  public static SketchStore open(Path directory) throws IOException
+  {
+    return open(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Open the store in `directory`, created if missing, mapping the segments it holds.
+   *
+   * @param segmentSize size of new segment files, a segment is larger only to fit a larger record
+   */
+  public static SketchStore open(Path directory, int segmentSize) throws IOException
+  {
+    Preconditions.checkArgument(segmentSize >= 4096, "invalid segmentSize [%s] : should be at least 4096", segmentSize);
+    Files.createDirectories(directory);
+    final SketchStore store = new SketchStore(directory, segmentSize);
+    final List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path file : stream) {
+        files.add(file);
+      }
+    }
+    files.sort(Comparator.comparingLong(SketchStore::segmentId));
+    for (Path file : files) {
+      store.segments.add(Segment.map(file));
+      store.nextSegmentId = segmentId(file) + 1;
+    }
+    for (Segment segment : store.segments) {
+      store.addToIndex(segment.entries);
+    }
+    return store;
+  }
+
+  private static long segmentId(Path file)
+  {
+    final String name = file.getFileName().toString();
+    return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /**
+   * Store `sketch` as the bucket [bucketStart, bucketStart + bucketLength) of `metric`. Appending a bucket again
+   * doesn't replace it, queries union both.
+   */
+  public synchronized void append(String metric, long bucketStart, long bucketLength, CardinalityEstimator sketch)
+      throws IOException
+  {
+    Preconditions.checkState(!closed, "store is closed");
+    Preconditions.checkArgument(bucketLength > 0, "invalid bucketLength [%s]", bucketLength);
+    final Bucket bucket = new Bucket(metric, bucketStart, bucketLength);
+    final int sketchLength = sketch.serializedSize();
+    if (active == null || !active.fits(bucket, sketchLength)) {
+      if (active != null) {
+        active.force();
+      }
+      active = newSegment(Segment.recordSize(bucket, sketchLength));
+      segments.add(active);
+    }
+    addToIndex(active.append(bucket, sketch));
+  }
+
+  /**
+   * @return estimated number of distinct values of `metric` over the buckets starting in [from, to),
+   * 0 if there is none
+   */
+  public long cardinality(String metric, long from, long to)
+  {
+    final List<CardinalityEstimator> views = views(metric, from, to);
+    return views.isEmpty() ? 0 : CardinalityEstimators.unionCardinality(views);
+  }
+
+  /**
+   * @return a new estimator, union of the buckets of `metric` starting in [from, to), null if there is none
+   */
+  public CardinalityEstimator union(String metric, long from, long to)
+  {
+    final List<CardinalityEstimator> views = views(metric, from, to);
+    return views.isEmpty() ? null : CardinalityEstimators.unionAll(views);
+  }
+
+  /**
+   * @return read-only views over the buckets of `metric` starting in [from, to), in bucket order
+   */
+  public List<CardinalityEstimator> views(String metric, long from, long to)
+  {
+    final List<Entry> entries = new ArrayList<>();
+    synchronized (this) {
+      final TreeMap<Long, List<Entry>> buckets = index.get(metric);
+      if (buckets != null && from < to) {
+        for (List<Entry> bucketEntries : buckets.subMap(from, true, to, false).values()) {
+          entries.addAll(bucketEntries);
+        }
+      }
+    }
+    final List<CardinalityEstimator> views = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      views.add(entry.view());
+    }
+    return views;
+  }
+
+  /**
+   * Roll up the buckets of sealed segments, see {@link Rollup}. A bucket is rolled by the rollup of the largest
+   * bucket length that is larger than its own, whose bucket covering it ended more than the rollup age before `now`.
+   * Segments holding such buckets are rewritten into new segments, then deleted.
+   */
+  public void compact(long now, List<Rollup> rollups) throws IOException
+  {
+    synchronized (compactionLock) {
+      final List<Segment> compacted = new ArrayList<>();
+      synchronized (this) {
+        for (Segment segment : segments) {
+          if (segment != active && hasRollup(segment, now, rollups)) {
+            compacted.add(segment);
+          }
+        }
+      }
+      if (compacted.isEmpty()) {
+        return;
+      }
+
+      final Map<Bucket, List<Entry>> rolled = new LinkedHashMap<>();
+      final List<Entry> kept = new ArrayList<>();
+      for (Segment segment : compacted) {
+        for (Entry entry : segment.entries) {
+          final Rollup rollup = rollupOf(entry.bucket, now, rollups);
+          if (rollup == null) {
+            kept.add(entry);
+          } else {
+            final long start = Math.floorDiv(entry.bucket.start, rollup.bucketLength) * rollup.bucketLength;
+            rolled.computeIfAbsent(new Bucket(entry.bucket.metric, start, rollup.bucketLength), b -> new ArrayList<>())
+                  .add(entry);
+          }
+        }
+      }
+
+      final List<Segment> written = new ArrayList<>();
+      for (Entry entry : kept) {
+        appendCompacted(written, entry.bucket, entry.view());
+      }
+      for (Map.Entry<Bucket, List<Entry>> bucket : rolled.entrySet()) {
+        final List<CardinalityEstimator> views = new ArrayList<>(bucket.getValue().size());
+        for (Entry entry : bucket.getValue()) {
+          views.add(entry.view());
+        }
+        appendCompacted(written, bucket.getKey(), CardinalityEstimators.unionAll(views));
+      }
+      for (Segment segment : written) {
+        segment.force();
+      }
+
+      synchronized (this) {
+        segments.removeAll(compacted);
+        segments.addAll(written);
+        index.clear();
+        for (Segment segment : segments) {
+          addToIndex(segment.entries);
+        }
+      }
+      // views over deleted segments stay readable until they are collected
+      for (Segment segment : compacted) {
+        Files.deleteIfExists(segment.path);
+      }
+    }
+  }
+
+  /**
+   * Run {@link #compact(long, List)} with the current time in milliseconds every `period` on `executor`,
+   * until the returned future is cancelled or a compaction fails.
+   */
+  public ScheduledFuture<?> scheduleCompaction(
+      ScheduledExecutorService executor,
+      long period,
+      TimeUnit unit,
+      List<Rollup> rollups
+  )
+  {
+    return executor.scheduleWithFixedDelay(
+        () -> {
+          try {
+            compact(System.currentTimeMillis(), rollups);
+          }
+          catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        },
+        period,
+        period,
+        unit
+    );
+  }
+
+  /**
+   * Write the appended sketches to disk.
+   */
+  public synchronized void flush()
+  {
+    if (active != null) {
+      active.force();
+    }
+  }
+
+  /**
+   * Flush and stop accepting appends, views and estimators returned by queries stay readable.
+   */
+  @Override
+  public synchronized void close()
+  {
+    if (!closed) {
+      flush();
+      closed = true;
+    }
+  }
+
+  private static boolean hasRollup(Segment segment, long now, List<Rollup> rollups)
+  {
+    for (Entry entry : segment.entries) {
+      if (rollupOf(entry.bucket, now, rollups) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Rollup rollupOf(Bucket bucket, long now, List<Rollup> rollups)
+  {
+    Rollup result = null;
+    for (Rollup rollup : rollups) {
+      final long start = Math.floorDiv(bucket.start, rollup.bucketLength) * rollup.bucketLength;
+      if (rollup.bucketLength > bucket.length
+          && start + rollup.bucketLength <= now - rollup.age
+          && (result == null || rollup.bucketLength > result.bucketLength)) {
+        result = rollup;
+      }
+    }
+    return result;
+  }
+
+  private void appendCompacted(List<Segment> written, Bucket bucket, CardinalityEstimator sketch) throws IOException
+  {
+    final int sketchLength = sketch.serializedSize();
+    Segment segment = written.isEmpty() ? null : written.get(written.size() - 1);
+    if (segment == null || !segment.fits(bucket, sketchLength)) {
+      synchronized (this) {
+        segment = newSegment(Segment.recordSize(bucket, sketchLength));
+      }
+      written.add(segment);
+    }
+    segment.append(bucket, sketch);
+  }
+
+  private Segment newSegment(int recordSize) throws IOException
+  {
+    final long id = nextSegmentId++;
+    final Path file = directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    return Segment.create(file, Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize));
+  }
+
+  private void addToIndex(Entry entry)
+  {
+    index.computeIfAbsent(entry.bucket.metric, metric -> new TreeMap<>())
+         .computeIfAbsent(entry.bucket.start, start -> new ArrayList<>(1))
+         .add(entry);
+  }
+
+  private void addToIndex(List<Entry> entries)
+  {
+    for (Entry entry : entries) {
+      addToIndex(entry);
+    }
+  }
+
+  private static int align(int size)
+  {
+    return (size + 7) & ~7;
+  }
+
+  private static final class Bucket
+  {
+    final String metric;
+    final long start;
+    final long length;
+
+    Bucket(String metric, long start, long length)
+    {
+      this.metric = Preconditions.checkNotNull(metric);
+      this.start = start;
+      this.length = length;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Bucket)) {
+        return false;
+      }
+      Bucket that = (Bucket) o;
+      return start == that.start && length == that.length && metric.equals(that.metric);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Objects.hash(metric, start, length);
+    }
+  }
+
+  /**
+   * A record of a segment.
+   */
+  private static final class Entry
+  {
+    final Segment segment;
+    final Bucket bucket;
+    final int sketchOffset;
+    final int sketchLength;
+
+    Entry(Segment segment, Bucket bucket, int sketchOffset, int sketchLength)
+    {
+      this.segment = segment;
+      this.bucket = bucket;
+      this.sketchOffset = sketchOffset;
+      this.sketchLength = sketchLength;
+    }
+
+    CardinalityEstimator view()
+    {
+      final ByteBuffer sketch = segment.buffer.duplicate();
+      sketch.position(sketchOffset);
+      sketch.limit(sketchOffset + sketchLength);
+      return CardinalityEstimators.wrap(sketch.slice());
+    }
+  }
+
+  private static final class Segment
+  {
+    final Path path;
+    final MappedByteBuffer mapped;
+    // little-endian view of `mapped`
+    final ByteBuffer buffer;
+    final List<Entry> entries = new ArrayList<>();
+    // where the next record goes
+    int end;
+
+    private Segment(Path path, MappedByteBuffer mapped)
+    {
+      this.path = path;
+      this.mapped = mapped;
+      this.buffer = ((ByteBuffer) mapped).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static Segment create(Path path, int size) throws IOException
+    {
+      final MappedByteBuffer mapped;
+      try (FileChannel channel = FileChannel.open(
+          path,
+          StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.READ,
+          StandardOpenOption.WRITE
+      )) {
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+      final Segment segment = new Segment(path, mapped);
+      segment.buffer.putInt(0, MAGIC);
+      segment.buffer.putInt(Integer.BYTES, VERSION);
+      segment.end = SEGMENT_HEADER_SIZE;
+      return segment;
+    }
+
+    /**
+     * Map a segment read-only and read its record headers.
+     */
+    static Segment map(Path path) throws IOException
+    {
+      final MappedByteBuffer mapped;
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      final Segment segment = new Segment(path, mapped);
+      final ByteBuffer buffer = segment.buffer;
+      if (buffer.capacity() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+        throw new IOException("not a sketch segment : " + path);
+      }
+      if (buffer.getInt(Integer.BYTES) != VERSION) {
+        throw new IOException("unsupported segment version " + buffer.getInt(Integer.BYTES) + " : " + path);
+      }
+      int pos = SEGMENT_HEADER_SIZE;
+      while (pos + RECORD_HEADER_SIZE <= buffer.capacity()) {
+        final int sketchLength = buffer.getInt(pos);
+        if (sketchLength == 0) {
+          break;
+        }
+        final byte[] metric = new byte[buffer.getInt(pos + Integer.BYTES)];
+        final ByteBuffer metricBuffer = buffer.duplicate();
+        metricBuffer.position(pos + RECORD_HEADER_SIZE);
+        metricBuffer.get(metric);
+        final Bucket bucket = new Bucket(
+            new String(metric, StandardCharsets.UTF_8),
+            buffer.getLong(pos + 2 * Integer.BYTES),
+            buffer.getLong(pos + 2 * Integer.BYTES + Long.BYTES)
+        );
+        final int sketchOffset = pos + align(RECORD_HEADER_SIZE + metric.length);
+        segment.entries.add(new Entry(segment, bucket, sketchOffset, sketchLength));
+        pos = align(sketchOffset + sketchLength);
+      }
+      segment.end = pos;
+      return segment;
+    }
+
+    static int recordSize(Bucket bucket, int sketchLength)
+    {
+      return align(RECORD_HEADER_SIZE + bucket.metric.getBytes(StandardCharsets.UTF_8).length) + align(sketchLength);
+    }
+
+    boolean fits(Bucket bucket, int sketchLength)
+    {
+      return !buffer.isReadOnly() && end + recordSize(bucket, sketchLength) <= buffer.capacity();
+    }
+
+    Entry append(Bucket bucket, CardinalityEstimator sketch)
+    {
+      final byte[] metric = bucket.metric.getBytes(StandardCharsets.UTF_8);
+      final int sketchOffset = end + align(RECORD_HEADER_SIZE + metric.length);
+      final int sketchLength = sketch.serializedSize();
+      final ByteBuffer out = buffer.duplicate();
+      out.position(end + RECORD_HEADER_SIZE);
+      out.put(metric);
+      out.position(sketchOffset);
+      out.limit(sketchOffset + sketchLength);
+      sketch.serialize(out.slice());
+      buffer.putInt(end + Integer.BYTES, metric.length);
+      buffer.putLong(end + 2 * Integer.BYTES, bucket.start);
+      buffer.putLong(end + 2 * Integer.BYTES + Long.BYTES, bucket.length);
+      // the length goes last, a record without it ends the segment when mapped again
+      buffer.putInt(end, sketchLength);
+
+      final Entry entry = new Entry(this, bucket, sketchOffset, sketchLength);
+      entries.add(entry);
+      end = align(sketchOffset + sketchLength);
+      return entry;
+    }
+
+    void force()
+    {
+      if (!buffer.isReadOnly()) {
+        mapped.force();
+      }
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.Arrays;
+
+/**
+ * Sliding HyperLogLog described in https://hal.archives-ouvertes.fr/hal-00465313/document: distinct values
+ * added in any time window up to `maxWindow` long, from a single structure.
+ *
+ * <p>Values are indexed and ranked like {@link Hll64WithBiasCorrection}, and a window is estimated like a dense
+ * "hllnobias" sketch of the values added in it. Instead of its max rank, every register keeps the list of
+ * possible future maxima: the (timestamp, rank) pairs not dominated by a later pair of a larger or equal rank.
+ * Lists are sorted by timestamp, and so by decreasing rank, which makes the max rank of a register in a window
+ * the rank of its first pair in the window. A list holds at most 65 - p pairs, and a few in practice.
+ *
+ * <p>Pairs are packed into a long, timestamp &lt;&lt; 6 | rank, and each register has its own array,
+ * grown on demand. Adding a value only drops the pairs it dominates and the pairs of its register out of every
+ * window, it doesn't allocate once the array of its register is large enough.
+ *
+ * <p>Timestamps are in any unit, such as milliseconds, and must be added in non-decreasing order. Not thread-safe.
+ */
+public final class SlidingHll64
+{
+  private static final int RANK_BITS = 6;
+  private static final long RANK_MASK = (1L << RANK_BITS) - 1;
+  private static final long MAX_TIMESTAMP = Long.MAX_VALUE >>> RANK_BITS;
+  private static final int MIN_LIST_CAPACITY = 4;
+
+  private final int p;
+  private final long maxWindow;
+  private final ValueHasher hasher;
+
+  // pairs of every register, null until its first value
+  private final long[][] lists;
+  private final byte[] sizes;
+
+  private long latestTimestamp;
+
+  public SlidingHll64(int precision, long maxWindow)
+  {
+    this(precision, maxWindow, Hashing.murmur3_128());
+  }
+
+  /**
+   * @param maxWindow length of the largest window that can be queried, in the unit of timestamps
+   */
+  public SlidingHll64(int precision, long maxWindow, HashFunction hashFunction)
+  {
+    Preconditions.checkArgument(
+        precision >= 7 && precision <= 18,
+        "invalid precision [%s] : should be in [7, 18]", precision
+    );
+    Preconditions.checkArgument(maxWindow > 0, "invalid maxWindow [%s]", maxWindow);
+    this.p = precision;
+    this.maxWindow = maxWindow;
+    this.hasher = ValueHasher.of(hashFunction);
+    this.lists = new long[1 << p][];
+    this.sizes = new byte[1 << p];
+  }
+
+  public int precision()
+  {
+    return p;
+  }
+
+  public long maxWindow()
+  {
+    return maxWindow;
+  }
+
+  /**
+   * @return the latest timestamp added or merged, 0 if none
+   */
+  public long latestTimestamp()
+  {
+    return latestTimestamp;
+  }
+
+  public void add(long timestamp, long value)
+  {
+    addHash(timestamp, hasher.hash(value));
+  }
+
+  public void add(long timestamp, byte[] value)
+  {
+    addHash(timestamp, hasher.hash(value, 0, value.length));
+  }
+
+  public void add(long timestamp, byte[] value, int offset, int length)
+  {
+    addHash(timestamp, hasher.hash(value, offset, length));
+  }
+
+  public void add(long timestamp, CharSequence value)
+  {
+    addHash(timestamp, hasher.hash(value));
+  }
+
+  /**
+   * Same as add(timestamp, values[i]) for i in [offset, offset + length), hashing values a batch at a time.
+   */
+  public void add(long timestamp, long[] values, int offset, int length)
+  {
+    Preconditions.checkPositionIndexes(offset, offset + length, values.length);
+    final long[] hashes = ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      final int count = hasher.hash(values, from, Math.min(end, from + hashes.length), null, hashes);
+      for (int i = 0; i < count; i++) {
+        addHash(timestamp, hashes[i]);
+      }
+    }
+  }
+
+  /**
+   * Add a value by its hash at `timestamp`, see {@link Hll64WithBiasCorrection#addHash(long)} for the bits used.
+   *
+   * @throws IllegalArgumentException if timestamp is negative, too large to pack or before the latest one
+   */
+  public void addHash(long timestamp, long hash)
+  {
+    checkTimestamp(timestamp);
+    latestTimestamp = timestamp;
+    final int index = (int) (hash >>> (Long.SIZE - p));
+    final int rank = Long.numberOfLeadingZeros((hash << p) | (1L << (p - 1))) + 1;
+    insert(index, timestamp << RANK_BITS | rank);
+  }
+
+  private void checkTimestamp(long timestamp)
+  {
+    if (timestamp < latestTimestamp || timestamp > MAX_TIMESTAMP) {
+      throw new IllegalArgumentException(
+          "invalid timestamp [" + timestamp + "] : should be in [" + latestTimestamp + ", " + MAX_TIMESTAMP + "]"
+      );
+    }
+  }
+
+  /**
+   * Append `pair` to the list of register `index`, after dropping the pairs it dominates and the pairs out of every
+   * window ending at its timestamp or later. Pairs must be inserted in non-decreasing timestamp order.
+   */
+  private void insert(int index, long pair)
+  {
+    long[] list = lists[index];
+    int size = sizes[index];
+    final long rank = pair & RANK_MASK;
+    while (size > 0 && (list[size - 1] & RANK_MASK) <= rank) {
+      size--;
+    }
+    final long expiry = (pair >>> RANK_BITS) - maxWindow;
+    int first = 0;
+    while (first < size && list[first] >>> RANK_BITS <= expiry) {
+      first++;
+    }
+    if (first > 0) {
+      System.arraycopy(list, first, list, 0, size - first);
+      size -= first;
+    }
+    if (list == null) {
+      list = lists[index] = new long[MIN_LIST_CAPACITY];
+    } else if (size == list.length) {
+      list = lists[index] = Arrays.copyOf(list, size * 2);
+    }
+    list[size++] = pair;
+    sizes[index] = (byte) size;
+  }
+
+  /**
+   * @return estimated number of distinct values added in (now - window, now]
+   * @throws IllegalArgumentException if window isn't in (0, maxWindow] or now is before the latest timestamp
+   */
+  public long cardinality(long now, long window)
+  {
+    Preconditions.checkArgument(
+        window > 0 && window <= maxWindow,
+        "invalid window [%s] : should be in (0, %s]", window, maxWindow
+    );
+    Preconditions.checkArgument(
+        now >= latestTimestamp,
+        "can't estimate at [%s] before the latest timestamp [%s]", now, latestTimestamp
+    );
+    final long start = now - window;
+    final int[] histogram = new int[Long.SIZE];
+    for (int index = 0; index < lists.length; index++) {
+      final long[] list = lists[index];
+      final int size = sizes[index];
+      int i = 0;
+      while (i < size && list[i] >>> RANK_BITS <= start) {
+        i++;
+      }
+      histogram[i < size ? (int) (list[i] & RANK_MASK) : 0]++;
+    }
+    return Hll64WithBiasCorrection.denseCardinality(p, histogram);
+  }
+
+  /**
+   * Merge the pairs of `that`, as if the values added to it had been added to this sketch in timestamp order.
+   * Pairs out of every window of this sketch are dropped.
+   */
+  public void merge(SlidingHll64 that)
+  {
+    Preconditions.checkArgument(that.p == p, "can't merge precision %s into %s", that.p, p);
+    // a list holds at most 65 - p pairs of distinct ranks
+    final long[] scratch = new long[Long.SIZE];
+    for (int index = 0; index < lists.length; index++) {
+      final int thatSize = that.sizes[index];
+      if (thatSize == 0) {
+        continue;
+      }
+      final long[] thatList = that.lists[index];
+      final int size = sizes[index];
+      if (size > 0) {
+        System.arraycopy(lists[index], 0, scratch, 0, size);
+      }
+      sizes[index] = 0;
+      int i = 0;
+      int j = 0;
+      while (i < size || j < thatSize) {
+        if (j == thatSize || (i < size && scratch[i] >>> RANK_BITS <= thatList[j] >>> RANK_BITS)) {
+          insert(index, scratch[i++]);
+        } else {
+          insert(index, thatList[j++]);
+        }
+      }
+    }
+    latestTimestamp = Math.max(latestTimestamp, that.latestTimestamp);
+  }
+
+  /**
+   * @return bytes retained by the sketch, including unused list capacity. The hash function is shared.
+   */
+  public long memoryFootprint()
+  {
+    long footprint = ObjectSizes.object(3, Integer.BYTES + 2 * Long.BYTES)
+                     + ObjectSizes.array(lists.length, ObjectSizes.REFERENCE)
+                     + ObjectSizes.sizeOf(sizes);
+    for (long[] list : lists) {
+      footprint += ObjectSizes.sizeOf(list);
+    }
+    return footprint;
+  }
+}
@@ -0,0 +1,195 @@
+package io.dbfun.sketch;
+
+import java.util.Arrays;
+
+/**
+ * Exact set of 32-bit hashes, sorted and delta-encoded as varints: the sparse state of {@link Hll16Combined},
+ * between its hash table and its registers.
+ *
+ * <p>Hashes are sorted as signed ints, the delta of a hash from the previous one (from Integer.MIN_VALUE for
+ * the first) is an unsigned int written as a varint of 1 to 5 bytes. A set of n hashes takes about
+ * 32 - log2(n) bits per hash rounded up to 7-bit groups: 3 bytes from 2^11 to 2^18 hashes, so its memory grows
+ * smoothly with its size instead of doubling like a hash table.
+ *
+ * <p>New hashes go to an unsorted temp buffer first, which is merged into the list in batches like
+ * {@link SparseRegisterList}. Unlike it, the merge writes to a scratch buffer shared by the lists of a thread
+ * and copies the result back, so that a list only retains its encoded bytes plus 1/8 of slack.
+ * Zero is kept out of the list, like in the hash table.
+ */
+final class SortedHashList
+{
+  private static final int MIN_TEMP_SIZE = 16;
+  private static final int MAX_TEMP_SIZE = 1024;
+  private static final ThreadLocal<byte[][]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1][0]);
+
+  private byte[] encoded = new byte[0];
+  private int encodedLength;
+  private int count;
+
+  private int[] temp = new int[MIN_TEMP_SIZE];
+  private int tempCount;
+
+  boolean hasZero;
+
+  void add(int hash)
+  {
+    if (hash == 0) {
+      hasZero = true;
+      return;
+    }
+    temp[tempCount++] = hash;
+    if (tempCount == temp.length) {
+      mergeTemp();
+    }
+  }
+
+  /**
+   * @return number of hashes, including zero
+   */
+  int size()
+  {
+    mergeTemp();
+    return count + (hasZero ? 1 : 0);
+  }
+
+  /**
+   * @return bytes retained by the list
+   */
+  long memoryFootprint()
+  {
+    return ObjectSizes.object(2, 3 * Integer.BYTES + 1)
+           + ObjectSizes.sizeOf(encoded)
+           + ObjectSizes.sizeOf(temp);
+  }
+
+  /**
+   * @return a reader of the non-zero hashes in ascending order, valid until the next add
+   */
+  Reader reader()
+  {
+    mergeTemp();
+    return new Reader(encoded, encodedLength);
+  }
+
+  /**
+   * Merge the temp buffer into the sorted list, dropping duplicates.
+   */
+  private void mergeTemp()
+  {
+    if (tempCount == 0) {
+      return;
+    }
+    Arrays.sort(temp, 0, tempCount);
+
+    // worst case every hash takes 5 bytes
+    final int maxLength = encodedLength + 5 * tempCount;
+    final byte[][] scratch = SCRATCH.get();
+    if (scratch[0].length < maxLength) {
+      scratch[0] = new byte[Math.max(maxLength, 2 * scratch[0].length)];
+    }
+    final byte[] merged = scratch[0];
+
+    final Reader reader = new Reader(encoded, encodedLength);
+    boolean hasOld = reader.next();
+    int t = 0;
+    int newLength = 0;
+    int newCount = 0;
+    int previous = Integer.MIN_VALUE;
+    boolean first = true;
+    while (hasOld || t < tempCount) {
+      int hash;
+      if (!hasOld || (t < tempCount && temp[t] < reader.value)) {
+        hash = temp[t++];
+      } else {
+        hash = reader.value;
+        hasOld = reader.next();
+      }
+      if (!first && hash == previous) {
+        continue;
+      }
+      newLength = writeVarint(merged, newLength, hash - previous);
+      previous = hash;
+      first = false;
+      newCount++;
+    }
+
+    if (encoded.length < newLength) {
+      encoded = new byte[newLength + (newLength >>> 3)];
+    }
+    System.arraycopy(merged, 0, encoded, 0, newLength);
+    encodedLength = newLength;
+    count = newCount;
+    tempCount = 0;
+
+    // grow the temp buffer with the list so that merging stays amortized O(1) per add
+    final int tempSize = Math.min(MAX_TEMP_SIZE, Math.max(MIN_TEMP_SIZE, Integer.highestOneBit(count) >>> 4));
+    if (tempSize > temp.length) {
+      temp = new int[tempSize];
+    }
+  }
+
+  /**
+   * Write `value` as an unsigned varint.
+   */
+  private static int writeVarint(byte[] buf, int pos, int value)
+  {
+    while ((value & ~0x7f) != 0) {
+      buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buf[pos++] = (byte) value;
+    return pos;
+  }
+
+  static final class Reader
+  {
+    private byte[] encoded;
+    private int length;
+    private int pos;
+    int value = Integer.MIN_VALUE;
+
+    private Reader(byte[] encoded, int length)
+    {
+      this.encoded = encoded;
+      this.length = length;
+    }
+
+    boolean next()
+    {
+      if (pos >= length) {
+        return false;
+      }
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = encoded[pos++];
+        delta |= (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      value += delta;
+      return true;
+    }
+
+    /**
+     * Copy the hashes left to read to a smaller array once those already read take half the retained bytes,
+     * so that copies take linear time overall. Only for a reader that outlives its list.
+     */
+    void releaseRead()
+    {
+      if (pos >= encoded.length >>> 1 && pos > 0) {
+        encoded = Arrays.copyOfRange(encoded, pos, length);
+        length -= pos;
+        pos = 0;
+      }
+    }
+
+    /**
+     * @return bytes retained by the reader and the list it reads
+     */
+    long memoryFootprint()
+    {
+      return ObjectSizes.object(1, 3 * Integer.BYTES) + ObjectSizes.sizeOf(encoded);
+    }
+  }
+}
@@ -0,0 +1,307 @@
+package io.dbfun.sketch;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sparse representation of HLL++ (see https://research.google.com/pubs/pub40671.html section 5.3)
+ * for 64-bits hashes whose bucket is taken from the most-significant bits.
+ *
+ * <p>Each hash is recorded as an entry `idx' << 6 | rho'` at the higher precision p' = 25, where
+ * idx' is the top 25 bits of the hash and rho' is the position of the first 1 in the remaining bits.
+ * Both the dense bucket and the dense rho of any precision p &lt; p' can be derived from an entry,
+ * see {@link #toDense(Registers, int[])}.
+ *
+ * <p>Entries don't depend on the dense precision, so lists of estimators of different precisions merge as is.
+ *
+ * <p>Entries are kept sorted and deduplicated (max rho' per idx'), delta-encoded as varints.
+ * New entries go to an unsorted temp buffer first, which is merged into the list in batches.
+ *
+ * <p>A list can also be a read-only view over entries serialized by {@link #writeTo(ByteBuffer)},
+ * see {@link #wrap(ByteBuffer)}.
+ *
+ * <p>Differences from paper
+ * <ul>
+ *   <li>rho' is stored for every entry instead of only when it can't be derived from idx',
+ *   so that entries sort by index without decoding
+ * </ul>
+ */
+final class SparseRegisterList
+{
+  static final int SPARSE_PRECISION = 25;
+  private static final int RHO_BITS = 6;
+  private static final int MIN_TEMP_SIZE = 16;
+  private static final int MAX_TEMP_SIZE = 1024;
+
+  // varint delta encoded sorted entries
+  private byte[] encoded;
+  private int encodedLength;
+  private int count;
+  // swapped with `encoded` after each merge of the temp buffer
+  private byte[] spare;
+
+  private int[] temp;
+  private int tempCount;
+
+  // non-null for read-only views, holds the encoded entries
+  private final ByteBuffer view;
+
+  SparseRegisterList()
+  {
+    this.encoded = new byte[0];
+    this.spare = new byte[0];
+    this.temp = new int[MIN_TEMP_SIZE];
+    this.view = null;
+  }
+
+  private SparseRegisterList(ByteBuffer view, int count)
+  {
+    this.count = count;
+    this.encodedLength = view.remaining();
+    this.temp = new int[0];
+    this.view = view;
+  }
+
+  /**
+   * @param body little-endian buffer holding what {@link #writeTo(ByteBuffer)} wrote, from its position on
+   */
+  static SparseRegisterList wrap(ByteBuffer body)
+  {
+    final int start = body.position();
+    SketchFormat.checkBodySize(body, 2 * Integer.BYTES);
+    final int count = body.getInt(start);
+    final int length = body.getInt(start + Integer.BYTES);
+    if (count < 0 || length < 0) {
+      throw new IllegalArgumentException("invalid sparse list : " + count + " registers in " + length + " bytes");
+    }
+    SketchFormat.checkBodySize(body, 2 * Integer.BYTES + (long) length);
+    ByteBuffer view = body.duplicate();
+    view.position(start + 2 * Integer.BYTES);
+    view.limit(view.position() + length);
+    return new SparseRegisterList(view.slice(), count);
+  }
+
+  boolean isReadOnly()
+  {
+    return view != null;
+  }
+
+  int serializedSize()
+  {
+    mergeTemp();
+    return 2 * Integer.BYTES + encodedLength;
+  }
+
+  /**
+   * Write entry count, encoded length and the encoded entries.
+   */
+  void writeTo(ByteBuffer out)
+  {
+    mergeTemp();
+    out.putInt(count);
+    out.putInt(encodedLength);
+    out.put(encodedBuffer());
+  }
+
+  private ByteBuffer encodedBuffer()
+  {
+    return view != null ? view.duplicate() : ByteBuffer.wrap(encoded, 0, encodedLength);
+  }
+
+  void add(long hash)
+  {
+    if (view != null) {
+      throw new UnsupportedOperationException("sparse list is a read-only view");
+    }
+    final int index = (int) (hash >>> (Long.SIZE - SPARSE_PRECISION));
+    final int rho = Long.numberOfLeadingZeros((hash << SPARSE_PRECISION) | (1L << (SPARSE_PRECISION - 1))) + 1;
+    addEntry((index << RHO_BITS) | rho);
+  }
+
+  private void addEntry(int entry)
+  {
+    temp[tempCount++] = entry;
+    if (tempCount == temp.length) {
+      mergeTemp();
+    }
+  }
+
+  /**
+   * Add all entries of `that` (sparse/sparse merge).
+   */
+  void merge(SparseRegisterList that)
+  {
+    if (view != null) {
+      throw new UnsupportedOperationException("sparse list is a read-only view");
+    }
+    final Reader reader = new Reader(that);
+    while (reader.next()) {
+      addEntry(reader.entry);
+    }
+    for (int i = 0; i < that.tempCount; i++) {
+      addEntry(that.temp[i]);
+    }
+  }
+
+  /**
+   * Merge the temp buffer into the sorted list.
+   */
+  private void mergeTemp()
+  {
+    if (tempCount == 0) {
+      return;
+    }
+    Arrays.sort(temp, 0, tempCount);
+
+    // worst case every entry takes 5 bytes
+    final int maxLength = encodedLength + 5 * tempCount;
+    if (spare.length < maxLength) {
+      spare = new byte[Math.max(maxLength, 2 * spare.length)];
+    }
+
+    final Reader reader = new Reader(this);
+    boolean hasOld = reader.next();
+    int t = 0;
+    int newLength = 0;
+    int newCount = 0;
+    int written = 0;
+    int pending = 0; // entries are never 0 as rho' >= 1
+    while (hasOld || t < tempCount) {
+      int entry;
+      if (!hasOld || (t < tempCount && temp[t] < reader.entry)) {
+        entry = temp[t++];
+      } else {
+        entry = reader.entry;
+        hasOld = reader.next();
+      }
+
+      // entries are ascending, so of two entries with the same index the later one has the larger rho'
+      if (pending != 0 && (entry >>> RHO_BITS) != (pending >>> RHO_BITS)) {
+        newLength = writeVarint(spare, newLength, pending - written);
+        written = pending;
+        newCount++;
+      }
+      pending = entry;
+    }
+    newLength = writeVarint(spare, newLength, pending - written);
+    newCount++;
+
+    byte[] swap = encoded;
+    encoded = spare;
+    spare = swap;
+    encodedLength = newLength;
+    count = newCount;
+    tempCount = 0;
+
+    // grow the temp buffer with the list so that merging stays amortized O(1) per add
+    final int tempSize = Math.min(MAX_TEMP_SIZE, Math.max(MIN_TEMP_SIZE, Integer.highestOneBit(count) >>> 2));
+    if (tempSize > temp.length) {
+      temp = new int[tempSize];
+    }
+  }
+
+  /**
+   * Set the dense registers to the max of their value and the recorded entries, at the precision of `registers`.
+   *
+   * @param histogram register histogram kept in sync with the updates, may be null
+   */
+  void toDense(Registers registers, int[] histogram)
+  {
+    final int p = Integer.numberOfTrailingZeros(registers.size());
+    assert p < SPARSE_PRECISION;
+    final Reader reader = new Reader(this);
+    while (reader.next()) {
+      updateDense(registers, p, histogram, reader.entry);
+    }
+    for (int i = 0; i < tempCount; i++) {
+      updateDense(registers, p, histogram, temp[i]);
+    }
+  }
+
+  private static void updateDense(Registers registers, int p, int[] histogram, int entry)
+  {
+    final int sparseIndex = entry >>> RHO_BITS;
+    final int extraBits = SPARSE_PRECISION - p;
+    // bits of idx' that are not part of the dense bucket come first in the dense rho
+    final int extra = sparseIndex & ((1 << extraBits) - 1);
+    final int rho;
+    if (extra == 0) {
+      rho = extraBits + (entry & ((1 << RHO_BITS) - 1));
+    } else {
+      rho = Integer.numberOfLeadingZeros(extra) - (Integer.SIZE - extraBits) + 1;
+    }
+    registers.updateMax(sparseIndex >>> extraBits, rho, histogram);
+  }
+
+  /**
+   * @return linear counting estimate over the 2^p' sparse buckets
+   */
+  long cardinality()
+  {
+    mergeTemp();
+    final double m = 1 << SPARSE_PRECISION;
+    return Math.round(m * Math.log(m / (m - count)));
+  }
+
+  /**
+   * @return size of the encoded list, not counting the temp buffer
+   */
+  int encodedSize()
+  {
+    return encodedLength;
+  }
+
+  /**
+   * @return bytes retained by the list, including the entries wrapped by read-only views
+   */
+  long memoryFootprint()
+  {
+    final long shallowSize = ObjectSizes.object(4, 3 * Integer.BYTES) + ObjectSizes.sizeOf(temp);
+    if (view != null) {
+      return shallowSize + ObjectSizes.BYTE_BUFFER + encodedLength;
+    }
+    return shallowSize + ObjectSizes.sizeOf(encoded) + ObjectSizes.sizeOf(spare);
+  }
+
+  private static int writeVarint(byte[] buf, int pos, int value)
+  {
+    while ((value & ~0x7f) != 0) {
+      buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buf[pos++] = (byte) value;
+    return pos;
+  }
+
+  private static final class Reader
+  {
+    private final ByteBuffer encoded;
+    private final int length;
+    private int pos;
+    int entry;
+
+    Reader(SparseRegisterList list)
+    {
+      this.encoded = list.encodedBuffer();
+      this.pos = encoded.position();
+      this.length = encoded.limit();
+    }
+
+    boolean next()
+    {
+      if (pos >= length) {
+        return false;
+      }
+      int delta = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = encoded.get(pos++);
+        delta |= (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      entry += delta;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,446 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Thread-safe wrapper around any estimator of {@link CardinalityEstimators#get(String)}, for write-heavy counters
+ * that are rarely read. Like {@link java.util.concurrent.atomic.LongAdder}, writers are spread over stripes,
+ * each holding an estimator of the wrapped name:
+ * <ul>
+ *   <li>every thread adds to the stripe its probe points to, claiming it with an uncontended compare-and-set
+ *   of the stripe's busy flag instead of a shared lock
+ *   <li>a thread finding its stripe busy moves to another one, and the first collisions double the number of
+ *   stripes up to the number of processors, so that threads end up with a stripe of their own
+ *   <li>stripes are merged into a union only by {@link #cardinality()}, {@link #merge}, {@link #serialize} and
+ *   {@link #snapshot()}, and only the ones updated since the last merge
+ * </ul>
+ *
+ * <p>Named "striped:" followed by the wrapped name, such as "striped:hllraw14+packed". Serializes as the wrapped
+ * estimator, so {@link CardinalityEstimators#wrap(ByteBuffer)} reads it back as one.
+ */
+public final class StripedCardinalityEstimator implements CardinalityEstimator<StripedCardinalityEstimator>
+{
+  public static final String NAME_PREFIX = "striped:";
+
+  private static final int MAX_STRIPES = nextPowerOfTwo(Runtime.getRuntime().availableProcessors());
+
+  // per thread, not per estimator: a thread keeps to the same stripe index in every estimator it writes to
+  private static final ThreadLocal<Probe> PROBE = ThreadLocal.withInitial(Probe::new);
+
+  private static final AtomicIntegerFieldUpdater<StripedCardinalityEstimator> GROWING =
+      AtomicIntegerFieldUpdater.newUpdater(StripedCardinalityEstimator.class, "growing");
+
+  private final String delegateName;
+  private final int maxStripes;
+
+  // length is a power of two, only ever replaced by a longer copy
+  private volatile Stripe[] stripes;
+  private volatile int growing;
+
+  // guarded by `this`: everything merged so far, either from stripes or from other estimators
+  private final CardinalityEstimator union;
+  private long merges;
+  private long mergedStripes;
+  private long mergeNanos;
+
+  public StripedCardinalityEstimator(String delegateName)
+  {
+    this(delegateName, MAX_STRIPES);
+  }
+
+  /**
+   * @param maxStripes upper bound of the number of stripes, rounded up to a power of two
+   * @throws IllegalArgumentException if `delegateName` is an {@link OffHeapUniqCounter}: stripes and the copies
+   * merged on read would hold native memory nothing closes
+   */
+  public StripedCardinalityEstimator(String delegateName, int maxStripes)
+  {
+    Preconditions.checkArgument(maxStripes > 0, "invalid maxStripes [%s]", maxStripes);
+    this.delegateName = delegateName;
+    this.maxStripes = nextPowerOfTwo(maxStripes);
+    this.union = CardinalityEstimators.get(delegateName);
+    if (union instanceof OffHeapUniqCounter) {
+      ((OffHeapUniqCounter) union).close();
+      throw new IllegalArgumentException("can't stripe off-heap estimator " + delegateName);
+    }
+    this.stripes = new Stripe[]{new Stripe(CardinalityEstimators.get(delegateName))};
+  }
+
+  @Override
+  public void add(byte[] value)
+  {
+    final Stripe stripe = acquire();
+    try {
+      stripe.estimator.add(value);
+    }
+    finally {
+      stripe.release();
+    }
+  }
+
+  @Override
+  public void add(byte[] value, int offset, int length)
+  {
+    final Stripe stripe = acquire();
+    try {
+      stripe.estimator.add(value, offset, length);
+    }
+    finally {
+      stripe.release();
+    }
+  }
+
+  @Override
+  public void add(ByteBuffer value)
+  {
+    final Stripe stripe = acquire();
+    try {
+      stripe.estimator.add(value);
+    }
+    finally {
+      stripe.release();
+    }
+  }
+
+  @Override
+  public void add(CharSequence value)
+  {
+    final Stripe stripe = acquire();
+    try {
+      stripe.estimator.add(value);
+    }
+    finally {
+      stripe.release();
+    }
+  }
+
+  @Override
+  public void add(long value)
+  {
+    final Stripe stripe = acquire();
+    try {
+      stripe.estimator.add(value);
+    }
+    finally {
+      stripe.release();
+    }
+  }
+
+  @Override
+  public void addHash(long hash)
+  {
+    final Stripe stripe = acquire();
+    try {
+      stripe.estimator.addHash(hash);
+    }
+    finally {
+      stripe.release();
+    }
+  }
+
+  /**
+   * Adds the whole batch to one stripe.
+   */
+  @Override
+  public void add(long[] values, int offset, int length, long[] selection)
+  {
+    final Stripe stripe = acquire();
+    try {
+      stripe.estimator.add(values, offset, length, selection);
+    }
+    finally {
+      stripe.release();
+    }
+  }
+
+  @Override
+  public void add(byte[] data, int[] offsets, int offset, int length, long[] selection)
+  {
+    final Stripe stripe = acquire();
+    try {
+      stripe.estimator.add(data, offsets, offset, length, selection);
+    }
+    finally {
+      stripe.release();
+    }
+  }
+
+  /**
+   * Safe to call while other threads add to this or `that`.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public void merge(StripedCardinalityEstimator that)
+  {
+    final CardinalityEstimator other = that.snapshot();
+    synchronized (this) {
+      union.merge(other);
+    }
+  }
+
+  /**
+   * Merge an estimator of the wrapped type, such as one read by {@link CardinalityEstimators#wrap}.
+   * `that` must not be updated concurrently.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized void mergeEstimator(CardinalityEstimator that)
+  {
+    union.merge(that);
+  }
+
+  @Override
+  public synchronized long cardinality()
+  {
+    return collect().cardinality();
+  }
+
+  /**
+   * @return a new estimator of the wrapped name holding everything added so far
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized CardinalityEstimator snapshot()
+  {
+    final CardinalityEstimator copy = CardinalityEstimators.get(delegateName);
+    copy.merge(collect());
+    return copy;
+  }
+
+  @Override
+  public synchronized long memoryFootprint()
+  {
+    final Stripe[] stripes = this.stripes;
+    long footprint = ObjectSizes.object(3, 2 * Integer.BYTES + 3 * Long.BYTES)
+                     + ObjectSizes.array(stripes.length, ObjectSizes.REFERENCE)
+                     + union.memoryFootprint();
+    for (Stripe stripe : stripes) {
+      stripe.lock();
+      try {
+        footprint += ObjectSizes.object(1, Integer.BYTES) + stripe.estimator.memoryFootprint();
+      }
+      finally {
+        stripe.release();
+      }
+    }
+    return footprint;
+  }
+
+  @Override
+  public String name()
+  {
+    return NAME_PREFIX + delegateName;
+  }
+
+  /**
+   * Adds running concurrently with serializedSize() and {@link #serialize(ByteBuffer)} may change the size
+   * in between, serialize a {@link #snapshot()} instead if writers aren't stopped.
+   */
+  @Override
+  public synchronized int serializedSize()
+  {
+    return collect().serializedSize();
+  }
+
+  @Override
+  public synchronized void serialize(ByteBuffer out)
+  {
+    collect().serialize(out);
+  }
+
+  /**
+   * @return the hashes of the wrapped estimator, null if unknown
+   */
+  ValueHasher hasher()
+  {
+    return FanOut.hasher(union);
+  }
+
+  /**
+   * @return current number of stripes
+   */
+  public int stripeCount()
+  {
+    return stripes.length;
+  }
+
+  /**
+   * @return number of times stripes were merged into the union, once per read finding updated stripes
+   */
+  public synchronized long mergeCount()
+  {
+    return merges;
+  }
+
+  /**
+   * @return total number of stripes merged into the union, at most {@link #stripeCount()} per merge
+   */
+  public synchronized long mergedStripeCount()
+  {
+    return mergedStripes;
+  }
+
+  /**
+   * @return total time spent merging stripes, including waiting for writers to leave them
+   */
+  public synchronized long mergeNanos()
+  {
+    return mergeNanos;
+  }
+
+  /**
+   * Merge the stripes updated since the last call into the union. Merging a stripe again is harmless, estimators
+   * count distinct values, so stripes keep their registers and are merged again only when dirty.
+   */
+  @SuppressWarnings("unchecked")
+  private CardinalityEstimator collect()
+  {
+    final long start = System.nanoTime();
+    int merged = 0;
+    for (Stripe stripe : stripes) {
+      if (stripe.isClean()) {
+        continue;
+      }
+      stripe.lock();
+      try {
+        union.merge(stripe.estimator);
+        stripe.dirty = false;
+      }
+      finally {
+        stripe.release();
+      }
+      merged++;
+    }
+    if (merged > 0) {
+      merges++;
+      mergedStripes += merged;
+      mergeNanos += System.nanoTime() - start;
+    }
+    return union;
+  }
+
+  /**
+   * @return the calling thread's stripe, busy and marked dirty
+   */
+  private Stripe acquire()
+  {
+    final Probe probe = PROBE.get();
+    final Stripe[] stripes = this.stripes;
+    final Stripe stripe = stripes[probe.hash & (stripes.length - 1)];
+    if (!stripe.tryLock()) {
+      return acquireContended(probe);
+    }
+    stripe.dirty = true;
+    return stripe;
+  }
+
+  private Stripe acquireContended(Probe probe)
+  {
+    for (int attempt = 0; ; attempt++) {
+      final Stripe[] stripes = this.stripes;
+      if (stripes.length < maxStripes) {
+        grow(stripes);
+      } else if (attempt >= stripes.length) {
+        // every stripe was busy, likely more writers than processors
+        Thread.yield();
+      }
+      probe.advance();
+      final Stripe[] current = this.stripes;
+      final Stripe stripe = current[probe.hash & (current.length - 1)];
+      if (stripe.tryLock()) {
+        stripe.dirty = true;
+        return stripe;
+      }
+    }
+  }
+
+  private void grow(Stripe[] stripes)
+  {
+    if (this.stripes != stripes || !GROWING.compareAndSet(this, 0, 1)) {
+      return; // another thread is growing or just grew
+    }
+    try {
+      if (this.stripes == stripes) {
+        final Stripe[] grown = new Stripe[stripes.length * 2];
+        System.arraycopy(stripes, 0, grown, 0, stripes.length);
+        for (int i = stripes.length; i < grown.length; i++) {
+          grown[i] = new Stripe(CardinalityEstimators.get(delegateName));
+        }
+        this.stripes = grown;
+      }
+    }
+    finally {
+      growing = 0;
+    }
+  }
+
+  private static int nextPowerOfTwo(int n)
+  {
+    return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+  }
+
+  private static final class Stripe
+  {
+    private static final AtomicIntegerFieldUpdater<Stripe> BUSY =
+        AtomicIntegerFieldUpdater.newUpdater(Stripe.class, "busy");
+
+    final CardinalityEstimator estimator;
+    // written while busy, see isClean()
+    boolean dirty;
+    private volatile int busy;
+
+    Stripe(CardinalityEstimator estimator)
+    {
+      this.estimator = estimator;
+    }
+
+    boolean tryLock()
+    {
+      return busy == 0 && BUSY.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Wait for the writer holding this stripe, it only holds it for one add() and releases it even if the add
+     * throws.
+     */
+    void lock()
+    {
+      while (!tryLock()) {
+        Thread.yield();
+      }
+    }
+
+    /**
+     * @return true if no add() completed since the stripe was last merged. Reading `busy` first orders the read
+     * of `dirty` after the release of the last writer.
+     */
+    boolean isClean()
+    {
+      return busy == 0 && !dirty;
+    }
+
+    void release()
+    {
+      BUSY.lazySet(this, 0);
+    }
+  }
+
+  private static final class Probe
+  {
+    int hash = ThreadLocalRandom.current().nextInt() | 1;
+
+    /**
+     * Move to another stripe, same xorshift as LongAdder.
+     */
+    void advance()
+    {
+      int h = hash;
+      h ^= h << 13;
+      h ^= h >>> 17;
+      h ^= h << 5;
+      hash = h;
+    }
+  }
+}
@@ -1,56 +1,106 @@
 package io.dbfun.sketch;
 
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
-
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.zip.CRC32;
-import java.util.zip.Checksum;
+import java.util.EnumSet;
 
 public class UniqCounter implements CardinalityEstimator<UniqCounter>
 {
-  private static final short INITIAL_SIZE_DEGREE = 4;
-  private static final short MAX_SIZE_DEGREE = 17;
-  private static final int MAX_SIZE = 1 << (MAX_SIZE_DEGREE - 1);
+  static final short INITIAL_SIZE_DEGREE = 4;
+  static final short MAX_SIZE_DEGREE = 17;
+  static final int MAX_SIZE = 1 << (MAX_SIZE_DEGREE - 1);
 
   // The number of least significant bits used for thinning.
   // The remaining high-order bits are used to determine the position in the hash table.
   // (high-order bits are taken because the younger bits will be constant after dropping some of the values)
-  private static final short BITS_FOR_SKIP = 32 - MAX_SIZE_DEGREE;
+  static final short BITS_FOR_SKIP = 32 - MAX_SIZE_DEGREE;
+
+  private static final ValueHasher HASHER = ValueHasher.uniq();
 
-  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+  // CRC-32C (Castagnoli, reflected) of every byte value
+  private static final int[] CRC_TABLE = crcTable();
 
   private int count;
-  private int[] buf; // TODO use Unsafe byte array?
+  private int[] buf; // see OffHeapUniqCounter for a table in native memory
   private short sizeDegree;
   private short skipDegree;
   private boolean hasZero;
 
+  // non-null for read-only views, holds the non-zero hash values instead of `buf`
+  private final ByteBuffer view;
+
+  // non-null while tracked by a budget, see MemoryBudget
+  private MemoryBudget budget;
+
   public UniqCounter()
   {
     this.sizeDegree = INITIAL_SIZE_DEGREE;
     this.buf = new int[1 << sizeDegree];
+    this.view = null;
+  }
+
+  private UniqCounter(int count, short skipDegree, boolean hasZero, ByteBuffer view)
+  {
+    this.count = count;
+    this.skipDegree = skipDegree;
+    this.hasZero = hasZero;
+    this.view = view;
+  }
+
+  /**
+   * Create a read-only view over a counter serialized by {@link #serialize(ByteBuffer)},
+   * hash values are read from `in` instead of being copied.
+   */
+  public static UniqCounter wrap(ByteBuffer in)
+  {
+    SketchFormat.checkType(in, SketchFormat.TYPE_UNIQ);
+    final ByteBuffer body = SketchFormat.body(in);
+    SketchFormat.checkBodySize(body, 8);
+    final short skipDegree = body.get(0);
+    final boolean hasZero = body.get(1) != 0;
+    final int count = body.getInt(4);
+    final int numValues = hasZero ? count - 1 : count;
+    if (numValues < 0) {
+      throw new IllegalArgumentException("invalid count : " + count);
+    }
+    SketchFormat.checkBodySize(body, 8 + (long) Integer.BYTES * numValues);
+
+    body.position(8);
+    body.limit(body.position() + Integer.BYTES * numValues);
+    return new UniqCounter(count, skipDegree, hasZero, body.slice().order(ByteOrder.LITTLE_ENDIAN));
   }
 
-  // MurmurHash3 64-bit finalizer
-  private static long intHash64(long k)
+  private void checkWritable()
   {
-    k ^= k >>> 33;
-    k *= 0xff51afd7ed558ccdL;
-    k ^= k >>> 33;
-    k *= 0xc4ceb9fe1a85ec53L;
-    k ^= k >>> 33;
-    return k;
+    if (view != null) {
+      throw SketchFormat.readOnly(this);
+    }
   }
 
-  private static int crc32(long x)
+  private static int[] crcTable()
   {
-    final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
-    scratch.putLong(x);
-    Checksum checksum = new CRC32();
-    checksum.update(scratch.array(), 0, Long.BYTES);
-    return (int) checksum.getValue();
+    final int[] table = new int[256];
+    for (int i = 0; i < table.length; i++) {
+      int crc = i;
+      for (int bit = 0; bit < Byte.SIZE; bit++) {
+        crc = (crc >>> 1) ^ (0x82F63B78 & -(crc & 1));
+      }
+      table[i] = crc;
+    }
+    return table;
+  }
+
+  /**
+   * @return ClickHouse's intHashCRC32(x): the CRC-32C of the 8 little-endian bytes of `x` from an all-ones
+   * state, without the final inversion, like the SSE 4.2 crc32 instruction
+   */
+  static int intHashCrc32(long x)
+  {
+    int crc = ~0;
+    for (int i = 0; i < Long.BYTES; i++) {
+      crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ (int) (x >>> (i * Byte.SIZE))) & 0xff];
+    }
+    return crc;
   }
 
   private boolean good(int hash)
@@ -95,12 +145,21 @@ public class UniqCounter implements CardinalityEstimator<UniqCounter>
       return; // search hit
     }
     // search miss
+    reserveResize();
     buf[index] = hash;
     count++;
 
     shrinkIfNeeded();
   }
 
+  // Before adding a value, reserve the table it may resize to.
+  private void reserveResize()
+  {
+    if (budget != null && count >= 1 << (sizeDegree - 1) && count < MAX_SIZE) {
+      budget.reserve(this, ObjectSizes.array(2 << sizeDegree, Integer.BYTES));
+    }
+  }
+
   // If the hash table is half-full, then do resize.
   // If there are too many items, then throw half the pieces until they are small enough.
   private void shrinkIfNeeded()
@@ -162,34 +221,133 @@ public class UniqCounter implements CardinalityEstimator<UniqCounter>
     }
 
     this.buf = newBuf;
+    if (budget != null) {
+      budget.settle(this);
+    }
   }
 
   @Override
   public void add(byte[] value)
   {
-    add32BitsHash(HASH_FUNCTION.hashBytes(value).asInt());
+    add(value, 0, value.length);
+  }
+
+  @Override
+  public void add(byte[] value, int offset, int length)
+  {
+    checkWritable();
+    add32BitsHash((int) HASHER.hash(value, offset, length));
+  }
+
+  @Override
+  public void add(ByteBuffer value)
+  {
+    checkWritable();
+    add32BitsHash((int) HASHER.hash(value));
+  }
+
+  @Override
+  public void add(CharSequence value)
+  {
+    checkWritable();
+    add32BitsHash((int) HASHER.hash(value));
   }
 
   @Override
   public void add(long value)
   {
-    add32BitsHash((int) intHash64(value));
+    checkWritable();
+    add32BitsHash((int) HASHER.hash(value));
   }
 
   @Override
-  public void merge(UniqCounter that)
+  public void add(long[] values, int offset, int length, long[] selection)
+  {
+    checkWritable();
+    final long[] hashes = ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, HASHER.hash(values, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  @Override
+  public void add(byte[] data, int[] offsets, int offset, int length, long[] selection)
+  {
+    checkWritable();
+    final long[] hashes = ValueHasher.scratch();
+    final int end = offset + length;
+    for (int from = offset; from < end; from += hashes.length) {
+      addHashes(hashes, HASHER.hash(data, offsets, from, Math.min(end, from + hashes.length), selection, hashes));
+    }
+  }
+
+  /**
+   * Uses the low 32 bits of `hash`: the value is kept while its low skipDegree bits are zero, and its hash
+   * table slot is taken from the bits above the low 15.
+   */
+  @Override
+  public void addHash(long hash)
+  {
+    checkWritable();
+    add32BitsHash((int) hash);
+  }
+
+  ValueHasher hasher()
+  {
+    return HASHER;
+  }
+
+  MemoryBudget budget()
+  {
+    return budget;
+  }
+
+  void budget(MemoryBudget budget)
+  {
+    this.budget = budget;
+  }
+
+  /**
+   * Drop the values that aren't multiples of 2^skipDegree if it is above the current skip degree,
+   * before merging values thinned to it.
+   */
+  void raiseSkipDegree(int skipDegree)
   {
-    if (skipDegree < that.skipDegree) {
-      skipDegree = that.skipDegree;
+    checkWritable();
+    if (this.skipDegree < skipDegree) {
+      this.skipDegree = (short) skipDegree;
       removeAccordingToSkipDegree();
     }
+  }
+
+  private void addHashes(long[] hashes, int count)
+  {
+    for (int i = 0; i < count; i++) {
+      add32BitsHash((int) hashes[i]);
+    }
+  }
+
+  @Override
+  public void merge(UniqCounter that)
+  {
+    checkWritable();
+    raiseSkipDegree(that.skipDegree);
 
     if (!hasZero && that.hasZero) {
+      reserveResize();
       hasZero = true;
       count++;
       shrinkIfNeeded();
     }
 
+    if (that.view != null) {
+      final int numValues = that.view.remaining() / Integer.BYTES;
+      for (int i = 0; i < numValues; i++) {
+        add32BitsHash(that.view.getInt(i * Integer.BYTES));
+      }
+      return;
+    }
     for (int i = 0; i < that.buf.length; i++) {
       if (that.buf[i] != 0) {
         add32BitsHash(that.buf[i]);
@@ -199,6 +357,14 @@ public class UniqCounter implements CardinalityEstimator<UniqCounter>
 
   @Override
   public long cardinality()
+  {
+    return estimate(count, skipDegree);
+  }
+
+  /**
+   * @return estimated cardinality of a table holding `count` values whose low `skipDegree` bits are zero
+   */
+  static long estimate(int count, int skipDegree)
   {
     if (skipDegree == 0) {
       return count;
@@ -206,21 +372,27 @@ public class UniqCounter implements CardinalityEstimator<UniqCounter>
     long res = count * (1L << skipDegree);
     // Pseudo-random remainder - in order to be not visible,
     // that the number is divided by the power of two
-    res += crc32(count) & ((1L << skipDegree) - 1);
+    res += intHashCrc32(count) & ((1L << skipDegree) - 1);
 
     // Correction of a systematic error due to collisions during hashing in UInt32.
     // `fixedRes(res)` formula
     // with how many different elements of fixed_res,
     // when randomly scattered across 2^32 buckets,
     // filled buckets with average of res is obtained.
-    long p32 = 1L << 32;
-    return Math.round(p32 * (Math.log(p32) - Math.log(p32 - res)));
+    // p32 * (log(p32) - log(p32 - res)), through log1p to keep the precision ClickHouse gets from long double
+    double p32 = 1L << 32;
+    return Math.round(-p32 * Math.log1p(-res / p32));
   }
 
   @Override
   public long memoryFootprint()
   {
-    return 4 * (1 << sizeDegree);
+    final long shallowSize = ObjectSizes.object(3, Integer.BYTES + 2 * Short.BYTES + 1);
+    if (view != null) {
+      return shallowSize + ObjectSizes.BYTE_BUFFER + view.remaining();
+    }
+    // including the empty slots
+    return shallowSize + ObjectSizes.sizeOf(buf);
   }
 
   @Override
@@ -228,4 +400,36 @@ public class UniqCounter implements CardinalityEstimator<UniqCounter>
   {
     return "uniq";
   }
+
+  @Override
+  public int serializedSize()
+  {
+    final int numValues = hasZero ? count - 1 : count;
+    return SketchFormat.HEADER_SIZE + 8 + Integer.BYTES * numValues;
+  }
+
+  /**
+   * Body: skip degree (1 byte), has zero (1 byte), 2 reserved bytes, count (4 bytes),
+   * followed by the non-zero hash values (4 bytes each).
+   */
+  @Override
+  public void serialize(ByteBuffer out)
+  {
+    SketchFormat.writeHeader(out, SketchFormat.TYPE_UNIQ, 0, SketchFormat.HASH_SET, EnumSet.noneOf(HllOption.class));
+    ByteBuffer body = SketchFormat.startBody(out);
+    body.put((byte) skipDegree);
+    body.put((byte) (hasZero ? 1 : 0));
+    body.putShort((short) 0);
+    body.putInt(count);
+    if (view != null) {
+      body.put(view.duplicate());
+    } else {
+      for (int hash : buf) {
+        if (hash != 0) {
+          body.putInt(hash);
+        }
+      }
+    }
+    SketchFormat.finishBody(out, body);
+  }
 }
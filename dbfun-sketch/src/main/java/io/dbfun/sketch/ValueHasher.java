@@ -0,0 +1,153 @@
+package io.dbfun.sketch;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes values with a Guava {@link HashFunction}, taking the allocation-free {@link Murmur3} path
+ * when the function is murmur3_128 with the default seed.
+ *
+ * <p>Results are always those of {@code hashFunction.hashXXX(value).padToLong()}, so the low 32 bits
+ * are {@code asInt()} for 32-bits hash functions as well. The one exception is {@link #uniq()}.
+ */
+final class ValueHasher
+{
+  /**
+   * Number of values batch adds hash before updating the estimator, 8KB of hashes stay in L1.
+   */
+  static final int BATCH_SIZE = 1024;
+
+  private static final HashFunction MURMUR3_128 = Hashing.murmur3_128();
+  private static final ValueHasher MURMUR3 = new ValueHasher(MURMUR3_128, false);
+  private static final ValueHasher UNIQ = new ValueHasher(MURMUR3_128, true);
+  private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[BATCH_SIZE]);
+
+  private final HashFunction hashFunction;
+  private final boolean murmur3;
+  // hash longs with the Murmur3 finalizer only
+  private final boolean mixLongs;
+
+  private ValueHasher(HashFunction hashFunction, boolean mixLongs)
+  {
+    this.hashFunction = hashFunction;
+    this.murmur3 = MURMUR3_128.equals(hashFunction);
+    this.mixLongs = mixLongs;
+  }
+
+  static ValueHasher of(HashFunction hashFunction)
+  {
+    return MURMUR3_128.equals(hashFunction) ? MURMUR3 : new ValueHasher(hashFunction, false);
+  }
+
+  /**
+   * @return the hashes of {@link UniqCounter}: {@link Murmur3#fmix64(long)} of longs, murmur3_128 of other values
+   */
+  static ValueHasher uniq()
+  {
+    return UNIQ;
+  }
+
+  /**
+   * @return whether `that` hashes every value to the same hash as this
+   */
+  boolean sameHashes(ValueHasher that)
+  {
+    return mixLongs == that.mixLongs && hashFunction.equals(that.hashFunction);
+  }
+
+  HashFunction hashFunction()
+  {
+    return hashFunction;
+  }
+
+  long hash(long value)
+  {
+    if (mixLongs) {
+      return Murmur3.fmix64(value);
+    }
+    return murmur3 ? Murmur3.hash64(value) : hashFunction.hashLong(value).padToLong();
+  }
+
+  long hash(byte[] value, int offset, int length)
+  {
+    return murmur3 ? Murmur3.hash64(value, offset, length) : hashFunction.hashBytes(value, offset, length).padToLong();
+  }
+
+  long hash(ByteBuffer value)
+  {
+    if (murmur3) {
+      return Murmur3.hash64(value);
+    }
+    if (value.hasArray()) {
+      return hashFunction.hashBytes(value.array(), value.arrayOffset() + value.position(), value.remaining()).padToLong();
+    }
+    byte[] copy = new byte[value.remaining()];
+    value.duplicate().get(copy);
+    return hashFunction.hashBytes(copy).padToLong();
+  }
+
+  long hash(CharSequence value)
+  {
+    return murmur3 ? Murmur3.hash64(value) : hashFunction.hashString(value, StandardCharsets.UTF_8).padToLong();
+  }
+
+  /**
+   * @return the calling thread's array of {@link #BATCH_SIZE} hashes for batch adds, which must not call
+   * another batch add before they are done with it
+   */
+  static long[] scratch()
+  {
+    return SCRATCH.get();
+  }
+
+  /**
+   * Hash the values in [from, to) selected by `selection` (see {@link CardinalityEstimator#add(long[], int, int,
+   * long[])}) into the start of `hashes`, in order.
+   *
+   * @return number of hashes written, at most to - from which must not exceed hashes.length
+   */
+  int hash(long[] values, int from, int to, long[] selection, long[] hashes)
+  {
+    checkBatch(from, to, values.length, hashes);
+    int count = 0;
+    for (int i = from; i < to; i++) {
+      // hash every value and only advance on selected ones, no branch to mispredict
+      hashes[count] = hash(values[i]);
+      count += selected(selection, i);
+    }
+    return count;
+  }
+
+  /**
+   * Same as {@link #hash(long[], int, int, long[], long[])} for values data[offsets[i], offsets[i + 1]).
+   */
+  int hash(byte[] data, int[] offsets, int from, int to, long[] selection, long[] hashes)
+  {
+    checkBatch(from, to, offsets.length - 1, hashes);
+    int count = 0;
+    for (int i = from; i < to; i++) {
+      final int start = offsets[i];
+      hashes[count] = hash(data, start, offsets[i + 1] - start);
+      count += selected(selection, i);
+    }
+    return count;
+  }
+
+  /**
+   * @return 1 if value i is selected, 0 otherwise
+   */
+  static int selected(long[] selection, int i)
+  {
+    return selection == null ? 1 : (int) (selection[i >>> 6] >>> i) & 1;
+  }
+
+  static void checkBatch(int from, int to, int size, long[] hashes)
+  {
+    Preconditions.checkPositionIndexes(from, to, size);
+    Preconditions.checkArgument(to - from <= hashes.length, "batch of %s values larger than %s", to - from, hashes.length);
+  }
+}